@@ -0,0 +1,71 @@
+package io.jenkins.plugins.websub;
+
+import com.google.common.collect.ImmutableMultimap;
+import io.jenkins.plugins.websub.subscriber.CallbackRequest;
+import io.jenkins.plugins.websub.utils.JavaxServlet;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import lombok.val;
+
+/**
+ * A callback request received through a servlet container, e.g. Jenkins itself. See
+ * {@link ServletCallbackResponse} for sending the answer.
+ */
+public class ServletCallbackRequest implements CallbackRequest {
+    private final HttpServletRequest request;
+
+    public ServletCallbackRequest(final HttpServletRequest request) {
+        this.request = request;
+    }
+
+    @Override
+    public String getMethod() {
+        return request.getMethod();
+    }
+
+    @Override
+    public String getCallbackId() {
+        val url = request.getRequestURL();
+        return url.substring(url.lastIndexOf("/") + 1);
+    }
+
+    @Override
+    public List<String> getParameterValues(final String name) {
+        val values = request.getParameterValues(name);
+        return values == null ? Collections.emptyList() : Arrays.asList(values);
+    }
+
+    @Override
+    public ImmutableMultimap<String, String> getParameters() {
+        return JavaxServlet.getRequestParams(request);
+    }
+
+    @Override
+    public String getHeader(final String name) {
+        return request.getHeader(name);
+    }
+
+    @Override
+    public ImmutableMultimap<String, String> getHeaders() {
+        return JavaxServlet.getRequestHeaders(request);
+    }
+
+    @Override
+    public long getContentLength() {
+        return request.getContentLength();
+    }
+
+    @Override
+    public String getContentType() {
+        return request.getContentType();
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        return request.getInputStream();
+    }
+}
@@ -0,0 +1,39 @@
+package io.jenkins.plugins.websub;
+
+import io.jenkins.plugins.websub.subscriber.CallbackResponse;
+import java.io.IOException;
+import javax.servlet.http.HttpServletResponse;
+import lombok.val;
+import org.kohsuke.stapler.HttpResponse;
+
+/**
+ * Sends a {@link CallbackResponse} through a servlet container, e.g. Jenkins itself.
+ */
+public final class ServletCallbackResponse {
+    private ServletCallbackResponse() {}
+
+    /**
+     * Errors go out as the container's error page, like
+     * {@link org.kohsuke.stapler.HttpResponses#error(int, String)}.
+     */
+    public static void write(final CallbackResponse response, final HttpServletResponse rsp) throws IOException {
+        response.getHeaders().forEach(rsp::setHeader);
+        if (response.getStatus() >= 400 && response.getBody() != null) {
+            rsp.sendError(response.getStatus(), response.getBody());
+            return;
+        }
+        rsp.setStatus(response.getStatus());
+        if (response.getBody() == null) return;
+        rsp.setContentType(CallbackResponse.CONTENT_TYPE);
+        val pw = rsp.getWriter();
+        pw.print(response.getBody());
+        pw.flush();
+    }
+
+    /**
+     * @return the response as returned from a Stapler action method
+     */
+    public static HttpResponse toStapler(final CallbackResponse response) {
+        return (req, rsp, node) -> write(response, rsp);
+    }
+}
@@ -0,0 +1,126 @@
+package io.jenkins.plugins.websub;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import io.jenkins.plugins.websub.WebSubSharedResources.WebSubConfigurationException;
+import io.jenkins.plugins.websub.subscriber.CallbackResponse;
+import io.jenkins.plugins.websub.subscriber.ExchangeCallbackRequest;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscriber;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import javax.annotation.Nullable;
+import lombok.val;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Optional listener for hub callbacks on a port of its own.
+ *
+ * Callbacks through Jenkins pass its whole servlet filter chain and Stapler dispatch, and
+ * share request threads with the UI and API. This listener uses the JDK's NIO-based HTTP
+ * server, accepts only {@code /{prefix}/{id}}, and hands requests straight to the subscriber,
+ * so hubs are answered quickly however busy Jenkins is. Callback URLs point here while it is
+ * listening, see {@link WebSubSharedResources#getClient()}.
+ *
+ * It speaks plain HTTP. Put a TLS-terminating proxy in front to give hubs an HTTPS URL.
+ */
+class WebSubCallbackListener {
+    private static final Logger logger = LoggerFactory.getLogger(WebSubCallbackListener.class);
+    // Threads answering hubs. Notifications are only captured and queued on them.
+    private static final int THREADS = 4;
+    // Connections waiting to be accepted.
+    private static final int BACKLOG = 50;
+
+    // Path of callbacks, with leading and trailing '/'.
+    private final String path;
+    private final Clients clients;
+    @Nullable private HttpServer server;
+    @Nullable private ExecutorService executor;
+    private int port;
+
+    /**
+     * Finds the client to hand a callback to.
+     */
+    interface Clients {
+        WebSubSubscriber getClientFor(String callbackId) throws WebSubConfigurationException;
+    }
+
+    /**
+     * @param prefix callback URL prefix, without leading '/'
+     */
+    WebSubCallbackListener(final String prefix) {
+        this(prefix, id -> WebSubSharedResources.getInstance().getClientFor(id));
+    }
+
+    /**
+     * @param prefix callback URL prefix, without leading '/'
+     * @param clients finds the client for a callback id
+     */
+    WebSubCallbackListener(final String prefix, final Clients clients) {
+        this.path = "/" + prefix + "/";
+        this.clients = clients;
+    }
+
+    /**
+     * Listen on a port, or stop listening if it is 0. Nothing changes if already listening there.
+     */
+    synchronized void listen(final int port) {
+        if (port == this.port) return;
+        stop();
+        if (port <= 0) return;
+        HttpServer created;
+        try {
+            created = HttpServer.create(new InetSocketAddress(port), BACKLOG);
+        } catch (IOException e) {
+            logger.error("Could not listen for callbacks on port {}, they keep going to Jenkins: {}",
+                    port, e.toString());
+            return;
+        }
+        executor = Executors.newFixedThreadPool(THREADS,
+                new NamingThreadFactory(new DaemonThreadFactory(), WebSubCallbackListener.class.getName()));
+        created.setExecutor(executor);
+        // Anything outside the path gets the server's own 404.
+        created.createContext(path, this::handle);
+        created.start();
+        server = created;
+        this.port = port;
+        logger.info("Listening for callbacks on port {}", port);
+    }
+
+    synchronized void stop() {
+        if (server == null) return;
+        server.stop(0);
+        executor.shutdownNow();
+        server = null;
+        executor = null;
+        port = 0;
+    }
+
+    synchronized boolean isListening() {
+        return server != null;
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try {
+            val id = exchange.getRequestURI().getRawPath().substring(path.length());
+            if (id.isEmpty() || id.contains("/")) {
+                CallbackResponse.error(404, "Not a callback URL.").write(exchange);
+                return;
+            }
+            val client = clients.getClientFor(id);
+            client.handleRequest(new ExchangeCallbackRequest(exchange)).write(exchange);
+        } catch (WebSubConfigurationException e) {
+            logger.error("Could not retrieve client: {}", e.getMessage());
+            CallbackResponse.status(500).write(exchange);
+        } catch (RuntimeException e) {
+            logger.error("Error handling callback {}", exchange.getRequestURI(), e);
+            CallbackResponse.status(500).write(exchange);
+        } finally {
+            exchange.close();
+        }
+    }
+}
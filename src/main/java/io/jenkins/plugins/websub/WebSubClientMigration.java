@@ -0,0 +1,208 @@
+package io.jenkins.plugins.websub;
+
+import io.jenkins.plugins.websub.WebSubOperationExecutor.Target;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscriber;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscription;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import lombok.Getter;
+import lombok.val;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Moves live subscriptions to a new callback base URL after the Jenkins URL changes.
+ *
+ * Every subscription jobs route to is subscribed again through the new client with a new
+ * callback id, closest to expiry first and a limited number at a time. Once the hub verifies
+ * the new subscription the jobs switch to its id, and the old callback is unsubscribed through
+ * the old client, which still builds callback URLs from the old base. Until then notifications
+ * to the old callback keep triggering jobs, and callbacks the old client awaits verification
+ * for are handed to it, see {@link WebSubSharedResources#getClientFor}. Requests still pending
+ * in the old client when the URL changed are moved once the hub has verified them.
+ *
+ * A subscription that could not be moved keeps its old callback until its next renewal,
+ * which goes out with the new base URL.
+ */
+class WebSubClientMigration {
+    private static final Logger logger = LoggerFactory.getLogger(WebSubClientMigration.class);
+    // Most subscriptions being moved at once.
+    private static final int MAX_IN_PROGRESS = 20;
+    // How often to look for requests the old client still awaits verification for.
+    private static final long PENDING_CHECK_SECONDS = 10;
+
+    @Getter private final WebSubSubscriber from;
+    private final WebSubSubscriber to;
+    // Guarded by this.
+    private final Deque<WebSubSubscription> queue = new ArrayDeque<>();
+    // Ids pending in the old client when the migration started.
+    private final Set<String> waiting = new HashSet<>();
+    private int running;
+    private boolean cancelled;
+    private int total;
+    private int moved;
+    private int failed;
+
+    WebSubClientMigration(final WebSubSubscriber from, final WebSubSubscriber to) {
+        this.from = from;
+        this.to = to;
+    }
+
+    void start() {
+        // The new client renews from now on, with the new base URL.
+        from.stopRenewals();
+        val resources = WebSubSharedResources.getInstance();
+        final List<WebSubSubscription> active = resources.getRegistry().getAll().stream()
+                .filter(this::isMovable)
+                .sorted(Comparator.comparing(WebSubSubscription::getExpiration))
+                .collect(toList());
+        synchronized (this) {
+            queue.addAll(active);
+            total = active.size();
+            waiting.addAll(from.getPendingIds());
+        }
+        logger.info("Moving {} subscriptions to {}, {} requests awaiting verification",
+                active.size(), to.getOptions().getBaseUrl(), waiting.size());
+        startNext();
+        Timer.get().schedule(this::checkPending, PENDING_CHECK_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Stop starting moves, because the URL changed again and a newer migration takes over.
+     * Moves in progress still finish, and the old client is retired once it is done.
+     */
+    synchronized void cancel() {
+        cancelled = true;
+        queue.clear();
+    }
+
+    private boolean isMovable(final WebSubSubscription subscription) {
+        return subscription.getState() == WebSubSubscription.State.ACTIVE
+                && subscription.getHubUrl() != null
+                && !WebSubSharedResources.getInstance().getRouter().get(subscription.getId()).isEmpty();
+    }
+
+    private void startNext() {
+        while (true) {
+            final WebSubSubscription subscription;
+            synchronized (this) {
+                if (queue.isEmpty() || running >= MAX_IN_PROGRESS) return;
+                subscription = queue.poll();
+                running++;
+            }
+            move(subscription);
+        }
+    }
+
+    private void move(final WebSubSubscription old) {
+        val executor = WebSubSharedResources.getInstance().getOperationExecutor();
+        val hubUrl = old.getHubUrl();
+        // The request is sent within the operation, verification is waited for outside it.
+        executor.submit(Target.HUB, hubUrl, () -> to.subscribeAsync(hubUrl, old.getTopicUrl(), Runnable::run))
+                .thenCompose(verified -> verified)
+                .whenComplete((subscription, e) -> {
+                    boolean success = false;
+                    if (e != null) {
+                        val cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                        logger.warn("Could not move subscription {} to {}: {}",
+                                old.getId(), old.getTopicUrl(), cause.toString());
+                    } else {
+                        try {
+                            replaced(old, subscription);
+                            success = true;
+                        } catch (RuntimeException re) {
+                            logger.warn("Could not switch jobs to subscription {}", subscription.getId(), re);
+                        }
+                    }
+                    finished(success);
+                    startNext();
+                });
+    }
+
+    /**
+     * Switch the jobs from the old subscription to the new one and unsubscribe the old one.
+     */
+    private void replaced(final WebSubSubscription old, final WebSubSubscription subscription) {
+        val resources = WebSubSharedResources.getInstance();
+        val jobs = resources.getRouter().replaceId(old.getId(), subscription.getId());
+        if (jobs.isEmpty()) {
+            // The jobs went, or moved on to another subscription meanwhile.
+            resources.getUnsubscribeQueue().addAll(Collections.singleton(subscription.getId()));
+            return;
+        }
+        resources.getSharedSubscriptions().replace(old.getId(), subscription);
+        for (val fullName : jobs) {
+            val item = Jenkins.getInstance().getItemByFullName(fullName);
+            if (item != null)
+                WebSubReconciler.save(item);
+        }
+        logger.debug("Subscription {} replaced by {}", old.getId(), subscription.getId());
+        resources.getOperationExecutor().submit(Target.HUB, old.getHubUrl(), () -> {
+            from.unsubscribe(old.getHubUrl(), old.getTopicUrl(), old.getId());
+            return null;
+        }).whenComplete((v, e) -> {
+            if (e == null) return;
+            val cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            // It runs out with its lease.
+            logger.info("Could not unsubscribe old callback {}: {}", old.getId(), cause.toString());
+        });
+    }
+
+    private synchronized void finished(final boolean success) {
+        running--;
+        if (success)
+            moved++;
+        else
+            failed++;
+        if (moved + failed == total)
+            logger.info("Moved {} of {} subscriptions to {}, {} failed",
+                    moved, total, to.getOptions().getBaseUrl(), failed);
+    }
+
+    /**
+     * Move subscriptions the hub verified through the old client since the migration started,
+     * and retire the old client once it has nothing left to do.
+     */
+    private void checkPending() {
+        try {
+            val registry = WebSubSharedResources.getInstance().getRegistry();
+            val pending = from.getPendingIds();
+            synchronized (this) {
+                // A newer migration picks them up instead.
+                if (cancelled)
+                    waiting.clear();
+                for (val id : new HashSet<>(waiting)) {
+                    if (pending.contains(id)) continue;
+                    waiting.remove(id);
+                    registry.getById(id).filter(this::isMovable).ifPresent(subscription -> {
+                        queue.add(subscription);
+                        total++;
+                    });
+                }
+            }
+            startNext();
+            synchronized (this) {
+                if (!queue.isEmpty() || running > 0 || !waiting.isEmpty() || !pending.isEmpty()) {
+                    Timer.get().schedule(this::checkPending, PENDING_CHECK_SECONDS, TimeUnit.SECONDS);
+                    return;
+                }
+            }
+            logger.info("Retiring callback URLs under {}", from.getOptions().getBaseUrl());
+            WebSubSharedResources.getInstance().retire(this);
+        } catch (RuntimeException e) {
+            logger.error("Error moving subscriptions", e);
+            Timer.get().schedule(this::checkPending, PENDING_CHECK_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+}
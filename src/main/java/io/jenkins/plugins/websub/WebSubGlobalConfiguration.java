@@ -0,0 +1,462 @@
+package io.jenkins.plugins.websub;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.util.FormValidation;
+import hudson.util.Secret;
+import java.net.URI;
+import java.net.URISyntaxException;
+import javax.annotation.Nonnull;
+import jenkins.model.GlobalConfiguration;
+import lombok.Getter;
+import lombok.val;
+import net.sf.json.JSONObject;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+/**
+ * Instance-wide settings for the plugin, shown on the Jenkins global configuration page.
+ */
+@Extension
+public class WebSubGlobalConfiguration extends GlobalConfiguration {
+    static final int DEFAULT_INGEST_WORKERS = 2;
+    static final int DEFAULT_INGEST_QUEUE_CAPACITY = 1000;
+    static final long DEFAULT_MAX_PAYLOAD_BYTES = 10 * 1024 * 1024;
+    static final long DEFAULT_PAYLOAD_SPILL_THRESHOLD = 256 * 1024;
+    static final int DEFAULT_OPERATION_THREADS = 8;
+    static final int DEFAULT_PER_HOST_LIMIT = 2;
+    static final int DEFAULT_PER_HUB_LIMIT = 4;
+    static final int DEFAULT_OPERATION_TIMEOUT_SECONDS = 120;
+    static final int DEFAULT_DISCOVERY_CACHE_MINUTES = 60;
+    static final int DEFAULT_DISCOVERY_FAILURE_CACHE_MINUTES = 5;
+    static final long DEFAULT_MAX_DISCOVERY_BYTES = 512 * 1024;
+    static final int DEFAULT_RENEWAL_PERCENT = 75;
+    static final int DEFAULT_VERIFICATION_TIMEOUT_MINUTES = 10;
+    static final int DEFAULT_MAX_PENDING_SUBSCRIPTIONS = 10_000;
+    static final int DEFAULT_MAX_CONNECTIONS = 64;
+    static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 8;
+    static final int DEFAULT_CONNECT_TIMEOUT_SECONDS = 10;
+    static final int DEFAULT_READ_TIMEOUT_SECONDS = 30;
+    static final int DEFAULT_MAX_REDIRECTS = 5;
+    static final int DEFAULT_UNSUBSCRIBE_RATE = 5;
+    static final int DEFAULT_STARTUP_CONCURRENCY = 4;
+    private static final int MAX_PORT = 65535;
+
+    /**
+     * Number of threads moving received notifications into the build queue.
+     */
+    @Getter private int ingestWorkers = DEFAULT_INGEST_WORKERS;
+    /**
+     * Maximum number of received notifications waiting for a worker. Hubs get a 503 when full.
+     */
+    @Getter private int ingestQueueCapacity = DEFAULT_INGEST_QUEUE_CAPACITY;
+    /**
+     * Largest notification body accepted from a hub. Subscriptions may set a lower limit.
+     */
+    @Getter private long maxPayloadBytes = DEFAULT_MAX_PAYLOAD_BYTES;
+    /**
+     * Notification bodies larger than this are kept on disk instead of in memory.
+     */
+    @Getter private long payloadSpillThreshold = DEFAULT_PAYLOAD_SPILL_THRESHOLD;
+    /**
+     * Number of threads for discovery and subscription requests.
+     */
+    @Getter private int operationThreads = DEFAULT_OPERATION_THREADS;
+    /**
+     * Maximum concurrent discovery requests to a single topic host.
+     */
+    @Getter private int perHostLimit = DEFAULT_PER_HOST_LIMIT;
+    /**
+     * Maximum concurrent subscription requests to a single hub.
+     */
+    @Getter private int perHubLimit = DEFAULT_PER_HUB_LIMIT;
+    /**
+     * Time allowed for a discovery or subscription request, including time spent waiting.
+     */
+    @Getter private int operationTimeoutSeconds = DEFAULT_OPERATION_TIMEOUT_SECONDS;
+    /**
+     * Most bytes of an HTML page or feed read while looking for hub and self links.
+     */
+    @Getter private long maxDiscoveryBytes = DEFAULT_MAX_DISCOVERY_BYTES;
+    /**
+     * How long discovery results are used before asking the topic again.
+     */
+    @Getter private int discoveryCacheMinutes = DEFAULT_DISCOVERY_CACHE_MINUTES;
+    /**
+     * How long a failed discovery is remembered.
+     */
+    @Getter private int discoveryFailureCacheMinutes = DEFAULT_DISCOVERY_FAILURE_CACHE_MINUTES;
+    /**
+     * Whether discovery results are saved under JENKINS_HOME and reused after a restart.
+     */
+    @Getter private boolean persistDiscoveryCache = true;
+    /**
+     * Percentage of a subscription's lease after which it is renewed.
+     */
+    @Getter private int renewalPercent = DEFAULT_RENEWAL_PERCENT;
+    /**
+     * How long a hub has to verify a subscribe or unsubscribe request.
+     */
+    @Getter private int verificationTimeoutMinutes = DEFAULT_VERIFICATION_TIMEOUT_MINUTES;
+    /**
+     * Most requests awaiting verification at once.
+     */
+    @Getter private int maxPendingSubscriptions = DEFAULT_MAX_PENDING_SUBSCRIPTIONS;
+    /**
+     * Whether hubs reached over plain HTTP are also given a secret to sign notifications with.
+     */
+    @Getter private boolean allowInsecureSecrets;
+    /**
+     * Most connections kept open to hubs and topic hosts, across all hosts.
+     */
+    @Getter private int maxConnections = DEFAULT_MAX_CONNECTIONS;
+    /**
+     * Most connections kept open to a single hub or topic host.
+     */
+    @Getter private int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+    /**
+     * Time allowed to connect to a hub or topic host.
+     */
+    @Getter private int connectTimeoutSeconds = DEFAULT_CONNECT_TIMEOUT_SECONDS;
+    /**
+     * Time allowed between bytes of a response from a hub or topic host.
+     */
+    @Getter private int readTimeoutSeconds = DEFAULT_READ_TIMEOUT_SECONDS;
+    /**
+     * Whether topic hosts are asked for compressed responses.
+     */
+    @Getter private boolean requestGzip = true;
+    /**
+     * Most redirects followed for a single hub request.
+     */
+    @Getter private int maxRedirects = DEFAULT_MAX_REDIRECTS;
+    /**
+     * Whether hubs answering 301 are followed and remembered like 308.
+     */
+    @Getter private boolean followMovedPermanently;
+    /**
+     * Most unsubscribe requests started per second when jobs are deleted.
+     */
+    @Getter private int unsubscribeRate = DEFAULT_UNSUBSCRIBE_RATE;
+    /**
+     * Whether jobs watching the same topic through the same hub share one subscription.
+     */
+    @Getter private boolean shareSubscriptions;
+    /**
+     * Most restored subscriptions renewed at once after Jenkins starts.
+     */
+    @Getter private int startupConcurrency = DEFAULT_STARTUP_CONCURRENCY;
+    /**
+     * Port of a separate listener for hub callbacks, or 0 to receive them through Jenkins.
+     */
+    @Getter private int callbackListenerPort;
+    /**
+     * URL hubs reach the callback listener at, if not the Jenkins host on the listener port.
+     */
+    @Getter private String callbackListenerUrl;
+    /**
+     * URL of a websub-relay hubs send callbacks to instead of Jenkins, see
+     * {@link io.jenkins.plugins.websub.relay.WebSubRelay}.
+     */
+    @Getter private String relayUrl;
+    /**
+     * Secret shared with the relay, batches it forwards are signed with it.
+     */
+    @Getter private Secret relaySecret;
+
+    public WebSubGlobalConfiguration() {
+        load();
+    }
+
+    // Unsaved instance holding defaults.
+    private WebSubGlobalConfiguration(final boolean load) {
+        if (load) load();
+    }
+
+    /**
+     * @return the configuration, or an instance with default values if the extension is not
+     *   registered (e.g. during startup).
+     */
+    @Nonnull
+    public static WebSubGlobalConfiguration get() {
+        WebSubGlobalConfiguration config = GlobalConfiguration.all().get(WebSubGlobalConfiguration.class);
+        return config != null ? config : new WebSubGlobalConfiguration(false);
+    }
+
+    @DataBoundSetter
+    public void setIngestWorkers(final int ingestWorkers) {
+        this.ingestWorkers = Math.max(1, ingestWorkers);
+    }
+
+    @DataBoundSetter
+    public void setIngestQueueCapacity(final int ingestQueueCapacity) {
+        this.ingestQueueCapacity = Math.max(1, ingestQueueCapacity);
+    }
+
+    @DataBoundSetter
+    public void setMaxPayloadBytes(final long maxPayloadBytes) {
+        this.maxPayloadBytes = Math.max(1, maxPayloadBytes);
+    }
+
+    @DataBoundSetter
+    public void setPayloadSpillThreshold(final long payloadSpillThreshold) {
+        this.payloadSpillThreshold = Math.max(0, payloadSpillThreshold);
+    }
+
+    @DataBoundSetter
+    public void setMaxDiscoveryBytes(final long maxDiscoveryBytes) {
+        this.maxDiscoveryBytes = Math.max(1, maxDiscoveryBytes);
+    }
+
+    @DataBoundSetter
+    public void setOperationThreads(final int operationThreads) {
+        this.operationThreads = Math.max(1, operationThreads);
+    }
+
+    @DataBoundSetter
+    public void setPerHostLimit(final int perHostLimit) {
+        this.perHostLimit = Math.max(1, perHostLimit);
+    }
+
+    @DataBoundSetter
+    public void setPerHubLimit(final int perHubLimit) {
+        this.perHubLimit = Math.max(1, perHubLimit);
+    }
+
+    @DataBoundSetter
+    public void setOperationTimeoutSeconds(final int operationTimeoutSeconds) {
+        this.operationTimeoutSeconds = Math.max(1, operationTimeoutSeconds);
+    }
+
+    @DataBoundSetter
+    public void setDiscoveryCacheMinutes(final int discoveryCacheMinutes) {
+        this.discoveryCacheMinutes = Math.max(0, discoveryCacheMinutes);
+    }
+
+    @DataBoundSetter
+    public void setDiscoveryFailureCacheMinutes(final int discoveryFailureCacheMinutes) {
+        this.discoveryFailureCacheMinutes = Math.max(0, discoveryFailureCacheMinutes);
+    }
+
+    @DataBoundSetter
+    public void setPersistDiscoveryCache(final boolean persistDiscoveryCache) {
+        this.persistDiscoveryCache = persistDiscoveryCache;
+    }
+
+    @DataBoundSetter
+    public void setRenewalPercent(final int renewalPercent) {
+        this.renewalPercent = Math.min(95, Math.max(10, renewalPercent));
+    }
+
+    @DataBoundSetter
+    public void setVerificationTimeoutMinutes(final int verificationTimeoutMinutes) {
+        this.verificationTimeoutMinutes = Math.max(1, verificationTimeoutMinutes);
+    }
+
+    @DataBoundSetter
+    public void setMaxPendingSubscriptions(final int maxPendingSubscriptions) {
+        this.maxPendingSubscriptions = Math.max(1, maxPendingSubscriptions);
+    }
+
+    @DataBoundSetter
+    public void setAllowInsecureSecrets(final boolean allowInsecureSecrets) {
+        this.allowInsecureSecrets = allowInsecureSecrets;
+    }
+
+    @DataBoundSetter
+    public void setMaxConnections(final int maxConnections) {
+        this.maxConnections = Math.max(1, maxConnections);
+    }
+
+    @DataBoundSetter
+    public void setMaxConnectionsPerHost(final int maxConnectionsPerHost) {
+        this.maxConnectionsPerHost = Math.max(1, maxConnectionsPerHost);
+    }
+
+    @DataBoundSetter
+    public void setConnectTimeoutSeconds(final int connectTimeoutSeconds) {
+        this.connectTimeoutSeconds = Math.max(1, connectTimeoutSeconds);
+    }
+
+    @DataBoundSetter
+    public void setReadTimeoutSeconds(final int readTimeoutSeconds) {
+        this.readTimeoutSeconds = Math.max(1, readTimeoutSeconds);
+    }
+
+    @DataBoundSetter
+    public void setRequestGzip(final boolean requestGzip) {
+        this.requestGzip = requestGzip;
+    }
+
+    @DataBoundSetter
+    public void setMaxRedirects(final int maxRedirects) {
+        this.maxRedirects = Math.max(0, maxRedirects);
+    }
+
+    @DataBoundSetter
+    public void setFollowMovedPermanently(final boolean followMovedPermanently) {
+        this.followMovedPermanently = followMovedPermanently;
+    }
+
+    @DataBoundSetter
+    public void setUnsubscribeRate(final int unsubscribeRate) {
+        this.unsubscribeRate = Math.max(1, unsubscribeRate);
+    }
+
+    @DataBoundSetter
+    public void setShareSubscriptions(final boolean shareSubscriptions) {
+        this.shareSubscriptions = shareSubscriptions;
+    }
+
+    @DataBoundSetter
+    public void setStartupConcurrency(final int startupConcurrency) {
+        this.startupConcurrency = Math.max(1, startupConcurrency);
+    }
+
+    @DataBoundSetter
+    public void setCallbackListenerPort(final int callbackListenerPort) {
+        this.callbackListenerPort = Math.max(0, Math.min(MAX_PORT, callbackListenerPort));
+    }
+
+    @DataBoundSetter
+    public void setCallbackListenerUrl(final String callbackListenerUrl) {
+        this.callbackListenerUrl = Util.fixEmptyAndTrim(callbackListenerUrl);
+    }
+
+    @DataBoundSetter
+    public void setRelayUrl(final String relayUrl) {
+        this.relayUrl = Util.fixEmptyAndTrim(relayUrl);
+    }
+
+    @DataBoundSetter
+    public void setRelaySecret(final Secret relaySecret) {
+        this.relaySecret = relaySecret;
+    }
+
+    @Override
+    public boolean configure(final StaplerRequest req, final JSONObject json) throws FormException {
+        req.bindJSON(this, json);
+        save();
+        WebSubSharedResources.getInstance().applyConfiguration(this);
+        return true;
+    }
+
+    @SuppressWarnings("unused") // Used by Jelly template.
+    public WebSubNotificationQueue getNotificationQueue() {
+        return WebSubSharedResources.getInstance().getNotificationQueue();
+    }
+
+    @SuppressWarnings("unused") // Used by Jelly template.
+    public WebSubOperationExecutor getOperationExecutor() {
+        return WebSubSharedResources.getInstance().getOperationExecutor();
+    }
+
+    @SuppressWarnings("unused") // Used by Jelly template.
+    public WebSubStartupResubscriber getStartup() {
+        return WebSubSharedResources.getInstance().getStartup();
+    }
+
+    @SuppressWarnings("unused") // Used by form validator.
+    public FormValidation doCheckIngestWorkers(@QueryParameter final int value) {
+        return checkPositive(value);
+    }
+
+    @SuppressWarnings("unused") // Used by form validator.
+    public FormValidation doCheckIngestQueueCapacity(@QueryParameter final int value) {
+        return checkPositive(value);
+    }
+
+    @SuppressWarnings("unused") // Used by form validator.
+    public FormValidation doCheckMaxPayloadBytes(@QueryParameter final long value) {
+        return checkPositive(value);
+    }
+
+    @SuppressWarnings("unused") // Used by form validator.
+    public FormValidation doCheckMaxDiscoveryBytes(@QueryParameter final long value) {
+        return checkPositive(value);
+    }
+
+    @SuppressWarnings("unused") // Used by form validator.
+    public FormValidation doCheckRenewalPercent(@QueryParameter final int value) {
+        if (value < 10 || value > 95)
+            return FormValidation.error("Must be between 10 and 95");
+        return FormValidation.ok();
+    }
+
+    @SuppressWarnings("unused") // Used by form validator.
+    public FormValidation doCheckMaxPendingSubscriptions(@QueryParameter final int value) {
+        return checkPositive(value);
+    }
+
+    @SuppressWarnings("unused") // Used by form validator.
+    public FormValidation doCheckMaxConnections(@QueryParameter final int value) {
+        return checkPositive(value);
+    }
+
+    @SuppressWarnings("unused") // Used by form validator.
+    public FormValidation doCheckMaxConnectionsPerHost(@QueryParameter final int value) {
+        return checkPositive(value);
+    }
+
+    @SuppressWarnings("unused") // Used by form validator.
+    public FormValidation doCheckMaxRedirects(@QueryParameter final int value) {
+        if (value < 0)
+            return FormValidation.error("Must not be negative");
+        return FormValidation.ok();
+    }
+
+    @SuppressWarnings("unused") // Used by form validator.
+    public FormValidation doCheckUnsubscribeRate(@QueryParameter final int value) {
+        return checkPositive(value);
+    }
+
+    @SuppressWarnings("unused") // Used by form validator.
+    public FormValidation doCheckStartupConcurrency(@QueryParameter final int value) {
+        return checkPositive(value);
+    }
+
+    @SuppressWarnings("unused") // Used by form validator.
+    public FormValidation doCheckCallbackListenerPort(@QueryParameter final int value) {
+        if (value < 0 || value > MAX_PORT)
+            return FormValidation.error("Must be between 0 and " + MAX_PORT);
+        return FormValidation.ok();
+    }
+
+    @SuppressWarnings("unused") // Used by form validator.
+    public FormValidation doCheckCallbackListenerUrl(@QueryParameter final String value) {
+        return checkHttpUrl(value);
+    }
+
+    @SuppressWarnings("unused") // Used by form validator.
+    public FormValidation doCheckRelayUrl(@QueryParameter final String value) {
+        return checkHttpUrl(value);
+    }
+
+    @SuppressWarnings("unused") // Used by form validator.
+    public FormValidation doCheckRelaySecret(@QueryParameter final String value, @QueryParameter final String relayUrl) {
+        if (Util.fixEmptyAndTrim(relayUrl) != null && Secret.fromString(value).getPlainText().isEmpty())
+            return FormValidation.error("Required when a relay is used");
+        return FormValidation.ok();
+    }
+
+    private static FormValidation checkHttpUrl(final String value) {
+        val url = Util.fixEmptyAndTrim(value);
+        if (url == null)
+            return FormValidation.ok();
+        try {
+            val uri = new URI(url);
+            if (uri.getHost() == null || !("http".equals(uri.getScheme()) || "https".equals(uri.getScheme())))
+                return FormValidation.error("Must be an http or https URL");
+        } catch (URISyntaxException e) {
+            return FormValidation.error("Not a valid URL");
+        }
+        return FormValidation.ok();
+    }
+
+    private static FormValidation checkPositive(final long value) {
+        if (value < 1)
+            return FormValidation.error("Must be at least 1");
+        return FormValidation.ok();
+    }
+}
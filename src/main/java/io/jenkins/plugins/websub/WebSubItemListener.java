@@ -2,107 +2,91 @@ package io.jenkins.plugins.websub;
 
 import hudson.Extension;
 import hudson.model.Item;
+import hudson.model.ItemGroup;
 import hudson.model.listeners.ItemListener;
-import hudson.triggers.SafeTimerTask;
-import hudson.util.DaemonThreadFactory;
-import hudson.util.NamingThreadFactory;
+import java.util.HashSet;
 import java.util.Optional;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import lombok.val;
+import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static io.jenkins.plugins.websub.utils.Generic.cast;
 import static jenkins.model.ParameterizedJobMixIn.ParameterizedJob;
-import static io.jenkins.plugins.websub.subscriber.WebSubSubscriber.DiscoverResponse;
 
 /**
  * Listen for changes to jobs and sends out subscribe/unsubscribe events.
+ *
+ * Deletes and moves update routing straight away. Anything that may need a subscription
+ * only marks the job for {@link WebSubReconciler}, so a burst of changes is handled together.
  */
 @Extension
 @SuppressWarnings("unused") // Used by Jenkins.
 public class WebSubItemListener extends ItemListener {
     private final static Logger logger = LoggerFactory.getLogger(WebSubItemListener.class);
-    private static ExecutorService executorService;
 
     @Override
     public void onDeleted(final Item item) {
         logger.info("onDeleted()");
-        // TODO: Unsubscribe from the job.
+        // Shared subscriptions stay while other jobs still use them. Some jobs are also
+        // item groups, so check both.
+        final Set<String> unused = new HashSet<>(getRouter().removeJob(item.getFullName()));
+        if (item instanceof ItemGroup)
+            unused.addAll(getRouter().removeFolder(item.getFullName()));
+        WebSubSharedResources.getInstance().getUnsubscribeQueue().addAll(unused);
     }
 
     @Override
     public void onLocationChanged(final Item item, final String oldFullName, final String newFullName) {
         logger.info("onLocationChanged()");
-        // TODO: Update SharedResources.jobMap to point to the new full name.
+        // Only routing changes, callback URLs don't depend on job names.
+        getRouter().rename(oldFullName, newFullName);
+        if (item instanceof ItemGroup)
+            getRouter().renameFolder(oldFullName, newFullName);
     }
 
     @Override
     public void onCopied(final Item src, final Item item) {
         logger.info("onCopied()");
-        // TODO: If it has a Trigger added then attempt to subscribe for the new item.
+        // The copy has the source's saved ids, but the subscriptions still belong to the source.
+        getTrigger(item).ifPresent(trigger -> {
+            trigger.getSubscriptions().forEach(sub -> sub.setId(null));
+            WebSubReconciler.save(item);
+        });
+        index(item);
+        markDirty(item);
     }
 
+    /**
+     * Subscribe to topics added to the job and unsubscribe from those removed, see
+     * {@link WebSubReconciler}.
+     */
     @Override
     public void onUpdated(final Item item) {
         logger.info("onUpdated()");
-        // Create any new subscriptions or unsubscribe from old ones.
-        // Also update jobMap to remove the triggering.
-        // Will we still have access to the previous configuration?
-        // TODO: Get access to the previous configuration so we can unsubscribe.
-        getTrigger(item).ifPresent(this::doOperations);
+        markDirty(item);
     }
 
     @Override
     public void onCreated(final Item item) {
         logger.info("onCreated()");
+        index(item);
+        markDirty(item);
     }
 
     private Optional<WebSubTrigger> getTrigger(final Item item) {
-        return cast(item, ParameterizedJob.class)
-                .map(j -> j.getTriggers().get(WebSubTrigger.DESCRIPTOR))
-                .map(WebSubTrigger.class::cast);
+        return WebSubJobRouter.getTrigger(item);
     }
 
-    private void doOperations(final WebSubTrigger trigger) {
-        getExecutorService().submit(new SafeTimerTask() {
-            @Override
-            protected void doRun() throws Exception {
-                val job = trigger.getJob();
-                logger.info("Doing update for job {}", job.getFullName());
-                val subs = trigger.getSubscriptions();
-                for (val sub : subs) {
-                    if (sub.getId() != null) {
-                        // TODO: Allow forced re-subscription.
-                        logger.debug("Already subscribed to {}, skipping.", sub.getTopicUrl());
-                        continue;
-                    }
+    private void index(final Item item) {
+        cast(item, ParameterizedJob.class).ifPresent(getRouter()::index);
+    }
 
-                    val client = WebSubSharedResources.getInstance().getClient();
-                    logger.info("Discovering {}", sub.getTopicUrl());
-                    DiscoverResponse response = client.discover(sub.getTopicUrl());
-                    if (response.hubUrls.size() == 0) {
-                        logger.warn("Could not get hub URLs for {}.", sub.getTopicUrl());
-                    } else if (response.topicUrl == null) {
-                        logger.warn("Could not get topic URL for {}.", sub.getTopicUrl());
-                    } else {
-                        String id = client.subscribe(response.hubUrls.get(0), response.topicUrl);
-                        val jobMap = WebSubSharedResources.getInstance().getJobMap();
-                        logger.info("Saving id {} for job {}", id, trigger.getJob().getFullName());
-                        // Why is this commented?
-                        //jobMap.put(id, trigger.getJob().getFullName());
-                        sub.setId(id);
-                    }
-                }
-            }
-        });
+    private void markDirty(final Item item) {
+        if (item instanceof ParameterizedJob)
+            WebSubSharedResources.getInstance().getReconciler().markDirty(item.getFullName());
     }
 
-    private static synchronized ExecutorService getExecutorService() {
-        if (executorService == null) {
-            executorService = Executors.newSingleThreadExecutor(new NamingThreadFactory(new DaemonThreadFactory(), WebSubItemListener.class.getName()));
-        }
-        return executorService;
+    private static WebSubJobRouter getRouter() {
+        return WebSubSharedResources.getInstance().getRouter();
     }
 }
@@ -1,7 +1,219 @@
 package io.jenkins.plugins.websub;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import lombok.Value;
+import lombok.val;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static io.jenkins.plugins.websub.utils.Generic.cast;
+import static jenkins.model.ParameterizedJobMixIn.ParameterizedJob;
+
 /**
  * Route requests to specific jobs.
+ *
+ * Keeps an index from callback id to the jobs, triggers, and subscriptions that
+ * should receive notifications for it, so an incoming request is a single map
+ * lookup instead of a scan over every job. Built at startup and kept current
+ * by {@link WebSubItemListener}.
+ *
+ * A callback id routes to more than one job when jobs share a subscription to
+ * the same topic, with at most one route per job. The routes for an id also
+ * count its users: once the last is removed the subscription can be dropped.
+ *
+ * Reads are lock-free, writes are serialized since they only happen on job
+ * configuration changes.
  */
 public class WebSubJobRouter {
+    private static final Logger logger = LoggerFactory.getLogger(WebSubJobRouter.class);
+
+    @Value
+    public static class Route {
+        String jobFullName;
+        WebSubTrigger trigger;
+        WebSubTriggerSubscription subscription;
+    }
+
+    // Callback id to its routes, by job full name.
+    private final Map<String, Map<String, Route>> routes = new ConcurrentHashMap<>();
+    // Job full name to the callback ids routed to it, so a job's routes can be
+    // dropped without knowing its previous configuration. Sorted, so the jobs in a
+    // folder are a range of keys.
+    private final NavigableMap<String, Set<String>> jobIds = new ConcurrentSkipListMap<>();
+
+    /**
+     * @return the routes for a callback id, empty if there are none
+     */
+    public Collection<Route> get(final String id) {
+        if (id == null) return Collections.emptyList();
+        val byJob = routes.get(id);
+        if (byJob == null) return Collections.emptyList();
+        return Collections.unmodifiableCollection(byJob.values());
+    }
+
+    /**
+     * @return the number of callback ids with at least one route
+     */
+    public int size() {
+        return routes.size();
+    }
+
+    /**
+     * Replace the whole index with routes for the given jobs.
+     */
+    synchronized void rebuild(final Iterable<? extends ParameterizedJob> jobs) {
+        routes.clear();
+        jobIds.clear();
+        for (val job : jobs) {
+            index(job);
+        }
+        logger.info("Indexed {} WebSub routes", routes.size());
+    }
+
+    /**
+     * Drop any existing routes for the job and re-add those for its current trigger.
+     * @return the callback ids the job no longer uses that no other job uses either
+     */
+    synchronized Set<String> index(final ParameterizedJob job) {
+        val fullName = job.getFullName();
+        final Set<String> unused = new HashSet<>(removeJob(fullName));
+        getTrigger(job).ifPresent(trigger -> {
+            for (val sub : trigger.getSubscriptions()) {
+                if (sub.getId() != null)
+                    put(fullName, trigger, sub);
+            }
+        });
+        unused.removeIf(routes::containsKey);
+        return unused;
+    }
+
+    synchronized void put(
+            final String jobFullName,
+            final WebSubTrigger trigger,
+            final WebSubTriggerSubscription subscription) {
+        val id = subscription.getId();
+        // A job listing the same topic twice is still triggered once per notification.
+        routes.computeIfAbsent(id, k -> new ConcurrentHashMap<>())
+                .put(jobFullName, new Route(jobFullName, trigger, subscription));
+        jobIds.computeIfAbsent(jobFullName, k -> new HashSet<>()).add(id);
+    }
+
+    /**
+     * Drop all routes to a job.
+     * @return the callback ids left without any route
+     */
+    synchronized Set<String> removeJob(final String jobFullName) {
+        val ids = jobIds.remove(jobFullName);
+        if (ids == null) return Collections.emptySet();
+        final Set<String> unused = new HashSet<>();
+        for (val id : ids) {
+            val byJob = routes.get(id);
+            if (byJob == null) continue;
+            byJob.remove(jobFullName);
+            if (byJob.isEmpty()) {
+                routes.remove(id);
+                unused.add(id);
+            }
+        }
+        return unused;
+    }
+
+    synchronized void rename(final String oldFullName, final String newFullName) {
+        val ids = jobIds.remove(oldFullName);
+        if (ids == null) return;
+        for (val id : ids) {
+            val byJob = routes.get(id);
+            if (byJob == null) continue;
+            val route = byJob.remove(oldFullName);
+            if (route == null) continue;
+            byJob.put(newFullName, new Route(newFullName, route.getTrigger(), route.getSubscription()));
+        }
+        jobIds.put(newFullName, ids);
+    }
+
+    /**
+     * Drop all routes to jobs anywhere inside a folder.
+     * @return the callback ids left without any route
+     */
+    synchronized Set<String> removeFolder(final String folderFullName) {
+        final Set<String> unused = new HashSet<>();
+        for (val jobFullName : new ArrayList<>(inFolder(folderFullName).keySet()))
+            unused.addAll(removeJob(jobFullName));
+        return unused;
+    }
+
+    /**
+     * Move the routes of every job inside a folder along with it. Jenkins also reports the
+     * move of each job, which then finds nothing left to do.
+     */
+    synchronized void renameFolder(final String oldFullName, final String newFullName) {
+        for (val jobFullName : new ArrayList<>(inFolder(oldFullName).keySet()))
+            rename(jobFullName, newFullName + jobFullName.substring(oldFullName.length()));
+    }
+
+    private NavigableMap<String, Set<String>> inFolder(final String folderFullName) {
+        // '0' sorts right after '/'.
+        return jobIds.subMap(folderFullName + "/", true, folderFullName + "0", false);
+    }
+
+    /**
+     * Move every route of a callback id to another, when a subscription has been replaced.
+     * The jobs' subscriptions are given the new id, the caller saves the jobs.
+     * @return full names of the jobs moved, empty if nothing routes to the old id any more
+     */
+    synchronized Set<String> replaceId(final String oldId, final String newId) {
+        val byJob = routes.remove(oldId);
+        if (byJob == null) return Collections.emptySet();
+        for (val route : byJob.values()) {
+            route.getSubscription().setId(newId);
+            val ids = jobIds.get(route.getJobFullName());
+            if (ids == null) continue;
+            ids.remove(oldId);
+            ids.add(newId);
+        }
+        routes.computeIfAbsent(newId, k -> new ConcurrentHashMap<>()).putAll(byJob);
+        return new HashSet<>(byJob.keySet());
+    }
+
+    /**
+     * @return the callback ids routed to a job, by the topic URL configured in the job
+     */
+    synchronized Map<String, String> getTopicIds(final String jobFullName) {
+        final Map<String, String> topicIds = new HashMap<>();
+        for (val id : jobIds.getOrDefault(jobFullName, Collections.emptySet())) {
+            val route = routes.getOrDefault(id, Collections.emptyMap()).get(jobFullName);
+            if (route != null)
+                topicIds.put(route.getSubscription().getTopicUrl(), id);
+        }
+        return topicIds;
+    }
+
+    /**
+     * @return full names of the jobs with routes
+     */
+    Set<String> getJobs() {
+        return new HashSet<>(jobIds.keySet());
+    }
+
+    synchronized Set<String> getIds(final String jobFullName) {
+        val ids = jobIds.get(jobFullName);
+        if (ids == null) return Collections.emptySet();
+        return Collections.unmodifiableSet(new HashSet<>(ids));
+    }
+
+    static Optional<WebSubTrigger> getTrigger(final Object item) {
+        return cast(item, ParameterizedJob.class)
+                .map(j -> j.getTriggers().get(WebSubTrigger.DESCRIPTOR))
+                .map(WebSubTrigger.class::cast);
+    }
 }
@@ -0,0 +1,137 @@
+package io.jenkins.plugins.websub;
+
+import com.google.common.collect.ImmutableMultimap;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import io.jenkins.plugins.websub.subscriber.NotificationPayload;
+import java.time.Instant;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import lombok.Value;
+import lombok.val;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Bounded queue of received notifications, drained into the corresponding triggers by a pool
+ * of worker threads.
+ *
+ * Request threads only capture the notification and hand it off here so hubs get their
+ * acknowledgement without waiting on job lookup or the build queue. When the queue is full
+ * {@link #offer} refuses the notification and the caller should ask the hub to retry later.
+ */
+public class WebSubNotificationQueue {
+    private static final Logger logger = LoggerFactory.getLogger(WebSubNotificationQueue.class);
+
+    /**
+     * Everything we keep from a notification request after it has been acknowledged.
+     */
+    @Value
+    static class Notification {
+        String callbackId;
+        ImmutableMultimap<String, String> headers;
+        ImmutableMultimap<String, String> params;
+        NotificationPayload payload;
+        Instant received;
+    }
+
+    private final ThreadPoolExecutor executor;
+    private final Consumer<Notification> delivery;
+    // Notifications accepted and not yet finished (queued or being processed).
+    private final AtomicInteger depth = new AtomicInteger();
+    private volatile int capacity;
+
+    WebSubNotificationQueue(final int workers, final int capacity) {
+        this(workers, capacity, WebSubNotificationQueue::deliver);
+    }
+
+    /**
+     * @param delivery hands a notification to its jobs, on a worker thread
+     */
+    WebSubNotificationQueue(final int workers, final int capacity, final Consumer<Notification> delivery) {
+        this.capacity = capacity;
+        this.delivery = delivery;
+        // Capacity is enforced by depth, so the executor queue itself is unbounded.
+        executor = new ThreadPoolExecutor(
+                workers, workers, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), WebSubNotificationQueue.class.getName()));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Queue a notification for delivery.
+     *
+     * @param notification the captured notification
+     * @return false if the queue is at capacity and the notification was not accepted
+     */
+    boolean offer(final Notification notification) {
+        int current;
+        do {
+            current = depth.get();
+            if (current >= capacity)
+                return false;
+        } while (!depth.compareAndSet(current, current + 1));
+
+        executor.execute(() -> {
+            try (NotificationPayload payload = notification.getPayload()) {
+                delivery.accept(notification);
+            } catch (Exception e) {
+                logger.error("Failed to deliver notification for {}", notification.getCallbackId(), e);
+            } finally {
+                depth.decrementAndGet();
+            }
+        });
+        return true;
+    }
+
+    private static void deliver(final Notification notification) {
+        val id = notification.getCallbackId();
+        val routes = WebSubSharedResources.getInstance().getRouter().get(id);
+        if (routes.isEmpty()) {
+            logger.warn("No job found for subscription {}", id);
+            // TODO: Should we unsubscribe? No, because we don't know the corresponding topic URL.
+            //  we may want to mark this as no good though,
+            return;
+        }
+        // A shared subscription triggers every job using it from the one notification.
+        for (val route : routes) {
+            logger.info("Triggering {}", route.getJobFullName());
+            route.getTrigger().trigger(
+                    route.getSubscription(), notification.getHeaders(), notification.getParams(),
+                    notification.getPayload());
+        }
+    }
+
+    /**
+     * Apply new limits. Notifications already accepted are kept even if over the new capacity.
+     */
+    synchronized void resize(final int workers, final int capacity) {
+        this.capacity = capacity;
+        if (workers > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(workers);
+            executor.setCorePoolSize(workers);
+        } else {
+            executor.setCorePoolSize(workers);
+            executor.setMaximumPoolSize(workers);
+        }
+    }
+
+    /**
+     * @return number of notifications accepted and not yet delivered.
+     */
+    public int getDepth() {
+        return depth.get();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getWorkers() {
+        return executor.getMaximumPoolSize();
+    }
+}
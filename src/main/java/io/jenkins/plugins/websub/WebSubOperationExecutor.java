@@ -0,0 +1,210 @@
+package io.jenkins.plugins.websub;
+
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+import java.net.URI;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import jenkins.util.Timer;
+import lombok.val;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static io.jenkins.plugins.websub.utils.Generic.fmt;
+
+/**
+ * Runs blocking discovery and subscription requests on a bounded pool of threads.
+ *
+ * Requests are limited per topic host and per hub, so a slow or unresponsive server only
+ * holds up work addressed to it. Work over a limit waits in a per-key queue without
+ * occupying a thread. Every operation has a deadline, after which its future fails with a
+ * {@link TimeoutException} whether it was still waiting or already running.
+ *
+ * A running operation is interrupted at its deadline, but a thread blocked in socket I/O does
+ * not notice. Its thread and its host or hub slot are only released once the HTTP transport
+ * gives up on the request, after its connect or read timeout. Those timeouts are capped at the
+ * deadline, see {@link WebSubSharedResources}, which bounds how long a stuck request keeps its
+ * slot past it.
+ */
+public class WebSubOperationExecutor {
+    private static final Logger logger = LoggerFactory.getLogger(WebSubOperationExecutor.class);
+
+    /**
+     * What an operation talks to, which determines the concurrency limit applied.
+     */
+    public enum Target {
+        // Keyed by topic URL host.
+        HOST,
+        // Keyed by hub URL.
+        HUB
+    }
+
+    private class Operation<T> {
+        final String key;
+        final Callable<T> callable;
+        final CompletableFuture<T> future = new CompletableFuture<>();
+        volatile Thread thread;
+
+        Operation(final String key, final Callable<T> callable) {
+            this.key = key;
+            this.callable = callable;
+        }
+
+        void run() {
+            if (future.isDone()) {
+                finished(key);
+                return;
+            }
+            thread = Thread.currentThread();
+            try {
+                future.complete(callable.call());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            } finally {
+                thread = null;
+                // Clear any interrupt raised by the deadline before returning to the pool.
+                Thread.interrupted();
+                finished(key);
+            }
+        }
+
+        // Fails the future straight away, the slot is freed when the callable returns.
+        void expire() {
+            if (future.completeExceptionally(new TimeoutException(fmt("Operation on {} timed out", key)))) {
+                val t = thread;
+                if (t != null)
+                    t.interrupt();
+            }
+        }
+    }
+
+    private static class KeyState {
+        int running;
+        final Deque<Operation<?>> waiting = new ArrayDeque<>();
+    }
+
+    private final ThreadPoolExecutor executor;
+    // Guarded by this.
+    private final Map<String, KeyState> keys = new HashMap<>();
+    private int inFlight;
+    private int queued;
+    private volatile int perHostLimit;
+    private volatile int perHubLimit;
+    private volatile Duration timeout;
+
+    WebSubOperationExecutor(
+            final int threads, final int perHostLimit, final int perHubLimit, final Duration timeout) {
+        this.perHostLimit = perHostLimit;
+        this.perHubLimit = perHubLimit;
+        this.timeout = timeout;
+        executor = new ThreadPoolExecutor(
+                threads, threads, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(),
+                new NamingThreadFactory(new DaemonThreadFactory(), WebSubOperationExecutor.class.getName()));
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Run an operation once the target is under its concurrency limit.
+     *
+     * @param target kind of server the operation talks to
+     * @param url URL of the topic or hub
+     * @param callable the blocking operation
+     * @return future completed with the result, or failed on error or deadline
+     */
+    public <T> CompletableFuture<T> submit(final Target target, final String url, final Callable<T> callable) {
+        val key = getKey(target, url);
+        val limit = target == Target.HOST ? perHostLimit : perHubLimit;
+        val operation = new Operation<T>(key, callable);
+        val expiry = Timer.get().schedule(operation::expire, timeout.toMillis(), TimeUnit.MILLISECONDS);
+        operation.future.whenComplete((r, e) -> expiry.cancel(false));
+        synchronized (this) {
+            val state = keys.computeIfAbsent(key, k -> new KeyState());
+            if (state.running < limit) {
+                state.running++;
+                inFlight++;
+                executor.execute(operation::run);
+            } else {
+                state.waiting.add(operation);
+                queued++;
+            }
+        }
+        return operation.future;
+    }
+
+    private synchronized void finished(final String key) {
+        val state = keys.get(key);
+        inFlight--;
+        state.running--;
+        // Skip anything that expired while waiting.
+        Operation<?> next;
+        while ((next = state.waiting.poll()) != null) {
+            queued--;
+            if (!next.future.isDone()) {
+                state.running++;
+                inFlight++;
+                executor.execute(next::run);
+                break;
+            }
+        }
+        if (state.running == 0 && state.waiting.isEmpty())
+            keys.remove(key);
+    }
+
+    private static String getKey(final Target target, final String url) {
+        if (target == Target.HUB)
+            return "hub:" + url;
+        String host;
+        try {
+            host = URI.create(url).getHost();
+        } catch (IllegalArgumentException e) {
+            host = null;
+        }
+        if (host == null) {
+            logger.debug("Could not get host from {}", url);
+            host = url;
+        }
+        return "host:" + host.toLowerCase();
+    }
+
+    synchronized void reconfigure(
+            final int threads, final int perHostLimit, final int perHubLimit, final Duration timeout) {
+        this.perHostLimit = perHostLimit;
+        this.perHubLimit = perHubLimit;
+        this.timeout = timeout;
+        if (threads > executor.getMaximumPoolSize()) {
+            executor.setMaximumPoolSize(threads);
+            executor.setCorePoolSize(threads);
+        } else {
+            executor.setCorePoolSize(threads);
+            executor.setMaximumPoolSize(threads);
+        }
+    }
+
+    /**
+     * @return number of operations dispatched to a thread and not yet finished.
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return number of operations waiting for their host or hub to be under its limit.
+     */
+    public synchronized int getQueued() {
+        return queued;
+    }
+
+    public int getThreads() {
+        return executor.getMaximumPoolSize();
+    }
+}
@@ -0,0 +1,374 @@
+package io.jenkins.plugins.websub;
+
+import hudson.model.Item;
+import hudson.model.Job;
+import io.jenkins.plugins.websub.WebSubOperationExecutor.Target;
+import io.jenkins.plugins.websub.WebSubSharedResources.WebSubConfigurationException;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscriber;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscription;
+import java.io.IOException;
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
+import jenkins.model.Jenkins;
+import lombok.Value;
+import lombok.val;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static io.jenkins.plugins.websub.utils.Generic.fmt;
+import static jenkins.model.ParameterizedJobMixIn.ParameterizedJob;
+
+/**
+ * Brings subscriptions in line with the configuration of jobs.
+ *
+ * Item events only mark jobs dirty. Once events stop for a moment, or after a longer wait
+ * while they keep coming, a pass looks at each dirty job's configuration and routes and
+ * applies the difference: topics without a live subscription get one, and subscriptions no
+ * job lists any more are unsubscribed. A topic listed by many jobs is discovered once per pass,
+ * and a pass starts at most a batch of topics, leaving the rest dirty for the next one. So a
+ * bulk reload of thousands of jobs turns into a few passes rather than thousands of separate
+ * requests.
+ *
+ * A full resync from time to time marks every job dirty, catching events that were missed and
+ * retrying subscriptions that failed.
+ */
+class WebSubReconciler {
+    private static final Logger logger = LoggerFactory.getLogger(WebSubReconciler.class);
+    // A pass waits until there have been no events for this long...
+    private static final long QUIET_MILLIS = 1000;
+    // ...but no longer than this after the first one.
+    private static final long MAX_WAIT_MILLIS = 10_000;
+    // Most topics a pass starts subscribing to.
+    private static final int BATCH_TOPICS = 100;
+
+    @Value
+    private static class InFlight {
+        String jobFullName;
+        String topicUrl;
+    }
+
+    private final ScheduledExecutorService timer;
+    private final Clock clock;
+    // Handles the jobs of a pass.
+    private final Consumer<List<String>> handler;
+    // Jobs to look at in the next pass, guarded by this.
+    private final Set<String> dirty = new LinkedHashSet<>();
+    private long firstDirtyMillis;
+    private long lastDirtyMillis;
+    private boolean scheduled;
+    // Topics being subscribed to, so a job isn't subscribed twice while waiting for the hub.
+    private final Set<InFlight> inFlight = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param timer runs the passes, owned by the caller
+     */
+    WebSubReconciler(final ScheduledExecutorService timer) {
+        this(timer, Clock.systemUTC(), null);
+    }
+
+    /**
+     * @param timer runs the passes, owned by the caller
+     * @param handler handles the jobs of each pass, the subscriptions of the jobs if null
+     */
+    WebSubReconciler(final ScheduledExecutorService timer, final Clock clock,
+                     @Nullable final Consumer<List<String>> handler) {
+        this.timer = timer;
+        this.clock = clock;
+        this.handler = handler != null ? handler : this::reconcile;
+    }
+
+    void markDirty(final String jobFullName) {
+        markDirty(Collections.singleton(jobFullName));
+    }
+
+    synchronized void markDirty(final Collection<String> jobFullNames) {
+        if (jobFullNames.isEmpty()) return;
+        val now = clock.millis();
+        if (dirty.isEmpty())
+            firstDirtyMillis = now;
+        lastDirtyMillis = now;
+        dirty.addAll(jobFullNames);
+        if (!scheduled) {
+            scheduled = true;
+            timer.schedule(this::pass, QUIET_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Mark every job with a trigger dirty, and those with routes but no longer there.
+     */
+    void resync() {
+        try {
+            final Set<String> jobs = new LinkedHashSet<>();
+            for (val job : Jenkins.getInstance().getAllItems(ParameterizedJob.class)) {
+                if (WebSubJobRouter.getTrigger(job).isPresent())
+                    jobs.add(job.getFullName());
+            }
+            jobs.addAll(getRouter().getJobs());
+            logger.debug("Resyncing {} jobs", jobs.size());
+            markDirty(jobs);
+        } catch (RuntimeException e) {
+            // Never let an exception cancel the periodic task.
+            logger.error("Error resyncing subscriptions", e);
+        }
+    }
+
+    synchronized int getDirtyCount() {
+        return dirty.size();
+    }
+
+    synchronized boolean isDirty(final String jobFullName) {
+        return dirty.contains(jobFullName);
+    }
+
+    private void pass() {
+        final List<String> jobs;
+        synchronized (this) {
+            val now = clock.millis();
+            val wait = Math.min(lastDirtyMillis + QUIET_MILLIS, firstDirtyMillis + MAX_WAIT_MILLIS) - now;
+            if (wait > 0) {
+                timer.schedule(this::pass, wait, TimeUnit.MILLISECONDS);
+                return;
+            }
+            scheduled = false;
+            jobs = new ArrayList<>(dirty);
+            dirty.clear();
+        }
+        try {
+            handler.accept(jobs);
+        } catch (RuntimeException e) {
+            // The jobs are picked up again by the next resync.
+            logger.error("Error reconciling subscriptions", e);
+        }
+    }
+
+    private void reconcile(final List<String> jobs) {
+        val resources = WebSubSharedResources.getInstance();
+        final Set<String> unused = new HashSet<>();
+        // Topics that need a subscription, with the jobs that need it.
+        final Map<String, List<Job<?, ?>>> missing = new LinkedHashMap<>();
+        for (val fullName : jobs) {
+            val item = Jenkins.getInstance().getItemByFullName(fullName);
+            if (!(item instanceof ParameterizedJob) || !(item instanceof Job)) {
+                unused.addAll(getRouter().removeJob(fullName));
+                continue;
+            }
+            unused.addAll(reconcileJob((ParameterizedJob) item));
+            WebSubJobRouter.getTrigger(item).ifPresent(trigger -> {
+                for (val sub : trigger.getSubscriptions()) {
+                    if (sub.getId() == null && !inFlight.contains(new InFlight(fullName, sub.getTopicUrl())))
+                        missing.computeIfAbsent(sub.getTopicUrl(), k -> new ArrayList<>()).add((Job<?, ?>) item);
+                }
+            });
+        }
+        resources.getUnsubscribeQueue().addAll(unused);
+        if (missing.isEmpty()) return;
+
+        WebSubSubscriber client;
+        try {
+            client = resources.getClient();
+        } catch (WebSubConfigurationException e) {
+            logger.warn("Cannot subscribe to {} topics: {}", missing.size(), e.getMessage());
+            return;
+        }
+        val topics = missing.size();
+        val later = takeBatch(missing, BATCH_TOPICS);
+        for (val entry : missing.entrySet())
+            subscribe(client, entry.getKey(), entry.getValue());
+        if (!later.isEmpty()) {
+            logger.info("Subscribing to {} topics, {} more next time", missing.size(), topics - missing.size());
+            final List<String> names = new ArrayList<>();
+            for (val job : later)
+                names.add(job.getFullName());
+            markDirty(names);
+        }
+    }
+
+    /**
+     * Keep the first topics up to the limit and remove the rest.
+     *
+     * @return jobs of the removed topics, to look at again in the next pass
+     */
+    static <J> Set<J> takeBatch(final Map<String, List<J>> missing, final int limit) {
+        final Set<J> later = new LinkedHashSet<>();
+        int taken = 0;
+        for (Iterator<List<J>> it = missing.values().iterator(); it.hasNext();) {
+            val jobs = it.next();
+            if (taken++ < limit) continue;
+            later.addAll(jobs);
+            it.remove();
+        }
+        return later;
+    }
+
+    /**
+     * Keep the subscriptions of topics the job still lists, as long as the hub has them.
+     * Saving the configuration form creates subscriptions without ids, but the router still
+     * has the job's previous routes to take them from.
+     *
+     * @return callback ids no job uses any more
+     */
+    private static Set<String> reconcileJob(final ParameterizedJob job) {
+        val trigger = WebSubJobRouter.getTrigger(job);
+        val previous = getRouter().getTopicIds(job.getFullName());
+        boolean changed = false;
+        for (val sub : trigger.map(WebSubTrigger::getSubscriptions).orElse(Collections.emptyList())) {
+            val id = sub.getId() != null ? sub.getId() : previous.get(sub.getTopicUrl());
+            val keep = id != null && isLive(id) ? id : null;
+            if (!Objects.equals(keep, sub.getId())) {
+                sub.setId(keep);
+                changed = true;
+            }
+        }
+        val unused = getRouter().index(job);
+        if (changed)
+            save(job);
+        return unused;
+    }
+
+    /**
+     * @return whether the hub has the subscription, or is yet to verify it
+     */
+    private static boolean isLive(final String id) {
+        val resources = WebSubSharedResources.getInstance();
+        val subscription = resources.getRegistry().getById(id);
+        if (subscription.isPresent())
+            return subscription.get().getState() == WebSubSubscription.State.ACTIVE;
+        try {
+            return resources.isPending(id);
+        } catch (WebSubConfigurationException e) {
+            // Can't subscribe again anyway.
+            return true;
+        }
+    }
+
+    /**
+     * Discover a topic once and subscribe each job listing it.
+     */
+    private void subscribe(final WebSubSubscriber client, final String topicUrl, final List<Job<?, ?>> jobs) {
+        val resources = WebSubSharedResources.getInstance();
+        val executor = resources.getOperationExecutor();
+        val share = WebSubGlobalConfiguration.get().isShareSubscriptions();
+        val shared = resources.getSharedSubscriptions();
+        final List<InFlight> keys = new ArrayList<>();
+        for (val job : jobs) {
+            val key = new InFlight(job.getFullName(), topicUrl);
+            inFlight.add(key);
+            keys.add(key);
+        }
+        executor.submit(Target.HOST, topicUrl, () -> {
+            logger.info("Discovering {}", topicUrl);
+            return client.discover(topicUrl);
+        }).thenAccept(response -> {
+            if (response.hubUrls.size() == 0)
+                throw new IllegalStateException(fmt("Could not get hub URLs for {}.", topicUrl));
+            if (response.topicUrl == null)
+                throw new IllegalStateException(fmt("Could not get topic URL for {}.", topicUrl));
+            for (int i = 0; i < jobs.size(); i++) {
+                val job = jobs.get(i);
+                val key = keys.get(i);
+                val subscription = share
+                        ? shared.acquire(response.hubUrls, response.topicUrl, () ->
+                                subscribeAny(client, executor, response.hubUrls, response.topicUrl))
+                        : subscribeAny(client, executor, response.hubUrls, response.topicUrl);
+                subscription.whenComplete((id, e) -> {
+                    inFlight.remove(key);
+                    if (e != null) {
+                        logger.warn("Could not subscribe to {} for job {}: {}",
+                                topicUrl, job.getFullName(), unwrap(e).toString());
+                        return;
+                    }
+                    adopt(job, topicUrl, id);
+                });
+            }
+        }).whenComplete((v, e) -> {
+            if (e == null) return;
+            inFlight.removeAll(keys);
+            logger.warn("Could not subscribe to {} for {} jobs: {}", topicUrl, jobs.size(), unwrap(e).toString());
+        });
+    }
+
+    /**
+     * Subscribe through the first hub that accepts, trying healthy hubs before ones that have
+     * been failing. Each attempt counts against the limit of the hub it goes to.
+     */
+    private static CompletableFuture<String> subscribeAny(
+            final WebSubSubscriber client, final WebSubOperationExecutor executor,
+            final List<String> hubUrls, final String topicUrl) {
+        val ranked = client.getHubHealth().rank(hubUrls);
+        CompletableFuture<String> result = null;
+        for (val hubUrl : ranked) {
+            if (result == null) {
+                result = executor.submit(Target.HUB, hubUrl, () -> client.subscribe(hubUrl, topicUrl));
+                continue;
+            }
+            result = result.handle((id, e) -> {
+                if (e == null)
+                    return CompletableFuture.completedFuture(id);
+                logger.info("Could not subscribe to {}, trying hub {}: {}", topicUrl, hubUrl, unwrap(e).toString());
+                return executor.submit(Target.HUB, hubUrl, () -> client.subscribe(hubUrl, topicUrl));
+            }).thenCompose(future -> future);
+        }
+        return result;
+    }
+
+    /**
+     * Give a new subscription to the job's subscriptions for the topic. The job may have been
+     * saved again meanwhile, so they are looked up afresh. If the job no longer lists the
+     * topic the subscription is given up again.
+     */
+    private static void adopt(final Job<?, ?> job, final String topicUrl, final String id) {
+        val trigger = WebSubJobRouter.getTrigger(job);
+        boolean used = false;
+        if (trigger.isPresent()) {
+            for (val sub : trigger.get().getSubscriptions()) {
+                if (!sub.getTopicUrl().equals(topicUrl) || sub.getId() != null) continue;
+                sub.setId(id);
+                getRouter().put(job.getFullName(), trigger.get(), sub);
+                used = true;
+            }
+        }
+        if (used) {
+            logger.info("Saving id {} for job {}", id, job.getFullName());
+            save(job);
+        } else if (getRouter().get(id).isEmpty()) {
+            WebSubSharedResources.getInstance().getUnsubscribeQueue().addAll(Collections.singleton(id));
+        }
+    }
+
+    private static Throwable unwrap(final Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    private static WebSubJobRouter getRouter() {
+        return WebSubSharedResources.getInstance().getRouter();
+    }
+
+    /**
+     * Save the job so subscription ids are kept across restarts.
+     */
+    static void save(final Item item) {
+        try {
+            item.save();
+        } catch (IOException e) {
+            logger.warn("Could not save subscription ids for job {}: {}", item.getFullName(), e.toString());
+        }
+    }
+}
@@ -1,11 +1,17 @@
 package io.jenkins.plugins.websub;
 
+import com.google.common.io.ByteStreams;
 import hudson.Extension;
 import hudson.init.InitMilestone;
 import hudson.init.Initializer;
+import hudson.init.Terminator;
 import hudson.model.UnprotectedRootAction;
 import hudson.security.csrf.CrumbExclusion;
 import hudson.util.HttpResponses;
+import hudson.util.Secret;
+import io.jenkins.plugins.websub.relay.RelayBatch;
+import io.jenkins.plugins.websub.relay.WebSubRelay;
+import io.jenkins.plugins.websub.subscriber.CallbackResponse;
 import lombok.val;
 import org.kohsuke.stapler.HttpResponse;
 import org.kohsuke.stapler.StaplerRequest;
@@ -15,10 +21,16 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import static io.jenkins.plugins.websub.utils.Generic.fmt;
+import static jenkins.model.ParameterizedJobMixIn.ParameterizedJob;
 
 /**
  * Exposes listening endpoint on Jenkins
@@ -35,6 +47,14 @@ public class WebSubRequestReceiver
     // URL format: {jenkins-base-url}{prefix}/callback
     // jenkins-base-url always has trailing /.
     private static final String URL_PREFIX = fmt("{}/callback", PLUGIN_URL_NAME);
+    // Largest batch accepted from a relay.
+    private static final long MAX_RELAY_BATCH_BYTES = 64 * 1024 * 1024;
+    // Relayed batches already handled, so one sent again is refused.
+    private static final RelayBatch.Accepted RELAYED_BATCHES = new RelayBatch.Accepted();
+    // How often state that survives restarts is written out.
+    private static final long SAVE_INTERVAL_MINUTES = 10;
+    // How often every job is checked for missing or unused subscriptions.
+    private static final long RESYNC_INTERVAL_MINUTES = 60;
 
     /**
      * Stapler action method invoked when one of our callback methods is
@@ -47,7 +67,9 @@ public class WebSubRequestReceiver
     public HttpResponse doCallback(final StaplerRequest request) {
         logger.debug("doCallback()");
         try {
-            return WebSubSharedResources.getInstance().getClient().handleRequest(request);
+            val callback = new ServletCallbackRequest(request);
+            return ServletCallbackResponse.toStapler(
+                    WebSubSharedResources.getInstance().getClientFor(callback.getCallbackId()).handleRequest(callback));
         } catch (Exception e) {
             // If client retrieval failed.
             logger.error("Could not retrieve client. Caused by: ", e);
@@ -55,12 +77,85 @@ public class WebSubRequestReceiver
         }
     }
 
+    /**
+     * Stapler action method invoked with a batch of callbacks captured by a relay, see
+     * {@link WebSubRelay}. Each is handled as if the hub had sent it here.
+     *
+     * ".../relay" maps to doRelay
+     */
+    public HttpResponse doRelay(final StaplerRequest request) throws IOException {
+        val secret = Secret.toString(WebSubGlobalConfiguration.get().getRelaySecret());
+        if (secret.isEmpty())
+            return HttpResponses.notFound();
+        if (!request.getMethod().equals("POST"))
+            return HttpResponses.status(HttpServletResponse.SC_METHOD_NOT_ALLOWED);
+        if (request.getContentLength() > MAX_RELAY_BATCH_BYTES)
+            return HttpResponses.status(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        val body = ByteStreams.toByteArray(ByteStreams.limit(request.getInputStream(), MAX_RELAY_BATCH_BYTES + 1));
+        if (body.length > MAX_RELAY_BATCH_BYTES)
+            return HttpResponses.status(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+        if (!RelayBatch.verify(body, request.getHeader(RelayBatch.SIGNATURE_HEADER), secret)) {
+            logger.warn("Ignoring relayed batch with bad signature");
+            return HttpResponses.forbidden();
+        }
+        RelayBatch.Decoded batch;
+        try {
+            batch = RelayBatch.decode(body);
+        } catch (IOException e) {
+            logger.warn("Ignoring relayed batch: {}", e.getMessage());
+            return HttpResponses.error(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+        }
+        if (!RELAYED_BATCHES.add(batch)) {
+            logger.warn("Ignoring relayed batch {} sent again", batch.getId());
+            return HttpResponses.status(HttpServletResponse.SC_CONFLICT);
+        }
+
+        val resources = WebSubSharedResources.getInstance();
+        final List<CallbackResponse> responses = new ArrayList<>();
+        for (val callback : batch.getRequests()) {
+            try {
+                responses.add(resources.getClientFor(callback.getCallbackId()).handleRequest(callback));
+            } catch (Exception e) {
+                logger.error("Error handling relayed callback {}", callback.getCallbackId(), e);
+                responses.add(CallbackResponse.status(HttpServletResponse.SC_INTERNAL_SERVER_ERROR));
+            }
+        }
+        logger.debug("Handled {} relayed callbacks", batch.getRequests().size());
+        val encoded = RelayBatch.encodeResponses(responses);
+        return (req, rsp, node) -> {
+            rsp.setContentType(RelayBatch.CONTENT_TYPE);
+            rsp.setContentLength(encoded.length);
+            rsp.getOutputStream().write(encoded);
+        };
+    }
+
     @Initializer(after=InitMilestone.JOB_LOADED)
     public static void init() {
         // For now we just pass our prefix along. The SharedResources handle the case where the
         // Jenkins URL is not set.
         val resources = WebSubSharedResources.getInstance();
         resources.setPrefix(URL_PREFIX);
+        // Restored leases resume as they were, without contacting their hubs.
+        resources.loadRegistry();
+        val jobs = Jenkins.getInstance().getAllItems(ParameterizedJob.class);
+        resources.forgetUnknownIds(jobs);
+        resources.getRouter().rebuild(jobs);
+        resources.applyConfiguration(WebSubGlobalConfiguration.get());
+        resources.loadDiscoveryCache();
+        Timer.get().scheduleWithFixedDelay(
+                resources::saveDiscoveryCache, SAVE_INTERVAL_MINUTES, SAVE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        Timer.get().scheduleWithFixedDelay(
+                resources::saveRegistry, SAVE_INTERVAL_MINUTES, SAVE_INTERVAL_MINUTES, TimeUnit.MINUTES);
+        // Jobs whose saved ids were forgotten above are subscribed again by WebSubStartupResubscriber.
+        Timer.get().scheduleWithFixedDelay(resources.getReconciler()::resync,
+                RESYNC_INTERVAL_MINUTES, RESYNC_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    @Terminator
+    public static void shutdown() {
+        WebSubSharedResources.getInstance().shutdownClient();
+        WebSubSharedResources.getInstance().saveDiscoveryCache();
+        WebSubSharedResources.getInstance().closeRegistry();
     }
 
     /**
@@ -73,7 +168,7 @@ public class WebSubRequestReceiver
             final FilterChain chain)
             throws IOException, ServletException {
         final String path = request.getPathInfo();
-        if (path != null && path.startsWith("/" + URL_PREFIX)) {
+        if (path != null && (path.startsWith("/" + URL_PREFIX) || path.equals("/" + WebSubRelay.JENKINS_PATH))) {
             // We are responsible for invoking the rest of the chain.
             chain.doFilter(request, response);
             // No CSRF token required.
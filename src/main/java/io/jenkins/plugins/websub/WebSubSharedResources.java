@@ -1,16 +1,38 @@
 package io.jenkins.plugins.websub;
 
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import hudson.util.Secret;
+import io.jenkins.plugins.websub.subscriber.DiscoveryCache;
+import io.jenkins.plugins.websub.subscriber.PooledHttpTransport;
 import io.jenkins.plugins.websub.subscriber.WebSubSubscriber;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscription;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscriptionJournal;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscriptionJournal.SecretCodec;
 import io.jenkins.plugins.websub.subscriber.WebSubSubscriptionRegistry;
+import jenkins.model.Jenkins;
 import jenkins.model.JenkinsLocationConfiguration;
 import lombok.Getter;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import jenkins.util.Timer;
+import javax.annotation.Nullable;
 import lombok.Setter;
 import lombok.val;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import static io.jenkins.plugins.websub.utils.Generic.fmt;
+import static jenkins.model.ParameterizedJobMixIn.ParameterizedJob;
 
 /**
  * Global shared resources for the plugin.
@@ -18,13 +40,16 @@ import static io.jenkins.plugins.websub.utils.Generic.fmt;
  * Performs lazy initialization of resources.
  */
 final class WebSubSharedResources {
+    private static final Logger logger = LoggerFactory.getLogger(WebSubSharedResources.class);
+    // Deleting a folder reports each job separately, collect them into one batch.
+    private static final long UNSUBSCRIBE_BATCH_DELAY_SECONDS = 5;
     private WebSubSharedResources() {}
-    private static WebSubSharedResources instance;
+    // Initialized on first use, class initialization makes it safe across threads.
+    private static class Holder {
+        static final WebSubSharedResources INSTANCE = new WebSubSharedResources();
+    }
     public static WebSubSharedResources getInstance() {
-        if (instance == null) {
-            instance = new WebSubSharedResources();
-        }
-        return instance;
+        return Holder.INSTANCE;
     }
 
     /**
@@ -36,48 +61,407 @@ final class WebSubSharedResources {
         }
     }
 
-    private WebSubSubscriber client;
+    // Replaced as a whole when the callback base URL changes, see getClient().
+    private final AtomicReference<WebSubSubscriber> client = new AtomicReference<>();
+    // Moves away from previous clients, oldest first.
+    private final List<WebSubClientMigration> migrations = new CopyOnWriteArrayList<>();
+    // Connection pool shared by every request the client makes, and its limits.
+    private ApacheHttpTransport transport;
+    private int transportMaxConnections;
+    private int transportMaxConnectionsPerHost;
     @Getter private WebSubSubscriptionRegistry registry = new WebSubSubscriptionRegistry();
-    // Map from id to job name, maintained by ItemListener.
-    @Getter private Map<String, String> jobMap = new HashMap<>();
+    // Routes from callback id to job, maintained by ItemListener.
+    @Getter private final WebSubJobRouter router = new WebSubJobRouter();
+    // Subscriptions jobs can share, when enabled.
+    @Getter private final WebSubSharedSubscriptions sharedSubscriptions = new WebSubSharedSubscriptions();
+    private WebSubNotificationQueue notificationQueue;
+    private WebSubOperationExecutor operationExecutor;
+    private WebSubUnsubscribeQueue unsubscribeQueue;
+    private WebSubReconciler reconciler;
+    private WebSubCallbackListener callbackListener;
+    // Progress of bringing subscriptions back after startup.
+    @Getter private final WebSubStartupResubscriber startup = new WebSubStartupResubscriber();
+    @Getter private final DiscoveryCache discoveryCache = new DiscoveryCache(
+            Duration.ofMinutes(WebSubGlobalConfiguration.DEFAULT_DISCOVERY_CACHE_MINUTES),
+            Duration.ofMinutes(WebSubGlobalConfiguration.DEFAULT_DISCOVERY_FAILURE_CACHE_MINUTES));
     // Prefix used after jenkins URL. Should not have leading '/'.
     @Setter private String prefix;
 
-    private String jenkinsUrl;
+    synchronized WebSubNotificationQueue getNotificationQueue() {
+        if (notificationQueue == null) {
+            val config = WebSubGlobalConfiguration.get();
+            notificationQueue = new WebSubNotificationQueue(
+                    config.getIngestWorkers(), config.getIngestQueueCapacity());
+        }
+        return notificationQueue;
+    }
+
+    synchronized WebSubOperationExecutor getOperationExecutor() {
+        if (operationExecutor == null) {
+            val config = WebSubGlobalConfiguration.get();
+            operationExecutor = new WebSubOperationExecutor(
+                    config.getOperationThreads(), config.getPerHostLimit(), config.getPerHubLimit(),
+                    Duration.ofSeconds(config.getOperationTimeoutSeconds()));
+        }
+        return operationExecutor;
+    }
+
+    synchronized WebSubUnsubscribeQueue getUnsubscribeQueue() {
+        if (unsubscribeQueue == null) {
+            unsubscribeQueue = new WebSubUnsubscribeQueue(
+                    Timer.get(), id -> router.get(id).isEmpty(), this::unsubscribe,
+                    Duration.ofSeconds(UNSUBSCRIBE_BATCH_DELAY_SECONDS), WebSubGlobalConfiguration.get().getUnsubscribeRate());
+        }
+        return unsubscribeQueue;
+    }
+
+    synchronized WebSubCallbackListener getCallbackListener() {
+        if (callbackListener == null)
+            callbackListener = new WebSubCallbackListener(prefix);
+        return callbackListener;
+    }
+
+    synchronized WebSubReconciler getReconciler() {
+        if (reconciler == null)
+            reconciler = new WebSubReconciler(Timer.get());
+        return reconciler;
+    }
+
+    /**
+     * Unsubscribe from a subscription no job routes to any more.
+     */
+    private void unsubscribe(final String id) {
+        sharedSubscriptions.forget(id);
+        val subscription = registry.getById(id);
+        if (!subscription.isPresent() || subscription.get().getHubUrl() == null) return;
+        // A rejected subscription is already gone from the hub.
+        if (subscription.get().getState() != WebSubSubscription.State.ACTIVE) return;
+        val hubUrl = subscription.get().getHubUrl();
+        val topicUrl = subscription.get().getTopicUrl();
+        WebSubSubscriber client;
+        try {
+            client = getClient();
+        } catch (WebSubConfigurationException e) {
+            logger.warn("Cannot unsubscribe from {}: {}", topicUrl, e.getMessage());
+            return;
+        }
+        getOperationExecutor().submit(WebSubOperationExecutor.Target.HUB, hubUrl, () -> {
+            // A job may have taken the subscription up again while this waited.
+            if (router.get(id).isEmpty())
+                client.unsubscribe(hubUrl, topicUrl, id);
+            return null;
+        }).whenComplete((v, e) -> {
+            if (e != null) {
+                Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+                logger.warn("Could not unsubscribe from {}: {}", topicUrl, cause.toString());
+            }
+        });
+    }
+
+    /**
+     * Propagate saved global configuration to live resources.
+     */
+    synchronized void applyConfiguration(final WebSubGlobalConfiguration config) {
+        getNotificationQueue().resize(config.getIngestWorkers(), config.getIngestQueueCapacity());
+        getOperationExecutor().reconfigure(
+                config.getOperationThreads(), config.getPerHostLimit(), config.getPerHubLimit(),
+                Duration.ofSeconds(config.getOperationTimeoutSeconds()));
+        getUnsubscribeQueue().setRate(config.getUnsubscribeRate());
+        discoveryCache.setTtl(
+                Duration.ofMinutes(config.getDiscoveryCacheMinutes()),
+                Duration.ofMinutes(config.getDiscoveryFailureCacheMinutes()));
+        getCallbackListener().listen(config.getCallbackListenerPort());
+        val current = client.get();
+        if (current != null) {
+            applyOptions(current.getOptions(), config);
+            current.setTransport(getTransport(config));
+            try {
+                // Moves subscriptions over if the callback URL changed.
+                getClient();
+            } catch (WebSubConfigurationException e) {
+                logger.warn("Cannot update callback URL: {}", e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The shared transport, replaced if its limits changed. A replaced transport is shut down
+     * once requests already using it have had time to finish.
+     */
+    private synchronized ApacheHttpTransport getTransport(final WebSubGlobalConfiguration config) {
+        if (transport != null && transportMaxConnections == config.getMaxConnections()
+                && transportMaxConnectionsPerHost == config.getMaxConnectionsPerHost())
+            return transport;
+        val previous = transport;
+        transportMaxConnections = config.getMaxConnections();
+        transportMaxConnectionsPerHost = config.getMaxConnectionsPerHost();
+        transport = PooledHttpTransport.create(transportMaxConnections, transportMaxConnectionsPerHost);
+        if (previous != null)
+            Timer.get().schedule(() -> shutdown(previous), config.getOperationTimeoutSeconds(), TimeUnit.SECONDS);
+        return transport;
+    }
+
+    private static void shutdown(final ApacheHttpTransport transport) {
+        try {
+            transport.shutdown();
+        } catch (IOException e) {
+            logger.warn("Could not shut down HTTP transport: {}", e.toString());
+        }
+    }
+
+    private static Path getDiscoveryCacheFile() {
+        return new File(Jenkins.getInstance().getRootDir(), "websub-trigger/discovery-cache.bin").toPath();
+    }
+
+    /**
+     * Restore discovery results saved by a previous run, if enabled.
+     */
+    void loadDiscoveryCache() {
+        if (!WebSubGlobalConfiguration.get().isPersistDiscoveryCache()) return;
+        try {
+            discoveryCache.load(getDiscoveryCacheFile());
+        } catch (IOException e) {
+            logger.warn("Could not load discovery cache: {}", e.toString());
+        }
+    }
+
+    /**
+     * Save discovery results for the next run, if enabled.
+     */
+    void saveDiscoveryCache() {
+        if (!WebSubGlobalConfiguration.get().isPersistDiscoveryCache()) return;
+        try {
+            discoveryCache.save(getDiscoveryCacheFile());
+        } catch (IOException e) {
+            logger.warn("Could not save discovery cache: {}", e.toString());
+        }
+    }
+
+    // Subscription secrets are stored encrypted with the instance key, like other Jenkins secrets.
+    private static final SecretCodec SECRET_CODEC = new SecretCodec() {
+        @Override
+        public String encode(final String secret) {
+            return Secret.fromString(secret).getEncryptedValue();
+        }
+
+        @Override
+        public String decode(final String stored) {
+            val secret = Secret.decrypt(stored);
+            return secret == null ? null : secret.getPlainText();
+        }
+    };
+
+    private static Path getRegistryDirectory() {
+        return new File(Jenkins.getInstance().getRootDir(), "websub-trigger/registry").toPath();
+    }
+
+    /**
+     * Restore subscriptions saved by a previous run and record changes from now on.
+     */
+    void loadRegistry() {
+        try {
+            registry.restore(new WebSubSubscriptionJournal(getRegistryDirectory(), SECRET_CODEC));
+            sharedSubscriptions.addAll(registry.getAll());
+        } catch (IOException e) {
+            logger.warn("Could not load subscriptions, they will not be saved: {}", e.toString());
+        }
+    }
+
+    /**
+     * Compact the saved subscriptions, if they changed.
+     */
+    void saveRegistry() {
+        try {
+            registry.snapshot();
+        } catch (IOException e) {
+            logger.warn("Could not save subscriptions: {}", e.toString());
+        }
+    }
+
+    /**
+     * Save subscriptions for the next run and stop recording changes.
+     */
+    void closeRegistry() {
+        try {
+            registry.close();
+        } catch (IOException e) {
+            logger.warn("Could not save subscriptions: {}", e.toString());
+        }
+    }
+
+    /**
+     * Clear ids saved with jobs that have no subscription in the registry, so they are
+     * subscribed again rather than routed to a subscription the hub no longer knows.
+     */
+    void forgetUnknownIds(final Iterable<? extends ParameterizedJob> jobs) {
+        for (val job : jobs) {
+            WebSubJobRouter.getTrigger(job).ifPresent(trigger -> {
+                for (val sub : trigger.getSubscriptions()) {
+                    if (sub.getId() != null && !registry.getById(sub.getId()).isPresent()) {
+                        logger.info("No saved subscription {} for {} in {}", sub.getId(), sub.getTopicUrl(), job.getFullName());
+                        sub.setId(null);
+                    }
+                }
+            });
+        }
+    }
+
+    private static void applyOptions(final WebSubSubscriber.Options options, final WebSubGlobalConfiguration config) {
+        options.setMaxPayloadBytes(config.getMaxPayloadBytes());
+        options.setPayloadSpillThreshold(config.getPayloadSpillThreshold());
+        options.setMaxDiscoveryBytes(config.getMaxDiscoveryBytes());
+        options.setRenewalFraction(config.getRenewalPercent() / 100.0);
+        options.setVerificationTimeout(Duration.ofMinutes(config.getVerificationTimeoutMinutes()));
+        options.setMaxPendingSubscriptions(config.getMaxPendingSubscriptions());
+        options.setAllowInsecureSecrets(config.isAllowInsecureSecrets());
+        // A request blocked on its socket ignores the interrupt at the operation deadline and
+        // keeps its slot, so it must not be allowed to wait on the socket for longer.
+        options.setConnectTimeout(Duration.ofSeconds(
+                Math.min(config.getConnectTimeoutSeconds(), config.getOperationTimeoutSeconds())));
+        options.setReadTimeout(Duration.ofSeconds(
+                Math.min(config.getReadTimeoutSeconds(), config.getOperationTimeoutSeconds())));
+        options.setRequestGzip(config.isRequestGzip());
+        options.setMaxRedirects(config.getMaxRedirects());
+        options.setFollowMovedPermanently(config.isFollowMovedPermanently());
+    }
+
+    /**
+     * Stop background work of the client, if one was created.
+     */
+    synchronized void shutdownClient() {
+        if (callbackListener != null)
+            callbackListener.stop();
+        val current = client.get();
+        if (current != null)
+            current.stop();
+        for (val migration : migrations) {
+            migration.cancel();
+            migration.getFrom().stop();
+        }
+        if (transport != null) {
+            shutdown(transport);
+            transport = null;
+        }
+    }
 
     /**
      * Retrieve the subscriber client.
      *
+     * When the Jenkins URL changes a client for the new base URL replaces the current one, and
+     * live subscriptions are moved over in the background, see {@link WebSubClientMigration}.
+     *
      * @return the client
      * @throws WebSubConfigurationException if we cannot retrieve the instance configuration,
      *   or the Jenkins URL is not set.
      */
     WebSubSubscriber getClient() throws WebSubConfigurationException {
-        // We may have just started up and have existing subscriptions.
-        // Or we may have not started up but
         val config = JenkinsLocationConfiguration.get();
         if (config == null) {
             throw new WebSubConfigurationException("Jenkins configuration not available.");
         }
 
-        val baseUrl = config.getUrl();
-        if (baseUrl == null) {
+        val callbackBase = getCallbackBase(config.getUrl());
+        if (callbackBase == null) {
             throw new WebSubConfigurationException("Jenkins URL must be configured.");
-        } else if (jenkinsUrl == null) {
-            // TODO: Gracefully handle existing subscriptions that were loaded from
-            //  disk. Might handle this at init time instead.
-            jenkinsUrl = baseUrl;
-        } else if (!jenkinsUrl.equals(baseUrl)) {
-            // TODO: Gracefully handle client configuration update so we don't
-            //  lose subscriptions that were pending.
-            jenkinsUrl = baseUrl;
-            client = null;
         }
 
-        if (client == null) {
-            client = new WebSubTriggerSubscriber(getRegistry(), fmt("{}{}", jenkinsUrl, prefix));
+        val baseUrl = fmt("{}{}", callbackBase, prefix);
+        while (true) {
+            val current = client.get();
+            if (current != null && current.getOptions().getBaseUrl().equals(baseUrl))
+                return current;
+            val created = newClient(baseUrl);
+            // Another thread may have replaced it first, then use that one.
+            if (!client.compareAndSet(current, created))
+                continue;
+            created.start();
+            if (current != null)
+                migrate(current, created);
+            return created;
         }
+    }
 
-        return client;
+    /**
+     * @return where hubs send callbacks, with trailing '/': a relay if configured, the callback
+     *   listener if it is listening, otherwise Jenkins. Null if that depends on a Jenkins URL
+     *   that is not set.
+     */
+    @Nullable
+    private String getCallbackBase(@Nullable final String jenkinsUrl) {
+        val config = WebSubGlobalConfiguration.get();
+        val relayUrl = config.getRelayUrl();
+        if (relayUrl != null)
+            return relayUrl.endsWith("/") ? relayUrl : relayUrl + "/";
+        // A listener that could not bind its port must not take subscriptions away from Jenkins.
+        if (config.getCallbackListenerPort() <= 0 || !getCallbackListener().isListening())
+            return jenkinsUrl;
+        val listenerUrl = config.getCallbackListenerUrl();
+        if (listenerUrl != null)
+            return listenerUrl.endsWith("/") ? listenerUrl : listenerUrl + "/";
+        if (jenkinsUrl == null)
+            return null;
+        // The listener speaks plain HTTP, on the same host as Jenkins.
+        return fmt("http://{}:{}/", URI.create(jenkinsUrl).getHost(), config.getCallbackListenerPort());
+    }
+
+    private WebSubSubscriber newClient(final String baseUrl) {
+        val options = new WebSubSubscriber.Options(baseUrl);
+        val globalConfig = WebSubGlobalConfiguration.get();
+        applyOptions(options, globalConfig);
+        val created = new WebSubTriggerSubscriber(getRegistry(), options);
+        created.setTransport(getTransport(globalConfig));
+        created.setDiscoveryCache(discoveryCache);
+        return created;
+    }
+
+    private void migrate(final WebSubSubscriber from, final WebSubSubscriber to) {
+        logger.info("Jenkins URL changed, moving subscriptions from {} to {}",
+                from.getOptions().getBaseUrl(), to.getOptions().getBaseUrl());
+        for (val migration : migrations)
+            migration.cancel();
+        val migration = new WebSubClientMigration(from, to);
+        migrations.add(migration);
+        Timer.get().submit(() -> {
+            try {
+                migration.start();
+            } catch (RuntimeException e) {
+                // Renewals move whatever is left, with the new base URL.
+                logger.error("Error moving subscriptions", e);
+            }
+        });
+    }
+
+    /**
+     * @return moves away from previous clients still in progress, oldest first
+     */
+    List<WebSubClientMigration> getMigrations() {
+        return Collections.unmodifiableList(migrations);
+    }
+
+    /**
+     * Stop a client that was moved away from and has nothing pending any more.
+     */
+    void retire(final WebSubClientMigration migration) {
+        migrations.remove(migration);
+        migration.getFrom().stop();
+    }
+
+    /**
+     * The client to handle a callback request: a previous one while it awaits verification
+     * for the callback id, since only it knows the request, otherwise the current one.
+     */
+    WebSubSubscriber getClientFor(final String callbackId) throws WebSubConfigurationException {
+        for (val migration : migrations) {
+            if (migration.getFrom().isPending(callbackId))
+                return migration.getFrom();
+        }
+        return getClient();
+    }
+
+    /**
+     * @return whether any client awaits verification for the callback id
+     */
+    boolean isPending(final String callbackId) throws WebSubConfigurationException {
+        return getClientFor(callbackId).isPending(callbackId);
     }
 }
@@ -0,0 +1,84 @@
+package io.jenkins.plugins.websub;
+
+import io.jenkins.plugins.websub.subscriber.WebSubSubscription;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import lombok.Value;
+import lombok.val;
+
+/**
+ * Index of hub subscriptions shared between jobs, one per topic.
+ *
+ * Jobs watching the same topic through one of the same hubs get the callback id of a single
+ * subscription instead of making their own. The jobs using an id are counted by their routes
+ * in {@link WebSubJobRouter}, and the subscription is forgotten here once it is rejected,
+ * fails, or is unsubscribed after its last job goes.
+ */
+class WebSubSharedSubscriptions {
+    @Value
+    private static class Key {
+        String hubUrl;
+        String topicUrl;
+    }
+
+    // Callback id, or the request in progress for it, by hub and topic.
+    private final Map<Key, CompletableFuture<String>> ids = new ConcurrentHashMap<>();
+
+    /**
+     * Get the callback id of the subscription to a topic, subscribing if there is none yet.
+     * Jobs asking while a subscription request is in progress wait on that request.
+     *
+     * @param hubUrls hubs the topic is published through, a subscription through any of them
+     *   will do. A new one is indexed under the first, whichever hub it ends up with.
+     * @param subscribe sends the subscription request, completing with its callback id
+     */
+    CompletableFuture<String> acquire(
+            final List<String> hubUrls, final String topicUrl, final Supplier<CompletableFuture<String>> subscribe) {
+        for (val hubUrl : hubUrls) {
+            val existing = ids.get(new Key(hubUrl, topicUrl));
+            if (existing != null)
+                return existing;
+        }
+        val key = new Key(hubUrls.get(0), topicUrl);
+        val future = ids.computeIfAbsent(key, k -> subscribe.get());
+        future.whenComplete((id, e) -> {
+            if (e != null)
+                ids.remove(key, future);
+        });
+        return future;
+    }
+
+    /**
+     * Make existing subscriptions available for sharing, e.g. those restored at startup.
+     */
+    void addAll(final Iterable<WebSubSubscription> subscriptions) {
+        for (val subscription : subscriptions) {
+            if (subscription.getHubUrl() == null
+                    || subscription.getState() != WebSubSubscription.State.ACTIVE)
+                continue;
+            ids.putIfAbsent(new Key(subscription.getHubUrl(), subscription.getTopicUrl()),
+                    CompletableFuture.completedFuture(subscription.getId()));
+        }
+    }
+
+    /**
+     * Hand out a new subscription in place of the one it replaces.
+     */
+    void replace(final String oldId, final WebSubSubscription subscription) {
+        forget(oldId);
+        addAll(Collections.singleton(subscription));
+    }
+
+    /**
+     * Stop handing out a callback id, so the next job subscribes afresh.
+     * This is rare enough that a scan is fine.
+     */
+    void forget(final String id) {
+        ids.values().removeIf(future ->
+                future.isDone() && !future.isCompletedExceptionally() && id.equals(future.join()));
+    }
+}
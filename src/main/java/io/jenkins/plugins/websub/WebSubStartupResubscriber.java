@@ -0,0 +1,187 @@
+package io.jenkins.plugins.websub;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import io.jenkins.plugins.websub.WebSubOperationExecutor.Target;
+import io.jenkins.plugins.websub.WebSubSharedResources.WebSubConfigurationException;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscriber;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscription;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscriptionRegistry;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletionException;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import lombok.Getter;
+import lombok.val;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.stream.Collectors.toList;
+import static jenkins.model.ParameterizedJobMixIn.ParameterizedJob;
+
+/**
+ * Brings every trigger's subscriptions back after Jenkins starts, in the background.
+ *
+ * Leases restored from disk that ran out while Jenkins was down, or are past their renewal
+ * point, are renewed closest to expiry first. Only a few are sent at once, so the operation
+ * executor still has room for jobs being saved meanwhile. Jobs whose subscriptions were not
+ * restored are handed to {@link WebSubReconciler}, which subscribes them in batches.
+ */
+public class WebSubStartupResubscriber {
+    private static final Logger logger = LoggerFactory.getLogger(WebSubStartupResubscriber.class);
+    // Log progress every this many renewals.
+    private static final int PROGRESS_INTERVAL = 100;
+
+    // Renewals not started yet, closest to expiry first, guarded by this.
+    private final Deque<WebSubSubscription> queue = new ArrayDeque<>();
+    private int running;
+    private int concurrency;
+    private int total;
+    private int renewed;
+    private int failed;
+    @Getter private volatile int jobsToSubscribe;
+
+    WebSubStartupResubscriber() {}
+
+    @Initializer(after = InitMilestone.COMPLETED)
+    @SuppressWarnings("unused") // Used by Jenkins.
+    public static void init() {
+        // Hubs can be slow, don't hold up startup for them.
+        Timer.get().submit(() -> {
+            try {
+                WebSubSharedResources.getInstance().getStartup().start();
+            } catch (RuntimeException e) {
+                // Left to the periodic renewals and resync.
+                logger.error("Error restoring subscriptions", e);
+            }
+        });
+    }
+
+    void start() {
+        val resources = WebSubSharedResources.getInstance();
+        final Set<String> jobs = new LinkedHashSet<>();
+        final Set<String> ids = new HashSet<>();
+        for (val job : Jenkins.getInstance().getAllItems(ParameterizedJob.class)) {
+            WebSubJobRouter.getTrigger(job).ifPresent(trigger -> {
+                for (val sub : trigger.getSubscriptions()) {
+                    if (sub.getId() == null)
+                        jobs.add(job.getFullName());
+                    else
+                        ids.add(sub.getId());
+                }
+            });
+        }
+        jobsToSubscribe = jobs.size();
+        resources.getReconciler().markDirty(jobs);
+
+        WebSubSubscriber client;
+        try {
+            client = resources.getClient();
+        } catch (WebSubConfigurationException e) {
+            logger.warn("Cannot renew restored subscriptions: {}", e.getMessage());
+            return;
+        }
+        renew(ids, resources.getRegistry(), client, resources.getOperationExecutor(),
+                WebSubGlobalConfiguration.get().getStartupConcurrency());
+    }
+
+    /**
+     * Renew the subscriptions that are due, closest to expiry first and only a few at once.
+     *
+     * @param ids callback ids jobs route to
+     * @param concurrency most renewals in progress at once
+     */
+    void renew(final Set<String> ids, final WebSubSubscriptionRegistry registry, final WebSubSubscriber client,
+               final WebSubOperationExecutor executor, final int concurrency) {
+        // Shared subscriptions are listed by many jobs but renewed once.
+        final List<WebSubSubscription> due = ids.stream()
+                .map(registry::getById)
+                .filter(Optional::isPresent)
+                .map(Optional::get)
+                .filter(client::isRenewalDue)
+                .sorted(Comparator.comparing(WebSubSubscription::getExpiration))
+                .collect(toList());
+        logger.info("Restoring subscriptions: {} leases to renew, {} jobs to subscribe", due.size(), jobsToSubscribe);
+        synchronized (this) {
+            this.concurrency = concurrency;
+            total = due.size();
+            queue.addAll(due);
+        }
+        startNext(client, executor);
+    }
+
+    /**
+     * Start renewals until the limit is reached. Each one starts the next when it finishes.
+     */
+    private void startNext(final WebSubSubscriber client, final WebSubOperationExecutor executor) {
+        while (true) {
+            final WebSubSubscription subscription;
+            synchronized (this) {
+                if (queue.isEmpty() || running >= concurrency) return;
+                subscription = queue.poll();
+                running++;
+            }
+            executor.submit(Target.HUB, subscription.getHubUrl(), () -> {
+                // The renewal scheduler may have got to it first.
+                if (client.isRenewalDue(subscription))
+                    client.renewNow(subscription);
+                return null;
+            }).whenComplete((v, e) -> {
+                if (e != null) {
+                    val cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                    logger.warn("Could not renew subscription {} to {}, leaving it to regular renewals: {}",
+                            subscription.getId(), subscription.getTopicUrl(), cause.toString());
+                }
+                finished(e == null);
+                startNext(client, executor);
+            });
+        }
+    }
+
+    private synchronized void finished(final boolean success) {
+        running--;
+        if (success)
+            renewed++;
+        else
+            failed++;
+        val done = renewed + failed;
+        if (done == total)
+            logger.info("Renewed {} of {} restored subscriptions, {} failed", renewed, total, failed);
+        else if (done % PROGRESS_INTERVAL == 0)
+            logger.info("Renewed {} of {} restored subscriptions so far", done, total);
+    }
+
+    public synchronized int getTotal() {
+        return total;
+    }
+
+    public synchronized int getRenewed() {
+        return renewed;
+    }
+
+    public synchronized int getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return whether every restored lease due for renewal has been tried
+     */
+    public synchronized boolean isFinished() {
+        return renewed + failed == total;
+    }
+
+    /**
+     * @return jobs still waiting for {@link WebSubReconciler} to look at them
+     */
+    @SuppressWarnings("unused") // Used by Jelly template.
+    public int getJobsWaiting() {
+        return WebSubSharedResources.getInstance().getReconciler().getDirtyCount();
+    }
+}
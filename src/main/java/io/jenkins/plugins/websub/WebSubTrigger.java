@@ -6,17 +6,26 @@ import hudson.model.Cause;
 import hudson.model.CauseAction;
 import hudson.model.Item;
 import hudson.model.Job;
+import hudson.model.Queue;
 import hudson.triggers.Trigger;
 import hudson.triggers.TriggerDescriptor;
+import io.jenkins.plugins.websub.subscriber.NotificationPayload;
+import io.jenkins.plugins.websub.utils.Generic.ClosureVal;
+import jenkins.model.Jenkins;
 import jenkins.model.ParameterizedJobMixIn;
 import jenkins.model.ParameterizedJobMixIn.ParameterizedJob;
 import lombok.ToString;
 import lombok.val;
 import org.jenkinsci.Symbol;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import javax.annotation.Nonnull;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
 
 import static io.jenkins.plugins.websub.utils.Generic.fmt;
 import static io.jenkins.plugins.websub.utils.Generic.cast;
@@ -45,6 +54,12 @@ final public class WebSubTrigger extends Trigger<Job<?, ?>> {
 
     private static final int USE_DEFAULT_QUIET_PERIOD = -1;
     private final List<WebSubTriggerSubscription> subscriptions;
+    // Notifications received within this many seconds of the first one are merged into a
+    // single build. 0 to trigger a build per notification.
+    private int coalesceSeconds;
+
+    // Cause of the build currently collecting notifications, guarded by this.
+    private transient WebSubCause pendingCause;
 
     @DataBoundConstructor
     @SuppressWarnings("unused") // Used by Stapler.
@@ -56,31 +71,142 @@ final public class WebSubTrigger extends Trigger<Job<?, ?>> {
         return subscriptions;
     }
 
-    private static class WebSubCause extends Cause {
-        private final WebSubTriggerSubscription subscription;
+    public int getCoalesceSeconds() {
+        return coalesceSeconds;
+    }
+
+    @DataBoundSetter
+    public void setCoalesceSeconds(final int coalesceSeconds) {
+        this.coalesceSeconds = Math.max(0, coalesceSeconds);
+    }
 
-        public WebSubCause(final WebSubTriggerSubscription subscription) {
-            this.subscription = subscription;
+    /**
+     * Cause for a build triggered by one or more notifications.
+     */
+    static class WebSubCause extends Cause {
+        private int count;
+        private long firstArrival;
+        private long lastArrival;
+        private Set<String> topicUrls = new LinkedHashSet<>();
+        // Only meaningful for a single notification.
+        private String id;
+        // The only field of causes recorded before notifications were merged.
+        @Deprecated
+        private WebSubTriggerSubscription subscription;
+
+        WebSubCause(final WebSubTriggerSubscription subscription, final Instant arrival) {
+            this.id = subscription.getId();
+            this.firstArrival = arrival.toEpochMilli();
+            add(subscription, arrival);
         }
 
-        @Override
-        public String getShortDescription() {
-            return fmt("Triggered by notification from {} (id: {})", subscription.getTopicUrl(), subscription.getId());
+        /**
+         * Fill in the fields of a cause from an older build record.
+         */
+        @SuppressWarnings("deprecation")
+        protected synchronized Object readResolve() {
+            if (topicUrls == null)
+                topicUrls = new LinkedHashSet<>();
+            if (subscription != null) {
+                topicUrls.add(subscription.getTopicUrl());
+                id = subscription.getId();
+                subscription = null;
+            }
+            if (count == 0)
+                count = 1;
+            return this;
+        }
+
+        synchronized void add(final WebSubTriggerSubscription subscription, final Instant arrival) {
+            count++;
+            lastArrival = arrival.toEpochMilli();
+            topicUrls.add(subscription.getTopicUrl());
+        }
+
+        public synchronized int getCount() {
+            return count;
+        }
+
+        public Instant getFirstArrival() {
+            return Instant.ofEpochMilli(firstArrival);
         }
 
-        static CauseAction getActionFrom(final WebSubTriggerSubscription subscription) {
-            return new CauseAction(new WebSubCause(subscription));
+        public synchronized Instant getLastArrival() {
+            return Instant.ofEpochMilli(lastArrival);
+        }
+
+        public synchronized List<String> getTopicUrls() {
+            return new ArrayList<>(topicUrls);
+        }
+
+        @Override
+        public synchronized String getShortDescription() {
+            if (count == 1 && !topicUrls.isEmpty())
+                return fmt("Triggered by notification from {} (id: {})", topicUrls.iterator().next(), id);
+            return fmt("Triggered by {} notifications from {} received between {} and {}",
+                    count, String.join(", ", topicUrls), getFirstArrival(), getLastArrival());
         }
     }
 
+    /**
+     * Schedule a build for a received notification.
+     *
+     * With a coalescing window, the first notification schedules a build with a quiet period
+     * of the window length. Later notifications are added to its cause instead of scheduling
+     * again, for as long as the build is still in the queue.
+     *
+     * @param contents the notification body, only valid for the duration of this call.
+     */
     public void trigger(
             final WebSubTriggerSubscription subscription,
             final ImmutableMultimap<String, String> headers,
             final ImmutableMultimap<String, String> params,
-            final String contents) {
-        val cause = WebSubCause.getActionFrom(subscription);
+            final NotificationPayload contents) {
+        val now = Instant.now();
+        if (coalesceSeconds <= 0) {
+            schedule(new WebSubCause(subscription, now), USE_DEFAULT_QUIET_PERIOD);
+            return;
+        }
+        synchronized (this) {
+            if (pendingCause != null && addIfQueued(pendingCause, subscription, now))
+                return;
+            pendingCause = new WebSubCause(subscription, now);
+            // The quiet period keeps the build queued until the window has closed.
+            schedule(pendingCause, coalesceSeconds);
+        }
+    }
+
+    /**
+     * Add a notification to a cause whose build has not left the queue yet. Under the queue
+     * lock, so the build can't start and record its cause meanwhile.
+     *
+     * @return false if the build already left the queue
+     */
+    private boolean addIfQueued(
+            final WebSubCause cause, final WebSubTriggerSubscription subscription, final Instant arrival) {
+        val task = cast(job, Queue.Task.class);
+        if (!task.isPresent()) return false;
+        val queue = Jenkins.getInstance().getQueue();
+        val added = ClosureVal.of(false);
+        Queue.withLock(() -> {
+            for (val item : queue.getItems(task.get())) {
+                val action = item.getAction(CauseAction.class);
+                if (action == null) continue;
+                for (val queued : action.getCauses()) {
+                    if (queued == cause) {
+                        cause.add(subscription, arrival);
+                        added.value = true;
+                        return;
+                    }
+                }
+            }
+        });
+        return added.value;
+    }
+
+    private void schedule(final WebSubCause cause, final int quietPeriod) {
         cast(job, ParameterizedJob.class)
-                .ifPresent(j -> ParameterizedJobMixIn.scheduleBuild2(job, USE_DEFAULT_QUIET_PERIOD, cause));
+                .ifPresent(j -> ParameterizedJobMixIn.scheduleBuild2(job, quietPeriod, new CauseAction(cause)));
     }
 
     // TODO: Is this really required? There's not an instance method for this for external access?
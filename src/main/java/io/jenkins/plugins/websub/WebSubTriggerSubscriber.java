@@ -1,90 +1,89 @@
 package io.jenkins.plugins.websub;
 
+import io.jenkins.plugins.websub.subscriber.CallbackRequest;
+import io.jenkins.plugins.websub.subscriber.CallbackResponse;
+import io.jenkins.plugins.websub.subscriber.NotificationPayload;
 import io.jenkins.plugins.websub.subscriber.WebSubSubscriber;
 import io.jenkins.plugins.websub.subscriber.WebSubSubscription;
 import io.jenkins.plugins.websub.subscriber.WebSubSubscriptionRegistry;
-import io.jenkins.plugins.websub.utils.JavaxServlet;
-import jenkins.model.Jenkins;
-import lombok.Value;
+import io.jenkins.plugins.websub.WebSubNotificationQueue.Notification;
 import lombok.val;
-import org.kohsuke.stapler.StaplerRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
-import java.util.Optional;
-
-import static jenkins.model.ParameterizedJobMixIn.ParameterizedJob;
+import java.time.Instant;
+import java.util.Collections;
+import javax.servlet.http.HttpServletResponse;
 
 class WebSubTriggerSubscriber extends WebSubSubscriber {
     private static final Logger logger = LoggerFactory.getLogger(WebSubTriggerSubscriber.class);
+    // Suggested delay for hubs when we cannot accept more notifications.
+    private static final long RETRY_AFTER_SECONDS = 30;
 
-    WebSubTriggerSubscriber(final WebSubSubscriptionRegistry registry, final String baseUrl) {
-        super(registry, baseUrl);
+    WebSubTriggerSubscriber(final WebSubSubscriptionRegistry registry, final Options options) {
+        super(registry, options);
     }
 
+    /**
+     * Queue the captured notification for delivery to the job, answering the hub with 202
+     * right away. If the queue is full the hub is asked to retry later.
+     */
     @Override
-    protected void handleNotification(final WebSubSubscription subscription, final StaplerRequest request) {
-        logger.info("Received notification for subscription {}", subscription.getId());
-        val result = getJob(subscription.getId());
-
-        if (!result.isPresent()) {
-            logger.warn("No job found for subscription {}", subscription.getId());
-            // TODO: Should we unsubscribe? No, because we don't know the corresponding topic URL.
-            //  we may want to mark this as no good though,
-            return;
+    protected CallbackResponse handleNotification(
+            final WebSubSubscription subscription, final CallbackRequest request,
+            final NotificationPayload payload) {
+        logger.debug("Received notification for subscription {}", subscription.getId());
+        val notification = new Notification(
+                subscription.getId(), request.getHeaders(), request.getParameters(), payload, Instant.now());
+        if (!WebSubSharedResources.getInstance().getNotificationQueue().offer(notification)) {
+            logger.warn("Notification queue full, rejecting notification for {}", subscription.getId());
+            payload.close();
+            return CallbackResponse.status(HttpServletResponse.SC_SERVICE_UNAVAILABLE)
+                    .withHeader("Retry-After", Long.toString(RETRY_AFTER_SECONDS));
         }
-
-        val result2 = result.get();
-        val headers = JavaxServlet.getRequestHeaders(request);
-        val params = JavaxServlet.getRequestParams(request);
-        String body;
-        try {
-            body = JavaxServlet.getRequestBody(request);
-        } catch (IOException e) {
-            logger.error(
-                    "Error reading content from request {} (topic {}) for job {}: {}",
-                    subscription.getId(), result2.getSubscription().getTopicUrl(), result2.getJob().getFullName(), e);
-            return;
-        }
-
-        logger.info("Triggering {}", result2.job.getFullName());
-        result2.getTrigger().trigger(
-                result2.getSubscription(), headers, params, body);
-    }
-
-    @Value
-    private static class SearchResult {
-        ParameterizedJob job;
-        WebSubTrigger trigger;
-        WebSubTriggerSubscription subscription;
+        return CallbackResponse.status(HttpServletResponse.SC_ACCEPTED);
     }
 
     /**
-     * Given a subscription, find the corresponding Jenkins job.
-     * @param subscriptionId
-     * @return
+     * Apply the subscription's own limit if it is stricter than the global one. A shared
+     * subscription takes the most generous limit of the jobs using it, so none of them misses
+     * a notification it would accept.
      */
-    private Optional<SearchResult> getJob(final String subscriptionId) {
-        Jenkins j = Jenkins.getInstance();
-        for(val job : j.getAllItems(ParameterizedJob.class)) {
-            val trigger = (WebSubTrigger) job.getTriggers().get(WebSubTrigger.DESCRIPTOR);
-            if (trigger == null) continue;
-            val sub = trigger.getSubscriptions().stream().filter(s -> subscriptionId.equals(s.getId())).findFirst();
-            if (!sub.isPresent()) continue;
-            return Optional.of(new SearchResult(job, trigger, sub.get()));
+    @Override
+    protected long getMaxPayloadBytes(final WebSubSubscription subscription) {
+        val global = super.getMaxPayloadBytes(subscription);
+        long max = 0;
+        for (val route : WebSubSharedResources.getInstance().getRouter().get(subscription.getId())) {
+            val limit = route.getSubscription().getMaxPayloadBytes();
+            if (limit <= 0)
+                return global;
+            max = Math.max(max, limit);
         }
-        return Optional.empty();
+        return max > 0 ? Math.min(max, global) : global;
     }
 
     @Override
     protected void handleSubscriptionSuccess(final WebSubSubscription subscription) {
         super.handleSubscriptionSuccess(subscription);
+        WebSubSharedResources.getInstance().getSharedSubscriptions().addAll(Collections.singleton(subscription));
         // TODO: Optionally reflect status on job page.
     }
 
     @Override
     protected void handleSubscriptionRejection(final WebSubSubscription subscription) {
+        WebSubSharedResources.getInstance().getSharedSubscriptions().forget(subscription.getId());
         // TODO: Reflect status on job page.
     }
+
+    @Override
+    protected void handleSubscriptionFailed(final WebSubSubscription subscription) {
+        super.handleSubscriptionFailed(subscription);
+        WebSubSharedResources.getInstance().getSharedSubscriptions().forget(subscription.getId());
+    }
+
+    @Override
+    protected void handleUnsubscriptionSuccess(final WebSubSubscription subscription) {
+        super.handleUnsubscriptionSuccess(subscription);
+        WebSubSharedResources.getInstance().getSharedSubscriptions().forget(subscription.getId());
+    }
 }
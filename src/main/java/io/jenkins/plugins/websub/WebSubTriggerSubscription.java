@@ -13,6 +13,7 @@ import lombok.ToString;
 import lombok.val;
 import org.apache.commons.validator.routines.UrlValidator;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 import javax.annotation.Nonnull;
 import org.kohsuke.stapler.QueryParameter;
@@ -22,6 +23,7 @@ import org.kohsuke.stapler.QueryParameter;
  *
  * A subscription contains:
  * - topicUrl - the URL to retrieve for discovery
+ * - maxPayloadBytes - optional limit on notification size, stricter than the global one
  *
  * // TODO
  * - basicAuthCredential - if provided, the credential to use for basic authentication to
@@ -54,11 +56,18 @@ public class WebSubTriggerSubscription
     }
 
     @Getter private final String topicUrl;
-    // Non-persisted id mapping to an actual subscription.
-    @Nullable @Getter @Setter transient String id;
+    // Largest notification body accepted for this subscription, 0 to use the global limit.
+    @Getter private long maxPayloadBytes;
+    // Id of the subscription in the registry, saved with the job so it survives restarts.
+    @Nullable @Getter @Setter String id;
 
     @DataBoundConstructor
     public WebSubTriggerSubscription(String topicUrl) {
         this.topicUrl = checkNotNull(topicUrl, "Topic URL");
     }
+
+    @DataBoundSetter
+    public void setMaxPayloadBytes(final long maxPayloadBytes) {
+        this.maxPayloadBytes = Math.max(0, maxPayloadBytes);
+    }
 }
@@ -0,0 +1,102 @@
+package io.jenkins.plugins.websub;
+
+import com.google.common.util.concurrent.RateLimiter;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import javax.annotation.Nullable;
+import lombok.val;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Unsubscribes from subscriptions no job uses any more, a batch at a time.
+ *
+ * Deleting a folder drops the routes of every job in it at once. Instead of an unsubscribe
+ * request per job straight away, unused callback ids are collected for a short while so a bulk
+ * delete becomes one batch, which is then sent no faster than a set rate so neither the hubs
+ * nor the operation executor are flooded. An id a job takes up again before its turn is
+ * skipped.
+ */
+class WebSubUnsubscribeQueue {
+    private static final Logger logger = LoggerFactory.getLogger(WebSubUnsubscribeQueue.class);
+    // How often the rest of a batch is picked up, the limiter stores about this much.
+    private static final long DRAIN_INTERVAL_MILLIS = 1000;
+
+    private final ScheduledExecutorService timer;
+    private final Predicate<String> isUnused;
+    private final Consumer<String> unsubscribe;
+    private final Duration batchDelay;
+    private final RateLimiter rateLimiter;
+    // Ids waiting, oldest first.
+    private final Set<String> queued = new LinkedHashSet<>();
+    @Nullable private ScheduledFuture<?> drain;
+
+    /**
+     * @param timer runs the batches, owned by the caller
+     * @param isUnused checked just before unsubscribing an id
+     * @param unsubscribe starts unsubscribing an id, without waiting for the hub
+     * @param batchDelay how long ids are collected before a batch starts
+     * @param perSecond most unsubscribe requests started per second
+     */
+    WebSubUnsubscribeQueue(
+            final ScheduledExecutorService timer, final Predicate<String> isUnused,
+            final Consumer<String> unsubscribe, final Duration batchDelay, final double perSecond) {
+        this.timer = timer;
+        this.isUnused = isUnused;
+        this.unsubscribe = unsubscribe;
+        this.batchDelay = batchDelay;
+        this.rateLimiter = RateLimiter.create(perSecond);
+    }
+
+    synchronized void addAll(final Collection<String> ids) {
+        if (ids.isEmpty()) return;
+        queued.addAll(ids);
+        if (drain == null)
+            drain = timer.schedule(this::drain, batchDelay.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    void setRate(final double perSecond) {
+        rateLimiter.setRate(perSecond);
+    }
+
+    synchronized int size() {
+        return queued.size();
+    }
+
+    private void drain() {
+        final List<String> batch = new ArrayList<>();
+        synchronized (this) {
+            drain = null;
+            val it = queued.iterator();
+            while (it.hasNext() && rateLimiter.tryAcquire()) {
+                batch.add(it.next());
+                it.remove();
+            }
+            if (!queued.isEmpty())
+                drain = timer.schedule(this::drain, DRAIN_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        if (!batch.isEmpty())
+            logger.info("Unsubscribing {} unused subscriptions, {} left", batch.size(), size());
+        for (val id : batch) {
+            if (!isUnused.test(id)) {
+                logger.debug("Subscription {} is in use again, keeping it", id);
+                continue;
+            }
+            try {
+                unsubscribe.accept(id);
+            } catch (RuntimeException e) {
+                // Don't drop the rest of the batch.
+                logger.warn("Could not unsubscribe {}", id, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package io.jenkins.plugins.websub.relay;
+
+import com.google.common.io.BaseEncoding;
+import io.jenkins.plugins.websub.subscriber.CallbackResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import javax.annotation.Nullable;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import lombok.Value;
+import lombok.val;
+
+/**
+ * What the relay and Jenkins exchange: a batch of {@link RelayedRequest}s one way, and the
+ * {@link CallbackResponse} for each the other way.
+ *
+ * Batches are signed with a secret the two share, as {@code sha256=hexdigest} in the
+ * {@link #SIGNATURE_HEADER} header, and carry the time they were sent so an old batch can't be
+ * replayed later on. Each also has a random id, so the receiver can refuse one replayed while
+ * it is still recent, see {@link Accepted}.
+ */
+public final class RelayBatch {
+    public static final String SIGNATURE_HEADER = "X-WebSub-Relay-Signature";
+    public static final String CONTENT_TYPE = "application/x-websub-relay-batch";
+    private static final int FORMAT_VERSION = 2;
+    private static final String ALGORITHM = "HmacSHA256";
+    private static final String SIGNATURE_PREFIX = "sha256=";
+    // Oldest batch accepted, also allows for clocks being a little apart.
+    private static final Duration MAX_AGE = Duration.ofMinutes(5);
+
+    private RelayBatch() {}
+
+    /**
+     * A batch as received.
+     */
+    @Value
+    public static class Decoded {
+        String id;
+        Instant sentAt;
+        List<RelayedRequest> requests;
+    }
+
+    /**
+     * Ids of the batches accepted recently, for refusing one sent again. Ids are kept only as
+     * long as {@link #decode} would accept the batch, so this stays small.
+     */
+    public static final class Accepted {
+        // Guarded by this, from id to when the batch becomes too old.
+        private final Map<String, Instant> expiries = new HashMap<>();
+
+        /**
+         * @return true if the batch is new, false if it was already accepted
+         */
+        public synchronized boolean add(final Decoded batch) {
+            val now = Instant.now();
+            expiries.values().removeIf(expiry -> expiry.isBefore(now));
+            if (expiries.containsKey(batch.getId()))
+                return false;
+            expiries.put(batch.getId(), batch.getSentAt().plus(MAX_AGE));
+            return true;
+        }
+    }
+
+    /**
+     * Encode requests as a new batch. Retries should encode again, so each attempt gets its own id.
+     */
+    public static byte[] encode(final List<RelayedRequest> requests) throws IOException {
+        val bytes = new ByteArrayOutputStream();
+        val out = new DataOutputStream(bytes);
+        out.writeInt(FORMAT_VERSION);
+        out.writeLong(Instant.now().toEpochMilli());
+        RelayedRequest.writeString(out, UUID.randomUUID().toString());
+        out.writeInt(requests.size());
+        for (val request : requests)
+            request.writeTo(out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Check the signature first, see {@link #verify}, and whether the batch is new after, see
+     * {@link Accepted}.
+     * @throws IOException if the batch is malformed or too old
+     */
+    public static Decoded decode(final byte[] batch) throws IOException {
+        val in = new DataInputStream(new ByteArrayInputStream(batch));
+        if (in.readInt() != FORMAT_VERSION)
+            throw new IOException("Unknown batch format");
+        val sentAt = Instant.ofEpochMilli(in.readLong());
+        if (Duration.between(sentAt, Instant.now()).abs().compareTo(MAX_AGE) > 0)
+            throw new IOException("Batch is too old");
+        val id = RelayedRequest.readString(in);
+        val count = in.readInt();
+        final List<RelayedRequest> requests = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            requests.add(RelayedRequest.readFrom(in));
+        return new Decoded(id, sentAt, requests);
+    }
+
+    /**
+     * @return the value of the {@link #SIGNATURE_HEADER} header for a batch
+     */
+    public static String sign(final byte[] batch, final String secret) {
+        return SIGNATURE_PREFIX + BaseEncoding.base16().lowerCase().encode(hmac(batch, secret));
+    }
+
+    /**
+     * @param signature the {@link #SIGNATURE_HEADER} header, if any
+     * @return true if the batch was signed with the secret
+     */
+    public static boolean verify(final byte[] batch, @Nullable final String signature, final String secret) {
+        if (signature == null || !signature.startsWith(SIGNATURE_PREFIX))
+            return false;
+        byte[] expected;
+        try {
+            expected = BaseEncoding.base16().lowerCase().decode(signature.substring(SIGNATURE_PREFIX.length()));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return MessageDigest.isEqual(hmac(batch, secret), expected);
+    }
+
+    private static byte[] hmac(final byte[] batch, final String secret) {
+        try {
+            val mac = Mac.getInstance(ALGORITHM);
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), ALGORITHM));
+            return mac.doFinal(batch);
+        } catch (NoSuchAlgorithmException | InvalidKeyException e) {
+            // Required of every Java platform, and any key will do.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @param responses one for each request of a batch, in the same order
+     */
+    public static byte[] encodeResponses(final List<CallbackResponse> responses) throws IOException {
+        val bytes = new ByteArrayOutputStream();
+        val out = new DataOutputStream(bytes);
+        out.writeInt(responses.size());
+        for (val response : responses) {
+            out.writeInt(response.getStatus());
+            out.writeInt(response.getHeaders().size());
+            for (val header : response.getHeaders().entrySet()) {
+                RelayedRequest.writeString(out, header.getKey());
+                RelayedRequest.writeString(out, header.getValue());
+            }
+            out.writeBoolean(response.getBody() != null);
+            if (response.getBody() != null)
+                RelayedRequest.writeString(out, response.getBody());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    public static List<CallbackResponse> decodeResponses(final byte[] encoded) throws IOException {
+        val in = new DataInputStream(new ByteArrayInputStream(encoded));
+        val count = in.readInt();
+        final List<CallbackResponse> responses = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            val status = in.readInt();
+            val headerCount = in.readInt();
+            final Map<String, String> headers = new LinkedHashMap<>();
+            for (int j = 0; j < headerCount; j++)
+                headers.put(RelayedRequest.readString(in), RelayedRequest.readString(in));
+            val body = in.readBoolean() ? RelayedRequest.readString(in) : null;
+            responses.add(new CallbackResponse(status, Collections.unmodifiableMap(headers), body));
+        }
+        return responses;
+    }
+}
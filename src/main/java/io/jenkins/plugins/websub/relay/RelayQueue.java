@@ -0,0 +1,218 @@
+package io.jenkins.plugins.websub.relay;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+import lombok.Value;
+import lombok.val;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Requests waiting to be forwarded to Jenkins, kept on disk so they survive a restart of the
+ * relay.
+ *
+ * Each request is a file of its own, named by a sequence number, so forwarding takes the
+ * oldest files and deletes them once Jenkins has them. A file is synced before the request is
+ * acknowledged to the hub, and only appears under its name once complete. One whose checksum
+ * doesn't match is dropped when read.
+ */
+class RelayQueue {
+    private static final Logger logger = LoggerFactory.getLogger(RelayQueue.class);
+    private static final int FORMAT_VERSION = 1;
+    private static final String SUFFIX = ".req";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    /**
+     * A request in the queue. Its content stays on disk until {@link #read}.
+     */
+    @Value
+    static class Entry {
+        long sequence;
+        Path file;
+        long size;
+    }
+
+    private final Path directory;
+    private final int maxRequests;
+    private final long maxBytes;
+    // Guarded by this, oldest first.
+    private final TreeMap<Long, Entry> entries = new TreeMap<>();
+    // Size of queued requests and those being written.
+    private long bytes;
+    private int writing;
+    private long nextSequence;
+
+    /**
+     * @param maxRequests most requests queued, further ones are refused
+     * @param maxBytes most bytes queued, further requests are refused
+     */
+    RelayQueue(final Path directory, final int maxRequests, final long maxBytes) {
+        this.directory = directory;
+        this.maxRequests = maxRequests;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Pick up requests queued by a previous run.
+     * @return the number of requests found
+     */
+    synchronized int load() throws IOException {
+        Files.createDirectories(directory);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (val file : files) {
+                val name = file.getFileName().toString();
+                if (name.endsWith(TMP_SUFFIX)) {
+                    // Never acknowledged.
+                    Files.delete(file);
+                    continue;
+                }
+                if (!name.endsWith(SUFFIX)) continue;
+                long sequence;
+                try {
+                    sequence = Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                val size = Files.size(file);
+                entries.put(sequence, new Entry(sequence, file, size));
+                bytes += size;
+                nextSequence = Math.max(nextSequence, sequence + 1);
+            }
+        }
+        if (!entries.isEmpty())
+            logger.info("Found {} queued requests in {}", entries.size(), directory);
+        return entries.size();
+    }
+
+    /**
+     * Store a request, returning once it is on disk.
+     * @return false if the queue is full
+     */
+    boolean offer(final RelayedRequest request) throws IOException {
+        val record = encode(request);
+        long sequence;
+        synchronized (this) {
+            if (entries.size() + writing >= maxRequests || bytes + record.length > maxBytes)
+                return false;
+            sequence = nextSequence++;
+            bytes += record.length;
+            writing++;
+        }
+        val file = directory.resolve(String.format("%020d%s", sequence, SUFFIX));
+        val tmp = file.resolveSibling(file.getFileName() + TMP_SUFFIX);
+        boolean written = false;
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                val buffer = ByteBuffer.wrap(record);
+                while (buffer.hasRemaining())
+                    channel.write(buffer);
+                channel.force(false);
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE);
+            written = true;
+        } finally {
+            synchronized (this) {
+                writing--;
+                if (written)
+                    entries.put(sequence, new Entry(sequence, file, record.length));
+                else
+                    bytes -= record.length;
+            }
+            if (!written)
+                Files.deleteIfExists(tmp);
+        }
+        return true;
+    }
+
+    /**
+     * @return up to the given number of the oldest requests, without removing them
+     */
+    synchronized List<Entry> peek(final int max) {
+        final List<Entry> oldest = new ArrayList<>();
+        for (val entry : entries.values()) {
+            if (oldest.size() >= max) break;
+            oldest.add(entry);
+        }
+        return oldest;
+    }
+
+    /**
+     * @return the request, or null if its file is damaged, in which case it is removed
+     */
+    @Nullable
+    RelayedRequest read(final Entry entry) throws IOException {
+        val content = Files.readAllBytes(entry.getFile());
+        try {
+            val in = new DataInputStream(new ByteArrayInputStream(content));
+            if (in.readInt() != FORMAT_VERSION)
+                throw new IOException("Unknown format");
+            val length = in.readInt();
+            if (length < 0 || length > content.length)
+                throw new IOException("Bad record length");
+            val record = new byte[length];
+            in.readFully(record);
+            val crc = new CRC32();
+            crc.update(record, 0, record.length);
+            if (in.readInt() != (int) crc.getValue())
+                throw new IOException("Checksum mismatch");
+            return RelayedRequest.readFrom(new DataInputStream(new ByteArrayInputStream(record)));
+        } catch (IOException | RuntimeException e) {
+            logger.warn("Dropping damaged request {}: {}", entry.getFile(), e.toString());
+            remove(Collections.singleton(entry));
+            return null;
+        }
+    }
+
+    /**
+     * Remove requests that have been forwarded.
+     */
+    void remove(final Collection<Entry> forwarded) throws IOException {
+        for (val entry : forwarded) {
+            synchronized (this) {
+                if (entries.remove(entry.getSequence()) == null) continue;
+                bytes -= entry.getSize();
+            }
+            Files.deleteIfExists(entry.getFile());
+        }
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    private static byte[] encode(final RelayedRequest request) throws IOException {
+        val recordBytes = new ByteArrayOutputStream();
+        val recordOut = new DataOutputStream(recordBytes);
+        request.writeTo(recordOut);
+        recordOut.flush();
+        val record = recordBytes.toByteArray();
+        val crc = new CRC32();
+        crc.update(record, 0, record.length);
+
+        val bytes = new ByteArrayOutputStream();
+        val out = new DataOutputStream(bytes);
+        out.writeInt(FORMAT_VERSION);
+        out.writeInt(record.length);
+        out.write(record);
+        out.writeInt((int) crc.getValue());
+        out.flush();
+        return bytes.toByteArray();
+    }
+}
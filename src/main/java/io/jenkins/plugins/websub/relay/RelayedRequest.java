@@ -0,0 +1,155 @@
+package io.jenkins.plugins.websub.relay;
+
+import com.google.common.collect.ImmutableListMultimap;
+import io.jenkins.plugins.websub.subscriber.CallbackRequest;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import javax.annotation.Nullable;
+import lombok.val;
+
+/**
+ * A callback request captured by the relay, body and all, so it can be queued and handed to
+ * {@link io.jenkins.plugins.websub.subscriber.WebSubSubscriber#handleRequest(CallbackRequest)}
+ * later on.
+ */
+public final class RelayedRequest implements CallbackRequest {
+    private final String method;
+    private final String callbackId;
+    private final ImmutableListMultimap<String, String> parameters;
+    private final ImmutableListMultimap<String, String> headers;
+    private final byte[] body;
+
+    public RelayedRequest(
+            final String method, final String callbackId, final ImmutableListMultimap<String, String> parameters,
+            final ImmutableListMultimap<String, String> headers, final byte[] body) {
+        this.method = method;
+        this.callbackId = callbackId;
+        this.parameters = parameters;
+        this.headers = headers;
+        this.body = body;
+    }
+
+    /**
+     * @param body the body, already read from the request
+     */
+    public static RelayedRequest capture(final CallbackRequest request, final byte[] body) {
+        return new RelayedRequest(
+                request.getMethod(), request.getCallbackId(), ImmutableListMultimap.copyOf(request.getParameters()),
+                ImmutableListMultimap.copyOf(request.getHeaders()), body);
+    }
+
+    @Override
+    public String getMethod() {
+        return method;
+    }
+
+    @Override
+    public String getCallbackId() {
+        return callbackId;
+    }
+
+    @Override
+    public List<String> getParameterValues(final String name) {
+        return parameters.get(name);
+    }
+
+    @Override
+    public ImmutableListMultimap<String, String> getParameters() {
+        return parameters;
+    }
+
+    @Override
+    @Nullable
+    public String getHeader(final String name) {
+        for (val header : headers.entries()) {
+            if (header.getKey().equalsIgnoreCase(name))
+                return header.getValue();
+        }
+        return null;
+    }
+
+    @Override
+    public ImmutableListMultimap<String, String> getHeaders() {
+        return headers;
+    }
+
+    @Override
+    public long getContentLength() {
+        return body.length;
+    }
+
+    @Override
+    @Nullable
+    public String getContentType() {
+        return getHeader("Content-Type");
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(body);
+    }
+
+    int getBodyLength() {
+        return body.length;
+    }
+
+    void writeTo(final DataOutputStream out) throws IOException {
+        writeString(out, method);
+        writeString(out, callbackId);
+        writeMultimap(out, parameters);
+        writeMultimap(out, headers);
+        out.writeInt(body.length);
+        out.write(body);
+    }
+
+    static RelayedRequest readFrom(final DataInputStream in) throws IOException {
+        val method = readString(in);
+        val callbackId = readString(in);
+        val parameters = readMultimap(in);
+        val headers = readMultimap(in);
+        val body = new byte[checkLength(in.readInt())];
+        in.readFully(body);
+        return new RelayedRequest(method, callbackId, parameters, headers, body);
+    }
+
+    private static void writeMultimap(
+            final DataOutputStream out, final ImmutableListMultimap<String, String> map) throws IOException {
+        out.writeInt(map.size());
+        for (val entry : map.entries()) {
+            writeString(out, entry.getKey());
+            writeString(out, entry.getValue());
+        }
+    }
+
+    private static ImmutableListMultimap<String, String> readMultimap(final DataInputStream in) throws IOException {
+        val size = checkLength(in.readInt());
+        final ImmutableListMultimap.Builder<String, String> builder = ImmutableListMultimap.builder();
+        for (int i = 0; i < size; i++)
+            builder.put(readString(in), readString(in));
+        return builder.build();
+    }
+
+    // Not writeUTF, which is limited to 64K.
+    static void writeString(final DataOutputStream out, final String s) throws IOException {
+        val bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static String readString(final DataInputStream in) throws IOException {
+        val bytes = new byte[checkLength(in.readInt())];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int checkLength(final int length) throws IOException {
+        if (length < 0)
+            throw new IOException("Malformed relayed request");
+        return length;
+    }
+}
@@ -0,0 +1,422 @@
+package io.jenkins.plugins.websub.relay;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import io.jenkins.plugins.websub.subscriber.CallbackResponse;
+import io.jenkins.plugins.websub.subscriber.ExchangeCallbackRequest;
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import lombok.Data;
+import lombok.Getter;
+import lombok.NonNull;
+import lombok.val;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static io.jenkins.plugins.websub.utils.Generic.fmt;
+
+/**
+ * Standalone process that takes hub callbacks in place of Jenkins, so internet-facing callback
+ * load never reaches the controller.
+ *
+ * Notifications are acknowledged as soon as they are safely in a {@link RelayQueue} on disk,
+ * and forwarded to Jenkins in signed batches over a single endpoint, see {@link RelayBatch}.
+ * A burst from a hub costs Jenkins a few requests instead of one each, and notifications that
+ * arrive while Jenkins is down or restarting are delivered once it is back. Those Jenkins can't
+ * take yet, because its notification queue is full, stay queued and are tried again.
+ *
+ * Verification of intent is passed on to Jenkins straight away, one request at a time, as
+ * only Jenkins knows which subscription requests it sent and it answers with the challenge.
+ * Signatures of notifications are checked by Jenkins too, it holds the subscription secrets.
+ * Requests are relayed as they came, the relay needs no state besides its queue.
+ *
+ * {@code mvn package} builds it with its dependencies as {@code websub-trigger-<version>-relay.jar}:
+ * <pre>
+ * WEBSUB_RELAY_SECRET=... java -jar websub-trigger-1.0-relay.jar \
+ *     --jenkins-url=https://jenkins.example.com/ --port=8090 --queue-dir=/var/lib/websub-relay
+ * </pre>
+ * and give Jenkins the URL hubs reach the relay at and the same secret in its global
+ * configuration. The relay speaks plain HTTP, put a TLS-terminating proxy in front of it to
+ * give hubs an HTTPS URL.
+ */
+public class WebSubRelay implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(WebSubRelay.class);
+    // Endpoint under the Jenkins URL batches go to, see WebSubRequestReceiver#doRelay.
+    public static final String JENKINS_PATH = "websub-trigger/relay";
+    static final String SECRET_VARIABLE = "WEBSUB_RELAY_SECRET";
+    // Retry-After given to hubs while the queue is full.
+    private static final long QUEUE_FULL_RETRY_SECONDS = 30;
+    private static final String USAGE = fmt(
+            "Usage: {}=<secret> java {} --jenkins-url=<url> [--port=<port>] [--queue-dir=<directory>]",
+            SECRET_VARIABLE, WebSubRelay.class.getName());
+
+    @Data
+    public static class Options {
+        /**
+         * URL of Jenkins, with trailing '/'.
+         */
+        @NonNull final String jenkinsUrl;
+        /**
+         * Secret shared with Jenkins, batches are signed with it.
+         */
+        @NonNull final String secret;
+        /**
+         * Where requests wait to be forwarded.
+         */
+        @NonNull final Path queueDirectory;
+        /**
+         * Port to take callbacks on, 0 for any free port.
+         */
+        int port = 8090;
+        /**
+         * Threads answering hubs.
+         */
+        int threads = 4;
+        /**
+         * Connections waiting to be accepted.
+         */
+        int backlog = 50;
+        /**
+         * Largest notification body accepted, larger requests get 413.
+         */
+        long maxPayloadBytes = 10 * 1024 * 1024;
+        /**
+         * Most requests queued, hubs get 503 beyond that.
+         */
+        int maxQueuedRequests = 100_000;
+        /**
+         * Most bytes queued, hubs get 503 beyond that.
+         */
+        long maxQueuedBytes = 1024L * 1024 * 1024;
+        /**
+         * Most requests forwarded in one batch.
+         */
+        int batchSize = 100;
+        /**
+         * Most bytes forwarded in one batch, unless a single request is larger.
+         */
+        long maxBatchBytes = 16 * 1024 * 1024;
+        /**
+         * How long to collect requests before forwarding them, once the queue was empty.
+         */
+        Duration batchDelay = Duration.ofMillis(200);
+        /**
+         * Wait after Jenkins could not be reached, doubling while it stays out of reach.
+         */
+        Duration baseRetryInterval = Duration.ofSeconds(1);
+        Duration maxRetryInterval = Duration.ofMinutes(1);
+        /**
+         * Time allowed to establish a connection to Jenkins.
+         */
+        Duration connectTimeout = Duration.ofSeconds(10);
+        /**
+         * Time allowed between bytes of a response from Jenkins.
+         */
+        Duration readTimeout = Duration.ofSeconds(60);
+    }
+
+    @Getter private final Options options;
+    private final RelayQueue queue;
+    private final GenericUrl jenkinsEndpoint;
+    private final HttpRequestFactory requestFactory = new NetHttpTransport().createRequestFactory();
+    // Guarded by this.
+    @Nullable private HttpServer server;
+    @Nullable private ExecutorService workers;
+    @Nullable private ScheduledExecutorService forwarder;
+    @Nullable private ScheduledFuture<?> next;
+    // Current wait after failures, 0 while Jenkins takes batches. Only used by the forwarder.
+    private long retryMillis;
+
+    public WebSubRelay(final Options options) {
+        this.options = options;
+        this.queue = new RelayQueue(options.queueDirectory, options.maxQueuedRequests, options.maxQueuedBytes);
+        this.jenkinsEndpoint = new GenericUrl(options.jenkinsUrl + JENKINS_PATH);
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final Map<String, String> flags = new HashMap<>();
+        for (val arg : args) {
+            val i = arg.indexOf('=');
+            if (!arg.startsWith("--") || i < 0) {
+                System.err.println(USAGE);
+                System.exit(2);
+            }
+            flags.put(arg.substring(2, i), arg.substring(i + 1));
+        }
+        val jenkinsUrl = flags.get("jenkins-url");
+        // Not a flag, so it doesn't show in the process list.
+        val secret = System.getenv(SECRET_VARIABLE);
+        if (jenkinsUrl == null || secret == null || secret.isEmpty()) {
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+        val options = new Options(
+                jenkinsUrl.endsWith("/") ? jenkinsUrl : jenkinsUrl + "/", secret,
+                Paths.get(flags.getOrDefault("queue-dir", "websub-relay-queue")));
+        if (flags.containsKey("port"))
+            options.setPort(Integer.parseInt(flags.get("port")));
+        val relay = new WebSubRelay(options);
+        relay.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(relay::close));
+    }
+
+    /**
+     * Pick up requests left queued by a previous run and start taking callbacks.
+     */
+    public synchronized void start() throws IOException {
+        if (server != null) return;
+        val queued = queue.load();
+        forwarder = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("websub-relay-forwarder").build());
+        workers = Executors.newFixedThreadPool(Math.max(1, options.threads), new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("websub-relay-%d").build());
+        server = HttpServer.create(new InetSocketAddress(options.port), options.backlog);
+        server.setExecutor(workers);
+        server.createContext("/", this::handle);
+        server.start();
+        logger.info("Relaying callbacks from port {} to {}", getPort(), jenkinsEndpoint);
+        if (queued > 0)
+            wake();
+    }
+
+    /**
+     * Stop taking callbacks and forwarding them. Queued requests stay on disk for the next run.
+     */
+    @Override
+    public synchronized void close() {
+        if (server == null) return;
+        server.stop(0);
+        workers.shutdownNow();
+        forwarder.shutdownNow();
+        server = null;
+        workers = null;
+        forwarder = null;
+        next = null;
+    }
+
+    /**
+     * @return the port callbacks are taken on
+     */
+    public synchronized int getPort() {
+        return server == null ? options.port : server.getAddress().getPort();
+    }
+
+    /**
+     * @return number of requests waiting to be forwarded
+     */
+    public int getQueuedCount() {
+        return queue.size();
+    }
+
+    private void handle(final HttpExchange exchange) throws IOException {
+        try {
+            val request = new ExchangeCallbackRequest(exchange);
+            if (request.getCallbackId().isEmpty()) {
+                CallbackResponse.error(404, "Not a callback URL.").write(exchange);
+                return;
+            }
+            switch (request.getMethod()) {
+                case "GET":
+                    verify(request).write(exchange);
+                    break;
+                case "POST":
+                    enqueue(request).write(exchange);
+                    break;
+                default:
+                    CallbackResponse.error(405, "Only GET/POST supported.").write(exchange);
+            }
+        } catch (IOException | RuntimeException e) {
+            logger.error("Error handling callback {}", exchange.getRequestURI(), e);
+            CallbackResponse.status(500).write(exchange);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private CallbackResponse verify(final ExchangeCallbackRequest request) {
+        try {
+            val responses = send(Collections.singletonList(RelayedRequest.capture(request, new byte[0])));
+            return responses.get(0);
+        } catch (IOException e) {
+            // The hub retries, or the subscription request times out and is sent again.
+            logger.warn("Could not pass verification for {} on to Jenkins: {}", request.getCallbackId(), e.toString());
+            return CallbackResponse.status(503);
+        }
+    }
+
+    private CallbackResponse enqueue(final ExchangeCallbackRequest request) throws IOException {
+        val maxBytes = options.maxPayloadBytes;
+        if (request.getContentLength() > maxBytes)
+            return payloadTooLarge(maxBytes);
+        val body = ByteStreams.toByteArray(ByteStreams.limit(request.getInputStream(), maxBytes + 1));
+        if (body.length > maxBytes)
+            return payloadTooLarge(maxBytes);
+        if (!queue.offer(RelayedRequest.capture(request, body))) {
+            logger.warn("Queue full, turning away notification for {}", request.getCallbackId());
+            return CallbackResponse.status(503).withHeader("Retry-After", String.valueOf(QUEUE_FULL_RETRY_SECONDS));
+        }
+        wake();
+        return CallbackResponse.status(202);
+    }
+
+    private static CallbackResponse payloadTooLarge(final long maxBytes) {
+        return CallbackResponse.error(413, fmt("Notification body must not exceed {} bytes.", maxBytes));
+    }
+
+    /**
+     * Forward soon, unless forwarding is already due.
+     */
+    private synchronized void wake() {
+        if (next != null || forwarder == null) return;
+        next = forwarder.schedule(this::forward, options.batchDelay.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private void forward() {
+        long delay;
+        try {
+            delay = forwardBatch();
+        } catch (RuntimeException e) {
+            logger.error("Error forwarding requests", e);
+            delay = backOff();
+        }
+        synchronized (this) {
+            next = null;
+            if (forwarder == null) return;
+            // A request queued while this batch was sent found forwarding still due.
+            if (delay < 0 && queue.size() > 0)
+                delay = options.batchDelay.toMillis();
+            if (delay >= 0)
+                next = forwarder.schedule(this::forward, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Send the oldest queued requests to Jenkins.
+     * @return milliseconds until the next batch, -1 if the queue is empty
+     */
+    private long forwardBatch() {
+        final List<RelayQueue.Entry> sent = new ArrayList<>();
+        final List<RelayedRequest> batch = new ArrayList<>();
+        long size = 0;
+        for (val entry : queue.peek(options.batchSize)) {
+            if (!batch.isEmpty() && size + entry.getSize() > options.maxBatchBytes) break;
+            RelayedRequest request;
+            try {
+                request = queue.read(entry);
+            } catch (IOException e) {
+                logger.warn("Could not read queued request {}: {}", entry.getFile(), e.toString());
+                return backOff();
+            }
+            if (request == null) continue;
+            sent.add(entry);
+            batch.add(request);
+            size += entry.getSize();
+        }
+        if (batch.isEmpty())
+            return queue.size() > 0 ? 0 : -1;
+
+        List<CallbackResponse> responses;
+        try {
+            responses = send(batch);
+        } catch (IOException e) {
+            logger.warn("Could not forward {} requests to Jenkins, {} queued: {}",
+                    batch.size(), queue.size(), e.toString());
+            return backOff();
+        }
+        // Those Jenkins could not take yet stay queued, it is done with the rest.
+        final List<RelayQueue.Entry> done = new ArrayList<>();
+        long retryAfter = 0;
+        for (int i = 0; i < sent.size(); i++) {
+            val response = responses.get(i);
+            if (response.getStatus() == 503) {
+                retryAfter = Math.max(retryAfter, parseRetryAfter(response.getHeaders().get("Retry-After")));
+                continue;
+            }
+            if (response.getStatus() >= 400)
+                logger.debug("Jenkins refused request for {}: {} {}",
+                        batch.get(i).getCallbackId(), response.getStatus(), response.getBody());
+            done.add(sent.get(i));
+        }
+        try {
+            queue.remove(done);
+        } catch (IOException e) {
+            // Sent again after a restart, at worst.
+            logger.warn("Could not remove forwarded requests: {}", e.toString());
+        }
+        logger.debug("Forwarded {} requests, {} queued", done.size(), queue.size());
+        if (done.size() < sent.size()) {
+            val wait = backOff();
+            return Math.max(wait, retryAfter);
+        }
+        retryMillis = 0;
+        return queue.size() > 0 ? 0 : -1;
+    }
+
+    private long backOff() {
+        retryMillis = retryMillis == 0
+                ? options.baseRetryInterval.toMillis()
+                : Math.min(options.maxRetryInterval.toMillis(), retryMillis * 2);
+        return retryMillis;
+    }
+
+    /**
+     * @return milliseconds, 0 if the header is missing or not in seconds
+     */
+    private long parseRetryAfter(@Nullable final String value) {
+        if (value == null) return 0;
+        try {
+            val millis = Duration.ofSeconds(Long.parseLong(value.trim())).toMillis();
+            return Math.min(millis, options.maxRetryInterval.toMillis());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the response to each request, in order
+     */
+    private List<CallbackResponse> send(final List<RelayedRequest> batch) throws IOException {
+        val encoded = RelayBatch.encode(batch);
+        val request = requestFactory.buildPostRequest(
+                jenkinsEndpoint, new ByteArrayContent(RelayBatch.CONTENT_TYPE, encoded));
+        request.getHeaders().set(RelayBatch.SIGNATURE_HEADER, RelayBatch.sign(encoded, options.secret));
+        request.setConnectTimeout((int) options.connectTimeout.toMillis());
+        request.setReadTimeout((int) options.readTimeout.toMillis());
+        request.setThrowExceptionOnExecuteError(false);
+        val response = request.execute();
+        try {
+            if (response.getStatusCode() != 200)
+                throw new IOException(fmt("Jenkins answered {}", response.getStatusCode()));
+            val content = response.getContent();
+            if (content == null)
+                throw new IOException("Jenkins answered without content");
+            val responses = RelayBatch.decodeResponses(ByteStreams.toByteArray(content));
+            if (responses.size() != batch.size())
+                throw new IOException(fmt("Sent {} requests, Jenkins answered {}", batch.size(), responses.size()));
+            return responses;
+        } finally {
+            response.disconnect();
+        }
+    }
+}
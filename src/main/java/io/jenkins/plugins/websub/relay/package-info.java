@@ -0,0 +1,4 @@
+/**
+ * Standalone relay that takes hub callbacks in place of Jenkins, see {@link io.jenkins.plugins.websub.relay.WebSubRelay}.
+ */
+package io.jenkins.plugins.websub.relay;
@@ -0,0 +1,47 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of fixed-size byte buffers used for capturing request bodies.
+ *
+ * At most {@code maxRetained} released buffers are kept for reuse, anything above that is left
+ * to the garbage collector.
+ */
+public class BufferPool {
+    private final int bufferSize;
+    private final int maxRetained;
+    private final Queue<byte[]> buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger retained = new AtomicInteger();
+
+    public BufferPool(final int bufferSize, final int maxRetained) {
+        if (bufferSize <= 0)
+            throw new IllegalArgumentException("bufferSize must be positive");
+        this.bufferSize = bufferSize;
+        this.maxRetained = maxRetained;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        if (buffer == null)
+            return new byte[bufferSize];
+        retained.decrementAndGet();
+        return buffer;
+    }
+
+    void release(final byte[] buffer) {
+        if (buffer.length != bufferSize)
+            return;
+        if (retained.incrementAndGet() > maxRetained) {
+            retained.decrementAndGet();
+            return;
+        }
+        buffers.offer(buffer);
+    }
+}
@@ -0,0 +1,45 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import com.google.common.collect.ImmutableMultimap;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import javax.annotation.Nullable;
+
+/**
+ * A request from a hub to one of our callback URLs, independent of the HTTP server it came
+ * through. See {@link ExchangeCallbackRequest} for requests from the JDK's own HTTP server.
+ */
+public interface CallbackRequest {
+    String getMethod();
+
+    /**
+     * @return the callback id, the last segment of the request path
+     */
+    String getCallbackId();
+
+    /**
+     * @return values of a query parameter, empty if there are none
+     */
+    List<String> getParameterValues(String name);
+
+    ImmutableMultimap<String, String> getParameters();
+
+    /**
+     * @return the first value of a header, matched ignoring case, or null if there is none
+     */
+    @Nullable
+    String getHeader(String name);
+
+    ImmutableMultimap<String, String> getHeaders();
+
+    /**
+     * @return length of the body, or -1 if not known
+     */
+    long getContentLength();
+
+    @Nullable
+    String getContentType();
+
+    InputStream getInputStream() throws IOException;
+}
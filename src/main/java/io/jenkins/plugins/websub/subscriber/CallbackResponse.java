@@ -0,0 +1,64 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.annotation.Nullable;
+import lombok.Value;
+import lombok.val;
+
+/**
+ * Our answer to a {@link CallbackRequest}, independent of the HTTP server it goes out through.
+ * Sent through a servlet container by {@code ServletCallbackResponse} in the plugin.
+ */
+@Value
+public class CallbackResponse {
+    // Of the body, if any.
+    public static final String CONTENT_TYPE = "text/plain;charset=UTF-8";
+
+    int status;
+    Map<String, String> headers;
+    // Plain text, or an error message for statuses of 400 and up.
+    @Nullable String body;
+
+    public static CallbackResponse status(final int status) {
+        return new CallbackResponse(status, Collections.emptyMap(), null);
+    }
+
+    public static CallbackResponse ok() {
+        return status(HttpURLConnection.HTTP_OK);
+    }
+
+    public static CallbackResponse text(final String body) {
+        return new CallbackResponse(HttpURLConnection.HTTP_OK, Collections.emptyMap(), body);
+    }
+
+    public static CallbackResponse error(final int status, final String message) {
+        return new CallbackResponse(status, Collections.emptyMap(), message);
+    }
+
+    public CallbackResponse withHeader(final String name, final String value) {
+        final Map<String, String> with = new LinkedHashMap<>(headers);
+        with.put(name, value);
+        return new CallbackResponse(status, Collections.unmodifiableMap(with), body);
+    }
+
+    /**
+     * Send through the JDK's own HTTP server. The exchange is left open.
+     */
+    public void write(final HttpExchange exchange) throws IOException {
+        headers.forEach(exchange.getResponseHeaders()::set);
+        val bytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length == 0) {
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+        exchange.sendResponseHeaders(status, bytes.length);
+        exchange.getResponseBody().write(bytes);
+    }
+}
@@ -0,0 +1,328 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import io.jenkins.plugins.websub.subscriber.WebSubSubscriber.CommunicationException;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscriber.DiscoverResponse;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscriber.WebSubException;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.net.SocketTimeoutException;
+import java.net.URISyntaxException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import javax.annotation.Nullable;
+import lombok.Value;
+import lombok.val;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of discovery results, keyed by normalized topic URL.
+ *
+ * Results are reused for the TTL. After that, if the topic returned an ETag or Last-Modified
+ * header, the next lookup asks for the topic conditionally and keeps the cached result on 304.
+ * Failed discoveries are remembered for a shorter time so broken topics aren't re-fetched by
+ * every job that references them, unless the request was interrupted. Concurrent lookups for
+ * the same topic share one request.
+ */
+public class DiscoveryCache {
+    private static final Logger logger = LoggerFactory.getLogger(DiscoveryCache.class);
+    private static final int FORMAT_VERSION = 1;
+
+    /**
+     * Values for a conditional request.
+     */
+    @Value
+    public static class Validators {
+        @Nullable String etag;
+        @Nullable String lastModified;
+
+        boolean isEmpty() {
+            return etag == null && lastModified == null;
+        }
+    }
+
+    /**
+     * Outcome of a discovery request.
+     */
+    @Value
+    public static class Fetched {
+        // Null if the topic was not modified since the validators given.
+        @Nullable DiscoverResponse response;
+        Validators validators;
+
+        static Fetched notModified(final Validators validators) {
+            return new Fetched(null, validators);
+        }
+    }
+
+    /**
+     * Performs the actual discovery, conditionally if validators are given.
+     */
+    public interface Loader {
+        Fetched load(@Nullable Validators validators)
+                throws IOException, CommunicationException, WebSubException;
+    }
+
+    private static class Entry {
+        @Nullable final DiscoverResponse response;
+        @Nullable final Exception failure;
+        final Validators validators;
+        final Instant expires;
+
+        Entry(@Nullable final DiscoverResponse response, @Nullable final Exception failure,
+              final Validators validators, final Instant expires) {
+            this.response = response;
+            this.failure = failure;
+            this.validators = validators;
+            this.expires = expires;
+        }
+    }
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<DiscoverResponse>> inFlight = new ConcurrentHashMap<>();
+    private final Clock clock;
+    private volatile Duration ttl;
+    private volatile Duration negativeTtl;
+
+    public DiscoveryCache(final Duration ttl, final Duration negativeTtl) {
+        this(ttl, negativeTtl, Clock.systemUTC());
+    }
+
+    DiscoveryCache(final Duration ttl, final Duration negativeTtl, final Clock clock) {
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.clock = clock;
+    }
+
+    public void setTtl(final Duration ttl, final Duration negativeTtl) {
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void invalidate(final String topicUrl) {
+        entries.remove(normalize(topicUrl));
+    }
+
+    /**
+     * Get the discovery result for a topic, using the loader if there is no fresh entry.
+     */
+    public DiscoverResponse get(final String topicUrl, final Loader loader)
+            throws IOException, CommunicationException, WebSubException {
+        val key = normalize(topicUrl);
+        val entry = entries.get(key);
+        if (entry != null && clock.instant().isBefore(entry.expires)) {
+            if (entry.failure != null)
+                rethrow(entry.failure);
+            return copy(entry.response);
+        }
+
+        val future = new CompletableFuture<DiscoverResponse>();
+        val existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            logger.debug("Waiting on in-flight discovery of {}", key);
+            return copy(await(existing));
+        }
+
+        try {
+            future.complete(load(key, entry, loader));
+        } catch (Throwable t) {
+            future.completeExceptionally(t);
+        } finally {
+            inFlight.remove(key, future);
+        }
+        return copy(await(future));
+    }
+
+    private DiscoverResponse load(final String key, @Nullable final Entry previous, final Loader loader)
+            throws IOException, CommunicationException, WebSubException {
+        val validators = previous != null && previous.response != null && !previous.validators.isEmpty()
+                ? previous.validators
+                : null;
+        Fetched fetched;
+        try {
+            fetched = loader.load(validators);
+        } catch (IOException | CommunicationException | WebSubException e) {
+            // An interrupted request says nothing about the topic, so don't remember it.
+            if (isInterruption(e)) {
+                Thread.currentThread().interrupt();
+                throw e;
+            }
+            entries.put(key, new Entry(null, e, new Validators(null, null), clock.instant().plus(negativeTtl)));
+            throw e;
+        }
+        DiscoverResponse response = fetched.getResponse();
+        if (response == null) {
+            if (previous == null || previous.response == null)
+                throw new WebSubException("Not modified response to unconditional request");
+            logger.debug("Discovery of {} not modified, reusing", key);
+            response = previous.response;
+        }
+        entries.put(key, new Entry(response, null, fetched.getValidators(), clock.instant().plus(ttl)));
+        return response;
+    }
+
+    private static boolean isInterruption(final Exception e) {
+        if (Thread.interrupted())
+            return true;
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            // A socket timeout is the topic being slow, which is worth remembering.
+            if (t instanceof SocketTimeoutException)
+                return false;
+            if (t instanceof InterruptedIOException || t instanceof ClosedByInterruptException
+                    || t instanceof InterruptedException)
+                return true;
+        }
+        return false;
+    }
+
+    private static DiscoverResponse await(final CompletableFuture<DiscoverResponse> future)
+            throws IOException, CommunicationException, WebSubException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for discovery", e);
+        } catch (ExecutionException e) {
+            val cause = e.getCause();
+            if (cause instanceof Exception)
+                rethrow((Exception) cause);
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    private static void rethrow(final Exception e) throws IOException, CommunicationException, WebSubException {
+        if (e instanceof IOException) throw (IOException) e;
+        if (e instanceof CommunicationException) throw (CommunicationException) e;
+        if (e instanceof WebSubException) throw (WebSubException) e;
+        if (e instanceof RuntimeException) throw (RuntimeException) e;
+        throw new IllegalStateException(e);
+    }
+
+    // Callers may modify the response, so they each get their own.
+    private static DiscoverResponse copy(final DiscoverResponse response) {
+        val result = new DiscoverResponse();
+        result.topicUrl = response.topicUrl;
+        result.hubUrls = new ArrayList<>(response.hubUrls);
+        return result;
+    }
+
+    /**
+     * Normalize a topic URL for use as a key: lowercase scheme and host, drop default ports and
+     * fragments, and use "/" for an empty path.
+     */
+    static String normalize(final String topicUrl) {
+        try {
+            val uri = new URI(topicUrl.trim());
+            if (uri.getScheme() == null || uri.getHost() == null)
+                return topicUrl;
+            val scheme = uri.getScheme().toLowerCase(Locale.ROOT);
+            int port = uri.getPort();
+            if ((scheme.equals("http") && port == 80) || (scheme.equals("https") && port == 443))
+                port = -1;
+            val path = uri.getRawPath() == null || uri.getRawPath().isEmpty() ? "/" : uri.getRawPath();
+            val sb = new StringBuilder()
+                    .append(scheme).append("://").append(uri.getHost().toLowerCase(Locale.ROOT));
+            if (port != -1)
+                sb.append(':').append(port);
+            sb.append(path);
+            if (uri.getRawQuery() != null)
+                sb.append('?').append(uri.getRawQuery());
+            return sb.toString();
+        } catch (URISyntaxException e) {
+            return topicUrl;
+        }
+    }
+
+    /**
+     * Write successful, unexpired entries to a file.
+     */
+    public void save(final Path file) throws IOException {
+        val now = clock.instant();
+        val tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.createDirectories(file.getParent());
+        int count = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(FORMAT_VERSION);
+            for (val e : entries.entrySet()) {
+                val entry = e.getValue();
+                if (entry.response == null || !now.isBefore(entry.expires)) continue;
+                out.writeBoolean(true);
+                out.writeUTF(e.getKey());
+                writeNullable(out, entry.response.topicUrl);
+                out.writeInt(entry.response.hubUrls.size());
+                for (val hub : entry.response.hubUrls)
+                    out.writeUTF(hub);
+                writeNullable(out, entry.validators.getEtag());
+                writeNullable(out, entry.validators.getLastModified());
+                out.writeLong(entry.expires.toEpochMilli());
+                count++;
+            }
+            out.writeBoolean(false);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        logger.debug("Saved {} discovery results to {}", count, file);
+    }
+
+    /**
+     * Add unexpired entries from a file written by {@link #save}. A missing file is ignored.
+     */
+    public void load(final Path file) throws IOException {
+        if (!Files.exists(file)) return;
+        val now = clock.instant();
+        int count = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FORMAT_VERSION) {
+                logger.warn("Ignoring discovery cache {} with unknown format", file);
+                return;
+            }
+            while (in.readBoolean()) {
+                val key = in.readUTF();
+                val response = new DiscoverResponse();
+                response.topicUrl = readNullable(in);
+                int hubs = in.readInt();
+                List<String> hubUrls = new ArrayList<>(hubs);
+                for (int i = 0; i < hubs; i++)
+                    hubUrls.add(in.readUTF());
+                response.hubUrls = hubUrls;
+                val validators = new Validators(readNullable(in), readNullable(in));
+                val expires = Instant.ofEpochMilli(in.readLong());
+                if (now.isBefore(expires)) {
+                    entries.putIfAbsent(key, new Entry(response, null, validators, expires));
+                    count++;
+                }
+            }
+        }
+        logger.info("Loaded {} discovery results from {}", count, file);
+    }
+
+    private static void writeNullable(final DataOutputStream out, @Nullable final String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    @Nullable
+    private static String readNullable(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
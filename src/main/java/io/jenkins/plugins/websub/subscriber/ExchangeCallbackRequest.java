@@ -0,0 +1,81 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import com.google.api.client.http.UrlEncodedParser;
+import com.google.common.collect.ImmutableMultimap;
+import com.sun.net.httpserver.HttpExchange;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import lombok.val;
+
+/**
+ * A callback request received through the JDK's own HTTP server, see
+ * {@link com.sun.net.httpserver.HttpServer}.
+ */
+public class ExchangeCallbackRequest implements CallbackRequest {
+    private final HttpExchange exchange;
+    private final Map<String, List<String>> params = new HashMap<>();
+
+    public ExchangeCallbackRequest(final HttpExchange exchange) {
+        this.exchange = exchange;
+        UrlEncodedParser.parse(exchange.getRequestURI().getRawQuery(), params);
+    }
+
+    @Override
+    public String getMethod() {
+        return exchange.getRequestMethod();
+    }
+
+    @Override
+    public String getCallbackId() {
+        val path = exchange.getRequestURI().getRawPath();
+        return path.substring(path.lastIndexOf("/") + 1);
+    }
+
+    @Override
+    public List<String> getParameterValues(final String name) {
+        return params.getOrDefault(name, Collections.emptyList());
+    }
+
+    @Override
+    public ImmutableMultimap<String, String> getParameters() {
+        final ImmutableMultimap.Builder<String, String> builder = ImmutableMultimap.builder();
+        params.forEach(builder::putAll);
+        return builder.build();
+    }
+
+    @Override
+    public String getHeader(final String name) {
+        return exchange.getRequestHeaders().getFirst(name);
+    }
+
+    @Override
+    public ImmutableMultimap<String, String> getHeaders() {
+        final ImmutableMultimap.Builder<String, String> builder = ImmutableMultimap.builder();
+        exchange.getRequestHeaders().forEach(builder::putAll);
+        return builder.build();
+    }
+
+    @Override
+    public long getContentLength() {
+        val length = getHeader("Content-Length");
+        if (length == null) return -1;
+        try {
+            return Long.parseLong(length.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @Override
+    public String getContentType() {
+        return getHeader("Content-Type");
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return exchange.getRequestBody();
+    }
+}
@@ -0,0 +1,125 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import com.google.common.io.ByteStreams;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscriber.WebSubException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import javax.annotation.Nullable;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import lombok.val;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds {@code atom:link} elements with rel "hub" and "self" in an Atom or RSS feed using StAX.
+ *
+ * Only the feed or channel header is read: parsing stops at the first entry or item, once the
+ * self link and a run of hub links have been seen, or after a maximum number of bytes.
+ * DTDs and external entities are not processed.
+ */
+final class FeedLinkExtractor {
+    private static final Logger logger = LoggerFactory.getLogger(FeedLinkExtractor.class);
+    static final String ATOM_NS = "http://www.w3.org/2005/Atom";
+
+    private static final XMLInputFactory factory = createFactory();
+
+    private static XMLInputFactory createFactory() {
+        val f = XMLInputFactory.newFactory();
+        f.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        f.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        f.setProperty(XMLInputFactory.IS_REPLACING_ENTITY_REFERENCES, false);
+        return f;
+    }
+
+    private FeedLinkExtractor() {}
+
+    /**
+     * @param in the feed, not closed
+     * @param charset the charset from the Content-Type header, or null to use the XML declaration
+     * @param maxBytes maximum number of bytes to read
+     * @param documentUrl URL the feed was retrieved from, for resolving relative links
+     * @return the links found, with hub URLs in document order
+     * @throws WebSubException if the feed could not be parsed before any link was found
+     */
+    static WebSubSubscriber.DiscoverResponse extract(
+            final InputStream in, @Nullable final Charset charset, final long maxBytes,
+            final String documentUrl) throws WebSubException {
+        val limited = ByteStreams.limit(in, maxBytes);
+        val base = URI.create(documentUrl);
+        final List<String> hubUrls = new ArrayList<>();
+        String selfUrl = null;
+        XMLStreamReader reader = null;
+        try {
+            reader = charset != null
+                    ? factory.createXMLStreamReader(limited, charset.name())
+                    : factory.createXMLStreamReader(limited);
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT)
+                    continue;
+                val name = reader.getLocalName();
+                val isAtomLink = ATOM_NS.equals(reader.getNamespaceURI()) && "link".equals(name);
+                // Hub links are usually grouped, so keep going until the run ends.
+                if (!isAtomLink && selfUrl != null && !hubUrls.isEmpty())
+                    break;
+                if ("entry".equals(name) || "item".equals(name))
+                    break;
+                if (!isAtomLink)
+                    continue;
+                val rel = reader.getAttributeValue(null, "rel");
+                val href = reader.getAttributeValue(null, "href");
+                if (rel == null || href == null)
+                    continue;
+                for (val token : rel.toLowerCase(Locale.ROOT).trim().split("\\s+")) {
+                    if (token.equals("hub")) {
+                        val url = resolve(base, href);
+                        if (url != null) hubUrls.add(url);
+                    } else if (token.equals("self") && selfUrl == null) {
+                        selfUrl = resolve(base, href);
+                    }
+                }
+            }
+        } catch (XMLStreamException e) {
+            // Most likely the byte limit cut the document short; keep what we found.
+            if (selfUrl == null && hubUrls.isEmpty())
+                throw new WebSubException("Could not parse feed: " + e.getMessage());
+            logger.debug("Stopped reading feed {} early: {}", documentUrl, e.getMessage());
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException e) {
+                    // Nothing to release beyond the stream, which the caller owns.
+                }
+            }
+        }
+        val result = new WebSubSubscriber.DiscoverResponse();
+        result.topicUrl = selfUrl;
+        result.hubUrls = hubUrls;
+        return result;
+    }
+
+    /**
+     * @return true if the media type is one we look for feed links in.
+     */
+    static boolean isFeed(final String type, final String subType) {
+        return ("application".equals(type) || "text".equals(type))
+                && ("atom+xml".equals(subType) || "rss+xml".equals(subType) || "xml".equals(subType));
+    }
+
+    @Nullable
+    private static String resolve(final URI base, final String href) {
+        try {
+            return base.resolve(new URI(href.trim())).toString();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import com.google.common.io.ByteStreams;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.annotation.Nullable;
+import lombok.val;
+
+/**
+ * Finds {@code <link rel="hub">} and {@code <link rel="self">} in an HTML document without
+ * building a DOM.
+ *
+ * Only the document head is scanned: reading stops at {@code </head>}, at the start of
+ * {@code <body>}, or after a maximum number of bytes, whichever comes first.
+ */
+final class HtmlLinkExtractor {
+    // How far into the document to look for a <meta> charset declaration.
+    private static final int CHARSET_PRESCAN_BYTES = 1024;
+    private static final Pattern META_CHARSET = Pattern.compile(
+            "<meta[^>]+charset\\s*=\\s*[\"']?([A-Za-z0-9_.:-]+)", Pattern.CASE_INSENSITIVE);
+
+    private final Reader reader;
+    private URI base;
+    private final List<String> hubUrls = new ArrayList<>();
+    private String selfUrl;
+    private boolean sawBase;
+    // One character of pushback.
+    private int peeked = -2;
+
+    private HtmlLinkExtractor(final Reader reader, final URI base) {
+        this.reader = reader;
+        this.base = base;
+    }
+
+    /**
+     * @param in the document, not closed
+     * @param charset the charset from the Content-Type header, if any
+     * @param maxBytes maximum number of bytes to read
+     * @param documentUrl URL the document was retrieved from, for resolving relative links
+     * @return the links found, with hub URLs in document order
+     */
+    static WebSubSubscriber.DiscoverResponse extract(
+            final InputStream in, @Nullable final Charset charset, final long maxBytes,
+            final String documentUrl) throws IOException {
+        val limited = new BufferedInputStream(ByteStreams.limit(in, maxBytes));
+        val effectiveCharset = charset != null ? charset : sniffCharset(limited);
+        val extractor = new HtmlLinkExtractor(
+                new InputStreamReader(limited, effectiveCharset), URI.create(documentUrl));
+        extractor.scan();
+        val result = new WebSubSubscriber.DiscoverResponse();
+        result.topicUrl = extractor.selfUrl;
+        result.hubUrls = extractor.hubUrls;
+        return result;
+    }
+
+    /**
+     * Look for a byte order mark or a meta charset declaration at the start of the document.
+     */
+    private static Charset sniffCharset(final BufferedInputStream in) throws IOException {
+        in.mark(CHARSET_PRESCAN_BYTES);
+        val prefix = new byte[CHARSET_PRESCAN_BYTES];
+        int length = 0;
+        int n;
+        while (length < prefix.length && (n = in.read(prefix, length, prefix.length - length)) > 0)
+            length += n;
+        in.reset();
+
+        if (length >= 3 && (prefix[0] & 0xff) == 0xEF && (prefix[1] & 0xff) == 0xBB && (prefix[2] & 0xff) == 0xBF)
+            return StandardCharsets.UTF_8;
+        if (length >= 2 && (prefix[0] & 0xff) == 0xFE && (prefix[1] & 0xff) == 0xFF)
+            return StandardCharsets.UTF_16BE;
+        if (length >= 2 && (prefix[0] & 0xff) == 0xFF && (prefix[1] & 0xff) == 0xFE)
+            return StandardCharsets.UTF_16LE;
+
+        Matcher m = META_CHARSET.matcher(new String(prefix, 0, length, StandardCharsets.ISO_8859_1));
+        if (m.find()) {
+            try {
+                return Charset.forName(m.group(1));
+            } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+                // Fall through to default.
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    private int read() throws IOException {
+        if (peeked != -2) {
+            int c = peeked;
+            peeked = -2;
+            return c;
+        }
+        return reader.read();
+    }
+
+    private void unread(final int c) {
+        peeked = c;
+    }
+
+    private void scan() throws IOException {
+        int c;
+        while ((c = read()) != -1) {
+            if (c != '<') continue;
+            c = read();
+            if (c == '!') {
+                skipMarkupDeclaration();
+            } else if (c == '?') {
+                skipUntil(">");
+            } else if (c == '/') {
+                val name = readTagName(read());
+                if (name.equals("head")) return;
+                skipTag();
+            } else if (isLetter(c)) {
+                val name = readTagName(c);
+                if (name.equals("body")) return;
+                if (name.equals("link") || name.equals("base")) {
+                    handleElement(name, readAttributes());
+                } else if (name.equals("script") || name.equals("style")
+                        || name.equals("title") || name.equals("textarea")) {
+                    skipTag();
+                    skipUntil("</" + name);
+                } else {
+                    skipTag();
+                }
+            } else if (c != -1) {
+                unread(c);
+            }
+        }
+    }
+
+    private void handleElement(final String name, final Map<String, String> attrs) {
+        val href = attrs.get("href");
+        if (href == null) return;
+        if (name.equals("base")) {
+            // Only the first base element counts.
+            if (!sawBase) {
+                sawBase = true;
+                val resolved = resolve(href);
+                if (resolved != null)
+                    base = URI.create(resolved);
+            }
+            return;
+        }
+        val rel = attrs.get("rel");
+        if (rel == null) return;
+        for (val token : rel.toLowerCase(Locale.ROOT).split("\\s+")) {
+            if (token.equals("hub")) {
+                val url = resolve(href);
+                if (url != null) hubUrls.add(url);
+            } else if (token.equals("self") && selfUrl == null) {
+                selfUrl = resolve(href);
+            }
+        }
+    }
+
+    @Nullable
+    private String resolve(final String href) {
+        try {
+            return base.resolve(new URI(href.trim())).toString();
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private void skipMarkupDeclaration() throws IOException {
+        int c = read();
+        if (c == '-') {
+            c = read();
+            if (c == '-') {
+                skipUntil("-->");
+                return;
+            }
+        }
+        unread(c);
+        skipUntil(">");
+    }
+
+    /**
+     * Consume input up to and including the given (lowercase) text, case-insensitively.
+     */
+    private void skipUntil(final String text) throws IOException {
+        int matched = 0;
+        int c;
+        while (matched < text.length() && (c = read()) != -1) {
+            char lower = Character.toLowerCase((char) c);
+            if (lower == text.charAt(matched)) {
+                matched++;
+            } else {
+                matched = lower == text.charAt(0) ? 1 : 0;
+            }
+        }
+    }
+
+    private String readTagName(int c) throws IOException {
+        val sb = new StringBuilder();
+        while (c != -1 && !isSpace(c) && c != '>' && c != '/') {
+            sb.append(Character.toLowerCase((char) c));
+            c = read();
+        }
+        unread(c);
+        return sb.toString();
+    }
+
+    /**
+     * Consume the rest of a tag, respecting quoted attribute values.
+     */
+    private void skipTag() throws IOException {
+        int quote = 0;
+        int c;
+        while ((c = read()) != -1) {
+            if (quote != 0) {
+                if (c == quote) quote = 0;
+            } else if (c == '"' || c == '\'') {
+                quote = c;
+            } else if (c == '>') {
+                return;
+            }
+        }
+    }
+
+    private Map<String, String> readAttributes() throws IOException {
+        final Map<String, String> attrs = new HashMap<>();
+        while (true) {
+            int c = read();
+            while (isSpace(c) || c == '/')
+                c = read();
+            if (c == -1 || c == '>')
+                return attrs;
+
+            val name = new StringBuilder();
+            while (c != -1 && !isSpace(c) && c != '=' && c != '>' && c != '/') {
+                name.append(Character.toLowerCase((char) c));
+                c = read();
+            }
+            while (isSpace(c))
+                c = read();
+            String value = "";
+            if (c == '=') {
+                c = read();
+                while (isSpace(c))
+                    c = read();
+                val sb = new StringBuilder();
+                if (c == '"' || c == '\'') {
+                    int quote = c;
+                    while ((c = read()) != -1 && c != quote)
+                        sb.append((char) c);
+                } else {
+                    while (c != -1 && !isSpace(c) && c != '>') {
+                        sb.append((char) c);
+                        c = read();
+                    }
+                    unread(c);
+                }
+                value = decodeEntities(sb.toString());
+            } else {
+                unread(c);
+            }
+            attrs.putIfAbsent(name.toString(), value);
+        }
+    }
+
+    private static final Pattern ENTITY = Pattern.compile("&(#[0-9]+|#[xX][0-9a-fA-F]+|amp|lt|gt|quot|apos);");
+
+    private static String decodeEntities(final String s) {
+        if (s.indexOf('&') < 0) return s;
+        Matcher m = ENTITY.matcher(s);
+        val sb = new StringBuffer();
+        while (m.find()) {
+            val entity = m.group(1);
+            String replacement;
+            switch (entity) {
+                case "amp": replacement = "&"; break;
+                case "lt": replacement = "<"; break;
+                case "gt": replacement = ">"; break;
+                case "quot": replacement = "\""; break;
+                case "apos": replacement = "'"; break;
+                default:
+                    try {
+                        int code = entity.charAt(1) == 'x' || entity.charAt(1) == 'X'
+                                ? Integer.parseInt(entity.substring(2), 16)
+                                : Integer.parseInt(entity.substring(1));
+                        replacement = new String(Character.toChars(code));
+                    } catch (IllegalArgumentException e) {
+                        replacement = m.group();
+                    }
+            }
+            m.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    private static boolean isSpace(final int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f';
+    }
+
+    private static boolean isLetter(final int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+}
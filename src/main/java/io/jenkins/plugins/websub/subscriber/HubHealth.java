@@ -0,0 +1,186 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import lombok.val;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Health of the hubs we talk to, with a circuit breaker per hub.
+ *
+ * Each request to a hub updates moving averages of its latency and error rate. A hub whose
+ * error rate crosses {@link WebSubSubscriber.Options#circuitErrorThreshold} is skipped for a
+ * while (the circuit is open), as is one that asked us to come back later with
+ * {@code Retry-After}. Once that time has passed a single request is let through to probe the
+ * hub: if it succeeds the circuit closes, otherwise it opens again for twice as long.
+ *
+ * Only responses that say something about the hub's health count as errors: connection
+ * failures and 5xx responses. A 4xx is the hub working as intended.
+ */
+public class HubHealth {
+    private static final Logger logger = LoggerFactory.getLogger(HubHealth.class);
+    // Weight of the newest request in the moving averages.
+    private static final double ALPHA = 0.2;
+    // Open time doubles up to this many times.
+    private static final int MAX_OPEN_SHIFT = 6;
+
+    public enum State { CLOSED, OPEN, HALF_OPEN }
+
+    private static class Stats {
+        double latencyMillis;
+        double errorRate;
+        int samples;
+        // Times the circuit opened since it was last closed.
+        int trips;
+        Instant openUntil = Instant.EPOCH;
+        // A probe is in flight for a half-open circuit.
+        boolean probing;
+    }
+
+    private final WebSubSubscriber.Options options;
+    private final Clock clock;
+    private final Map<String, Stats> hubs = new ConcurrentHashMap<>();
+
+    HubHealth(final WebSubSubscriber.Options options, final Clock clock) {
+        this.options = options;
+        this.clock = clock;
+    }
+
+    private Stats get(final String hubUrl) {
+        return hubs.computeIfAbsent(hubUrl, k -> new Stats());
+    }
+
+    /**
+     * @return whether a request to the hub would be let through now, without claiming a probe
+     */
+    public boolean isAvailable(final String hubUrl) {
+        val stats = hubs.get(hubUrl);
+        if (stats == null) return true;
+        synchronized (stats) {
+            return !clock.instant().isBefore(stats.openUntil) && !stats.probing;
+        }
+    }
+
+    public State getState(final String hubUrl) {
+        val stats = hubs.get(hubUrl);
+        if (stats == null) return State.CLOSED;
+        synchronized (stats) {
+            if (clock.instant().isBefore(stats.openUntil)) return State.OPEN;
+            return stats.trips > 0 ? State.HALF_OPEN : State.CLOSED;
+        }
+    }
+
+    /**
+     * @return when the hub may be tried again, or null if it may be tried now
+     */
+    Instant getRetryAt(final String hubUrl) {
+        val stats = hubs.get(hubUrl);
+        if (stats == null) return null;
+        synchronized (stats) {
+            return clock.instant().isBefore(stats.openUntil) ? stats.openUntil : null;
+        }
+    }
+
+    /**
+     * Claim a request to the hub. Every claim that returns true must be followed by one of the
+     * record methods.
+     *
+     * @return false if the circuit is open, or half-open with its probe already in flight
+     */
+    boolean tryAcquire(final String hubUrl) {
+        val stats = get(hubUrl);
+        synchronized (stats) {
+            if (clock.instant().isBefore(stats.openUntil)) return false;
+            if (stats.trips == 0) return true;
+            if (stats.probing) return false;
+            stats.probing = true;
+            return true;
+        }
+    }
+
+    void recordSuccess(final String hubUrl, final Duration latency) {
+        val stats = get(hubUrl);
+        synchronized (stats) {
+            sample(stats, latency, 0);
+            if (stats.trips > 0)
+                logger.info("Hub {} is responding again", hubUrl);
+            stats.trips = 0;
+            stats.probing = false;
+        }
+    }
+
+    void recordFailure(final String hubUrl, final Duration latency) {
+        val stats = get(hubUrl);
+        synchronized (stats) {
+            sample(stats, latency, 1);
+            if (stats.probing || (stats.samples >= options.circuitMinSamples
+                    && stats.errorRate >= options.circuitErrorThreshold))
+                open(hubUrl, stats, null);
+            stats.probing = false;
+        }
+    }
+
+    /**
+     * The hub asked us to wait, with 429 or 503.
+     * @param retryAfter from the Retry-After header, null if there was none
+     */
+    void recordUnavailable(final String hubUrl, final Duration latency, final Duration retryAfter) {
+        val stats = get(hubUrl);
+        synchronized (stats) {
+            sample(stats, latency, 1);
+            open(hubUrl, stats, retryAfter);
+            stats.probing = false;
+        }
+    }
+
+    private static void sample(final Stats stats, final Duration latency, final double error) {
+        val millis = latency.toMillis();
+        stats.latencyMillis = stats.samples == 0 ? millis : ALPHA * millis + (1 - ALPHA) * stats.latencyMillis;
+        stats.errorRate = ALPHA * error + (1 - ALPHA) * stats.errorRate;
+        stats.samples++;
+    }
+
+    private void open(final String hubUrl, final Stats stats, final Duration retryAfter) {
+        stats.trips++;
+        Duration wait = options.circuitOpenDuration.multipliedBy(1L << Math.min(stats.trips - 1, MAX_OPEN_SHIFT));
+        if (retryAfter != null)
+            wait = retryAfter.compareTo(options.maxRetryAfter) > 0 ? options.maxRetryAfter : retryAfter;
+        val until = clock.instant().plus(wait);
+        if (until.isAfter(stats.openUntil))
+            stats.openUntil = until;
+        // Start over once the hub is back, so one more error doesn't reopen it straight away.
+        stats.errorRate = 0;
+        stats.samples = 0;
+        logger.warn("Not sending requests to hub {} until {}", hubUrl, stats.openUntil);
+    }
+
+    /**
+     * Order hubs for trying: those available now first, faster ones before slower, then the
+     * rest by when they can be tried again. Hubs not seen yet count as fast, so they get tried.
+     */
+    public List<String> rank(final List<String> hubUrls) {
+        final List<String> ranked = new ArrayList<>(hubUrls);
+        final Map<String, double[]> keys = new HashMap<>();
+        for (val hubUrl : hubUrls) {
+            val stats = hubs.get(hubUrl);
+            if (stats == null) {
+                keys.put(hubUrl, new double[] {0, 0});
+                continue;
+            }
+            synchronized (stats) {
+                val waitMillis = Math.max(0, Duration.between(clock.instant(), stats.openUntil).toMillis());
+                keys.put(hubUrl, new double[] {waitMillis, stats.latencyMillis});
+            }
+        }
+        ranked.sort(Comparator.<String>comparingDouble(h -> keys.get(h)[0]).thenComparingDouble(h -> keys.get(h)[1]));
+        return ranked;
+    }
+}
@@ -0,0 +1,145 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import javax.crypto.Mac;
+import javax.annotation.Nullable;
+import javax.crypto.spec.SecretKeySpec;
+import lombok.val;
+
+/**
+ * Verification of the {@code X-Hub-Signature} header sent with notifications for subscriptions
+ * that have a secret.
+ *
+ * The HMAC is computed as the body is read, by wrapping the request stream, so verification
+ * doesn't need a second pass over the captured payload. Mac instances are kept per thread and
+ * re-keyed for each request.
+ */
+final class HubSignature {
+    static final String HEADER = "X-Hub-Signature";
+    // Bytes of randomness in generated secrets.
+    private static final int SECRET_BYTES = 32;
+
+    // Signature method names from the WebSub spec, mapped to JCA algorithm names.
+    private static final Map<String, String> ALGORITHMS = ImmutableMap.of(
+            "sha1", "HmacSHA1",
+            "sha256", "HmacSHA256",
+            "sha384", "HmacSHA384",
+            "sha512", "HmacSHA512");
+
+    private static final ThreadLocal<Map<String, Mac>> macs = ThreadLocal.withInitial(HashMap::new);
+    private static final SecureRandom random = new SecureRandom();
+
+    private final Mac mac;
+    private final byte[] expected;
+
+    private HubSignature(final Mac mac, final byte[] expected) {
+        this.mac = mac;
+        this.expected = expected;
+    }
+
+    /**
+     * @return a new random secret, suitable for {@code hub.secret}.
+     */
+    static String generateSecret() {
+        val bytes = new byte[SECRET_BYTES];
+        random.nextBytes(bytes);
+        return BaseEncoding.base64Url().omitPadding().encode(bytes);
+    }
+
+    /**
+     * Prepare to check a body against a signature header.
+     *
+     * @param header value of the X-Hub-Signature header, as {@code method=hexdigest}
+     * @param secret the subscription secret
+     * @return empty if the header is malformed or uses a method unsupported here
+     */
+    static Optional<HubSignature> parse(final String header, final String secret) {
+        val i = header.indexOf('=');
+        if (i < 0)
+            return Optional.empty();
+        val algorithm = ALGORITHMS.get(header.substring(0, i).trim().toLowerCase(Locale.ROOT));
+        if (algorithm == null)
+            return Optional.empty();
+        byte[] expected;
+        try {
+            expected = BaseEncoding.base16().lowerCase().decode(header.substring(i + 1).trim().toLowerCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+        val mac = macs.get().computeIfAbsent(algorithm, HubSignature::newMac);
+        if (mac == null)
+            return Optional.empty();
+        try {
+            mac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), algorithm));
+        } catch (InvalidKeyException e) {
+            throw new IllegalStateException(e);
+        }
+        return Optional.of(new HubSignature(mac, expected));
+    }
+
+    /**
+     * @return null if the platform doesn't provide the algorithm
+     */
+    @Nullable
+    private static Mac newMac(final String algorithm) {
+        try {
+            return Mac.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            // Only HmacSHA1 and HmacSHA256 are required of every Java platform, a hub using
+            // another method we lack is treated as sending an unsupported signature.
+            return null;
+        }
+    }
+
+    /**
+     * @return a stream that feeds everything read from it into the HMAC.
+     */
+    InputStream wrap(final InputStream in) {
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if (b >= 0)
+                    mac.update((byte) b);
+                return b;
+            }
+
+            @Override
+            public int read(final byte[] b, final int off, final int len) throws IOException {
+                int n = super.read(b, off, len);
+                if (n > 0)
+                    mac.update(b, off, n);
+                return n;
+            }
+
+            @Override
+            public long skip(final long n) throws IOException {
+                // Skipped bytes would not be signed, read them instead.
+                val buffer = new byte[(int) Math.min(n, 8192)];
+                val read = read(buffer, 0, buffer.length);
+                return Math.max(read, 0);
+            }
+        };
+    }
+
+    /**
+     * Must be called on the same thread as {@link #parse}, once the wrapped stream is exhausted.
+     * @return true if the body read matches the signature
+     */
+    boolean matches() {
+        return MessageDigest.isEqual(mac.doFinal(), expected);
+    }
+}
@@ -0,0 +1,245 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import com.google.api.client.http.HttpMediaType;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import javax.annotation.Nullable;
+import lombok.Getter;
+
+/**
+ * Body of a notification, captured from the request without decoding it.
+ *
+ * Small bodies are kept in pooled buffers, anything above the spill threshold is written to a
+ * temporary file instead. Contents are exposed as a stream or a lazily-decoded character view.
+ *
+ * Must be closed to return buffers to the pool and remove any temporary file.
+ */
+public final class NotificationPayload implements AutoCloseable {
+    /**
+     * Request body exceeded the allowed size.
+     */
+    public static class PayloadTooLargeException extends IOException {
+        PayloadTooLargeException(final long maxBytes) {
+            super("Payload larger than " + maxBytes + " bytes");
+        }
+    }
+
+    private final BufferPool pool;
+    @Nullable @Getter private final String contentType;
+    private final List<byte[]> chunks = new ArrayList<>();
+    // Bytes used in the last chunk.
+    private int lastChunkLength;
+    @Nullable private Path file;
+    @Getter private long size;
+    private boolean closed;
+    private CharSequence chars;
+
+    private NotificationPayload(final BufferPool pool, @Nullable final String contentType) {
+        this.pool = pool;
+        this.contentType = contentType;
+    }
+
+    /**
+     * Read a stream to the end.
+     *
+     * @param in stream to read, not closed
+     * @param contentType the Content-Type of the request, used for decoding characters
+     * @param maxBytes maximum number of bytes to accept
+     * @param spillThreshold number of bytes above which contents are moved to a file
+     * @param pool pool to take buffers from
+     * @param spillDirectory directory for temporary files, or null for the system default
+     * @return the captured payload
+     * @throws PayloadTooLargeException if more than maxBytes are available
+     */
+    public static NotificationPayload capture(
+            final InputStream in, @Nullable final String contentType, final long maxBytes,
+            final long spillThreshold, final BufferPool pool, @Nullable final Path spillDirectory)
+            throws IOException {
+        NotificationPayload payload = new NotificationPayload(pool, contentType);
+        boolean ok = false;
+        try {
+            payload.readFrom(in, maxBytes, spillThreshold, spillDirectory);
+            ok = true;
+            return payload;
+        } finally {
+            if (!ok) payload.close();
+        }
+    }
+
+    /**
+     * @return a payload with the given contents, mostly useful for testing.
+     */
+    public static NotificationPayload of(final byte[] contents, @Nullable final String contentType) {
+        NotificationPayload payload = new NotificationPayload(new BufferPool(Math.max(1, contents.length), 0), contentType);
+        payload.chunks.add(contents);
+        payload.lastChunkLength = contents.length;
+        payload.size = contents.length;
+        return payload;
+    }
+
+    private void readFrom(
+            final InputStream in, final long maxBytes, final long spillThreshold,
+            @Nullable final Path spillDirectory) throws IOException {
+        // Fill pooled buffers until we run out of input or pass the threshold.
+        while (true) {
+            byte[] chunk;
+            if (chunks.isEmpty() || lastChunkLength == chunks.get(chunks.size() - 1).length) {
+                chunk = pool.acquire();
+                chunks.add(chunk);
+                lastChunkLength = 0;
+            } else {
+                chunk = chunks.get(chunks.size() - 1);
+            }
+            int n = in.read(chunk, lastChunkLength, chunk.length - lastChunkLength);
+            if (n < 0)
+                return;
+            lastChunkLength += n;
+            addSize(n, maxBytes);
+            if (size > spillThreshold)
+                break;
+        }
+
+        // Move what we have to disk and stream the rest after it.
+        file = spillDirectory == null
+                ? Files.createTempFile("websub-payload", ".tmp")
+                : Files.createTempFile(spillDirectory, "websub-payload", ".tmp");
+        byte[] buffer = pool.acquire();
+        try (OutputStream out = Files.newOutputStream(file)) {
+            for (int i = 0; i < chunks.size(); i++) {
+                byte[] chunk = chunks.get(i);
+                out.write(chunk, 0, i == chunks.size() - 1 ? lastChunkLength : chunk.length);
+            }
+            releaseChunks();
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                addSize(n, maxBytes);
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            pool.release(buffer);
+        }
+    }
+
+    private void addSize(final int n, final long maxBytes) throws PayloadTooLargeException {
+        size += n;
+        if (size > maxBytes)
+            throw new PayloadTooLargeException(maxBytes);
+    }
+
+    /**
+     * @return true if contents were moved to a temporary file.
+     */
+    public boolean isSpilled() {
+        return file != null;
+    }
+
+    /**
+     * @return a new stream over the contents. May be called more than once.
+     */
+    public synchronized InputStream openStream() throws IOException {
+        if (closed)
+            throw new IOException("Payload has been closed");
+        if (file != null)
+            return Files.newInputStream(file);
+        List<InputStream> streams = new ArrayList<>(chunks.size());
+        for (int i = 0; i < chunks.size(); i++) {
+            byte[] chunk = chunks.get(i);
+            streams.add(new ByteArrayInputStream(chunk, 0, i == chunks.size() - 1 ? lastChunkLength : chunk.length));
+        }
+        Enumeration<InputStream> e = Collections.enumeration(streams);
+        return new SequenceInputStream(e);
+    }
+
+    /**
+     * @return the charset declared by the Content-Type, or UTF-8.
+     */
+    public Charset getCharset() {
+        if (contentType != null) {
+            try {
+                Charset charset = new HttpMediaType(contentType).getCharsetParameter();
+                if (charset != null)
+                    return charset;
+            } catch (RuntimeException e) {
+                // Unparseable or unsupported, fall back to the default.
+            }
+        }
+        return StandardCharsets.UTF_8;
+    }
+
+    /**
+     * Character view of the contents, decoded on first access using {@link #getCharset()}.
+     */
+    public CharSequence asCharSequence() {
+        return new CharSequence() {
+            @Override
+            public int length() {
+                return decode().length();
+            }
+
+            @Override
+            public char charAt(final int index) {
+                return decode().charAt(index);
+            }
+
+            @Override
+            public CharSequence subSequence(final int start, final int end) {
+                return decode().subSequence(start, end);
+            }
+
+            @Override
+            public String toString() {
+                return decode().toString();
+            }
+        };
+    }
+
+    private synchronized CharSequence decode() {
+        if (chars == null) {
+            StringBuilder sb = new StringBuilder();
+            try (Reader reader = new InputStreamReader(openStream(), getCharset())) {
+                char[] buffer = new char[4096];
+                int n;
+                while ((n = reader.read(buffer)) >= 0)
+                    sb.append(buffer, 0, n);
+            } catch (IOException e) {
+                throw new IllegalStateException("Could not read payload", e);
+            }
+            chars = sb;
+        }
+        return chars;
+    }
+
+    private void releaseChunks() {
+        chunks.forEach(pool::release);
+        chunks.clear();
+        lastChunkLength = 0;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        releaseChunks();
+        chars = null;
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                file.toFile().deleteOnExit();
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import com.google.api.client.http.apache.ApacheHttpTransport;
+import java.net.ProxySelector;
+import lombok.val;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.PoolingClientConnectionManager;
+import org.apache.http.impl.conn.ProxySelectorRoutePlanner;
+import org.apache.http.impl.conn.SchemeRegistryFactory;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+
+/**
+ * Transport backed by a pool of keep-alive connections, for sharing between subscribers.
+ *
+ * Requests to the same hub or topic host reuse idle connections instead of opening a new
+ * TCP/TLS session each time, up to a limit per route. Timeouts and compression are set per
+ * request by the subscriber, see {@link WebSubSubscriber.Options}.
+ */
+public final class PooledHttpTransport {
+    private static final int SOCKET_BUFFER_SIZE = 8192;
+
+    private PooledHttpTransport() {}
+
+    /**
+     * @param maxConnections most connections open at once, across all routes
+     * @param maxConnectionsPerRoute most connections open at once to a single host and port
+     * @return a transport to pass to {@link WebSubSubscriber#setTransport}. Call
+     *   {@link ApacheHttpTransport#shutdown} once no subscriber uses it.
+     */
+    // ApacheHttpTransport configures the client through getParams(), which clients from
+    // HttpClientBuilder don't support, so this stays on the DefaultHttpClient API.
+    @SuppressWarnings("deprecation")
+    public static ApacheHttpTransport create(final int maxConnections, final int maxConnectionsPerRoute) {
+        val schemes = SchemeRegistryFactory.createDefault();
+        val connections = new PoolingClientConnectionManager(schemes);
+        connections.setMaxTotal(Math.max(1, maxConnections));
+        connections.setDefaultMaxPerRoute(Math.max(1, maxConnectionsPerRoute));
+
+        val params = new BasicHttpParams();
+        // Requests are not retried, so don't hand out a connection the server has since closed.
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+        HttpConnectionParams.setSocketBufferSize(params, SOCKET_BUFFER_SIZE);
+
+        val client = new DefaultHttpClient(connections, params);
+        client.setHttpRequestRetryHandler(new DefaultHttpRequestRetryHandler(0, false));
+        client.setRoutePlanner(new ProxySelectorRoutePlanner(schemes, ProxySelector.getDefault()));
+        return new ApacheHttpTransport(client);
+    }
+}
@@ -0,0 +1,92 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import lombok.val;
+
+/**
+ * Hashed timing wheel for expiring keys.
+ *
+ * Keys are placed in the slot for their deadline tick. Advancing the wheel only visits the
+ * slots for the ticks that have passed, so the cost of expiry is proportional to elapsed time
+ * and the number of keys actually due rather than the number of keys scheduled. Keys with
+ * deadlines more than one revolution away share a slot with nearer ones and are skipped until
+ * their deadline passes.
+ */
+final class TimingWheel<K> {
+    private final long tickMillis;
+    private final List<Map<K, Long>> slots;
+    // Slot index for each scheduled key, for cancellation.
+    private final Map<K, Integer> slotOf = new HashMap<>();
+    // Last tick processed, all deadlines up to the end of it have been expired.
+    private long currentTick;
+
+    /**
+     * @param tickMillis resolution of the wheel
+     * @param slotCount number of slots in one revolution
+     * @param nowMillis the current time
+     */
+    TimingWheel(final long tickMillis, final int slotCount, final long nowMillis) {
+        this.tickMillis = tickMillis;
+        slots = new ArrayList<>(slotCount);
+        for (int i = 0; i < slotCount; i++)
+            slots.add(new HashMap<>());
+        currentTick = completedTick(nowMillis);
+    }
+
+    // Last tick entirely in the past.
+    private long completedTick(final long nowMillis) {
+        return (nowMillis + 1) / tickMillis - 1;
+    }
+
+    /**
+     * Schedule a key, replacing any existing deadline for it.
+     */
+    synchronized void schedule(final K key, final long deadlineMillis) {
+        cancel(key);
+        // Anything already due goes in the next slot to be visited.
+        val tick = Math.max(deadlineMillis / tickMillis, currentTick + 1);
+        val slot = (int) (tick % slots.size());
+        slots.get(slot).put(key, deadlineMillis);
+        slotOf.put(key, slot);
+    }
+
+    synchronized boolean cancel(final K key) {
+        val slot = slotOf.remove(key);
+        if (slot == null) return false;
+        slots.get(slot).remove(key);
+        return true;
+    }
+
+    synchronized int size() {
+        return slotOf.size();
+    }
+
+    /**
+     * Move the wheel up to the given time.
+     *
+     * @return keys whose deadline has passed, which are no longer scheduled
+     */
+    synchronized List<K> advance(final long nowMillis) {
+        final List<K> expired = new ArrayList<>();
+        val nowTick = completedTick(nowMillis);
+        // After a long pause every slot is due for a visit, but only once.
+        val ticks = Math.min(nowTick - currentTick, slots.size());
+        for (long i = 1; i <= ticks; i++) {
+            val slot = slots.get((int) ((currentTick + i) % slots.size()));
+            for (Iterator<Map.Entry<K, Long>> it = slot.entrySet().iterator(); it.hasNext(); ) {
+                val entry = it.next();
+                if (entry.getValue() <= nowMillis) {
+                    it.remove();
+                    slotOf.remove(entry.getKey());
+                    expired.add(entry.getKey());
+                }
+            }
+        }
+        currentTick = Math.max(currentTick, nowTick);
+        return expired;
+    }
+}
@@ -0,0 +1,209 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import lombok.val;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static java.util.stream.Collectors.groupingBy;
+
+/**
+ * Renews active subscriptions before their leases run out.
+ *
+ * A single periodic tick asks the registry for subscriptions expiring soon enough that they may
+ * be due, then renews those past their renewal point. The renewal point is a fraction of the
+ * lease, brought forward by a per-subscription jitter so subscriptions made together are not
+ * renewed together. Due renewals are grouped by hub, closest to expiry first, and each hub's
+ * batch is sent in sequence from one task, so requests to a hub can reuse its connection.
+ *
+ * A renewal that could not be sent is retried with exponential backoff starting at
+ * {@link WebSubSubscriber.Options#baseRetryInterval}. One that was sent is not sent again for
+ * that interval, to give the hub time to verify it. Renewals to a hub whose circuit is open,
+ * see {@link HubHealth}, wait for it without counting as failures.
+ */
+public class WebSubRenewalScheduler {
+    private static final Logger logger = LoggerFactory.getLogger(WebSubRenewalScheduler.class);
+    // Backoff doubles up to this many times.
+    private static final int MAX_BACKOFF_SHIFT = 6;
+
+    private static class Attempt {
+        final int failures;
+        final Instant notBefore;
+
+        Attempt(final int failures, final Instant notBefore) {
+            this.failures = failures;
+            this.notBefore = notBefore;
+        }
+    }
+
+    private final WebSubSubscriber subscriber;
+    private final WebSubSubscriptionRegistry registry;
+    private final Clock clock;
+    // Renewals sent or failed recently, by subscription id.
+    private final Map<String, Attempt> attempts = new ConcurrentHashMap<>();
+    // Hubs with a batch in progress.
+    private final Set<String> busyHubs = ConcurrentHashMap.newKeySet();
+    @Nullable private ScheduledFuture<?> task;
+    @Nullable private ExecutorService workers;
+
+    WebSubRenewalScheduler(
+            final WebSubSubscriber subscriber, final WebSubSubscriptionRegistry registry, final Clock clock) {
+        this.subscriber = subscriber;
+        this.registry = registry;
+        this.clock = clock;
+    }
+
+    /**
+     * @param timer the timer to run checks on, owned by the caller
+     */
+    synchronized void start(final ScheduledExecutorService timer) {
+        if (task != null) return;
+        val options = subscriber.getOptions();
+        workers = Executors.newFixedThreadPool(Math.max(1, options.renewalThreads), new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("websub-renewal-%d").build());
+        val interval = options.renewalCheckInterval.toMillis();
+        task = timer.scheduleWithFixedDelay(this::tick, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    synchronized void stop() {
+        if (task == null) return;
+        task.cancel(false);
+        workers.shutdownNow();
+        task = null;
+        workers = null;
+    }
+
+    /**
+     * Find due subscriptions and hand them to the workers, one task per hub.
+     */
+    void tick() {
+        try {
+            val now = clock.instant();
+            val options = subscriber.getOptions();
+            val candidates = registry.getExpiresBefore(now.plus(getHorizon(options)));
+            final Set<String> candidateIds = new HashSet<>();
+            final List<WebSubSubscription> due = new ArrayList<>();
+            for (val subscription : candidates) {
+                candidateIds.add(subscription.getId());
+                if (isDue(subscription, now, options))
+                    due.add(subscription);
+            }
+            // Anything no longer near expiry was renewed or removed.
+            attempts.keySet().retainAll(candidateIds);
+            if (due.isEmpty()) return;
+
+            logger.debug("{} subscriptions due for renewal", due.size());
+            // After a restart many may be due at once, those about to lapse go first.
+            due.sort(Comparator.comparing(WebSubSubscription::getExpiration));
+            val byHub = due.stream().collect(groupingBy(WebSubSubscription::getHubUrl));
+            synchronized (this) {
+                if (workers == null) return;
+                for (val entry : byHub.entrySet()) {
+                    // Renewals to a hub that is down wait until it can be tried again.
+                    if (!subscriber.getHubHealth().isAvailable(entry.getKey())) continue;
+                    // A slow hub still working through its last batch gets its due subscriptions next tick.
+                    if (!busyHubs.add(entry.getKey())) continue;
+                    workers.execute(() -> renewBatch(entry.getKey(), entry.getValue()));
+                }
+            }
+        } catch (RuntimeException e) {
+            // Never let an exception cancel the periodic task.
+            logger.error("Error checking for subscriptions to renew", e);
+        }
+    }
+
+    private Duration getHorizon(final WebSubSubscriber.Options options) {
+        val fraction = 1.0 - options.renewalFraction + options.renewalJitter;
+        return Duration.ofMillis((long) (registry.getMaxLease().toMillis() * fraction))
+                .plus(options.renewalCheckInterval);
+    }
+
+    /**
+     * @return whether the subscription should be renewed now, and isn't waiting on a recent attempt
+     */
+    boolean isDue(final WebSubSubscription subscription) {
+        return isDue(subscription, clock.instant(), subscriber.getOptions());
+    }
+
+    private boolean isDue(final WebSubSubscription subscription, final Instant now,
+                          final WebSubSubscriber.Options options) {
+        if (subscription.getState() != WebSubSubscription.State.ACTIVE
+                || subscription.getHubUrl() == null || subscription.getLeaseStart() == null)
+            return false;
+        val attempt = attempts.get(subscription.getId());
+        if (attempt != null && now.isBefore(attempt.notBefore))
+            return false;
+        return !now.isBefore(getRenewalTime(subscription, options));
+    }
+
+    /**
+     * The point in the lease at which a subscription should be renewed.
+     */
+    static Instant getRenewalTime(final WebSubSubscription subscription, final WebSubSubscriber.Options options) {
+        val lease = Duration.between(subscription.getLeaseStart(), subscription.getExpiration()).toMillis();
+        // Derived from the id so it is stable across ticks and restarts.
+        val spread = (subscription.getId().hashCode() & 0x7fffffff) / (double) Integer.MAX_VALUE;
+        val offset = lease * options.renewalFraction - lease * options.renewalJitter * spread;
+        return subscription.getLeaseStart().plusMillis((long) Math.max(0, offset));
+    }
+
+    private void renewBatch(final String hubUrl, final List<WebSubSubscription> subscriptions) {
+        try {
+            val options = subscriber.getOptions();
+            for (val subscription : subscriptions) {
+                if (Thread.currentThread().isInterrupted()) return;
+                val previous = attempts.get(subscription.getId());
+                try {
+                    renewNow(subscription);
+                } catch (WebSubSubscriber.HubUnavailableException e) {
+                    // Not the subscription's fault, leave the rest of the batch for when the hub is back.
+                    logger.info("Hub {} unavailable until {}, pausing renewals", hubUrl, e.getRetryAt());
+                    return;
+                } catch (Exception e) {
+                    val failures = previous == null ? 1 : previous.failures + 1;
+                    val backoff = options.baseRetryInterval.multipliedBy(1L << Math.min(failures - 1, MAX_BACKOFF_SHIFT));
+                    logger.warn("Could not renew subscription {} at {}, retrying in {}: {}",
+                            subscription.getId(), hubUrl, backoff, e.toString());
+                    attempts.put(subscription.getId(), new Attempt(failures, clock.instant().plus(backoff)));
+                }
+            }
+        } finally {
+            busyHubs.remove(hubUrl);
+        }
+    }
+
+    /**
+     * Renew a subscription outside of a batch. It isn't sent again by a batch until the hub had
+     * time to verify it. A failure is left to the batches to retry.
+     */
+    void renewNow(final WebSubSubscription subscription)
+            throws IOException, WebSubSubscriber.WebSubException, WebSubSubscriber.CommunicationException {
+        subscriber.renew(subscription);
+        attempts.put(subscription.getId(),
+                new Attempt(0, clock.instant().plus(subscriber.getOptions().baseRetryInterval)));
+    }
+
+    /**
+     * Called when a subscription is verified, so its next renewal starts without backoff.
+     */
+    void leaseGranted(final WebSubSubscription subscription) {
+        attempts.remove(subscription.getId());
+    }
+}
@@ -9,34 +9,47 @@ import com.google.api.client.http.HttpResponse;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.UrlEncodedContent;
 import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.jenkins.plugins.websub.subscriber.WebSubConstants.HubParams;
 import io.jenkins.plugins.websub.subscriber.WebSubConstants.Modes;
-import io.jenkins.plugins.websub.utils.GoogleApiClient;
 import lombok.Data;
+import lombok.Getter;
 import lombok.NonNull;
 import lombok.val;
-import org.jsoup.Jsoup;
-import org.jsoup.nodes.Attributes;
-import org.jsoup.nodes.Document;
-import org.jsoup.nodes.Element;
-import org.jsoup.select.Elements;
-import org.kohsuke.stapler.HttpResponses;
-import org.kohsuke.stapler.StaplerRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
 import java.net.URI;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+import java.time.Clock;
 import java.time.Duration;
 import java.time.Instant;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
-import javax.servlet.http.HttpServletResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import javax.annotation.Nullable;
 import javax.ws.rs.core.Link;
 import static java.util.stream.Collectors.groupingBy;
 import static java.util.stream.Collectors.toList;
@@ -51,7 +64,8 @@ import static io.jenkins.plugins.websub.utils.Generic.fmt;
  * communication.
  *
  * For server-side communication we assume a subscriber instance will be added
- * as a handler to a server providing filtered requests to the client.
+ * as a handler to a server providing filtered requests to the client, either
+ * Stapler or any other server through {@link CallbackRequest}.
  *
  * The Subscriber keeps two data stores:
  *
@@ -60,9 +74,13 @@ import static io.jenkins.plugins.websub.utils.Generic.fmt;
  * 2. internal storage - for persistence between subscribe and callback invocation
  *    but not meant to be persisted across application restart.
  *
- * Not thread-safe.
+ * Thread-safe. Requests for different callback ids are handled concurrently, while state
+ * transitions for the same id (verification, denial, notification lookup, expiry) are
+ * serialized by a lock striped on the callback id. The handle* callbacks run while that lock
+ * is held and should return quickly.
  *
- * TODO: Gracefully handle base url update by doing re-subscription when requests come in.
+ * The callback base URL is fixed for an instance. When it changes, create a new subscriber
+ * and subscribe again with it before unsubscribing through the old one.
  *
  * For Subscriber-side reconciliation, the callbackUrl must have a unique identifier
  * as part of its path.
@@ -75,8 +93,13 @@ import static io.jenkins.plugins.websub.utils.Generic.fmt;
  */
 public class WebSubSubscriber {
     private static final Logger logger = LoggerFactory.getLogger(WebSubSubscriber.class);
+    private static final long EXPIRY_TICK_MILLIS = 1000;
+    private static final int EXPIRY_SLOTS = 512;
+    private static final int LOCK_STRIPES = 64;
 
-    public HttpTransport transport = new NetHttpTransport();
+    @Getter private volatile HttpTransport transport = new NetHttpTransport();
+    // Built once per transport, requests pick up current timeouts from the options.
+    private volatile HttpRequestFactory requestFactory = transport.createRequestFactory(this::initializeRequest);
 
     /**
      * HTTP-related exception.
@@ -87,6 +110,23 @@ public class WebSubSubscriber {
         }
     }
 
+    /**
+     * The hub is not taking requests for now: it answered 429 or 503, or its circuit is open
+     * after repeated failures, see {@link HubHealth}. Nothing was sent if it was already known
+     * to be unavailable.
+     */
+    public static class HubUnavailableException extends CommunicationException {
+        /**
+         * When the hub may be tried again.
+         */
+        @Getter private final Instant retryAt;
+
+        HubUnavailableException(final String msg, final Instant retryAt) {
+            super(msg);
+            this.retryAt = retryAt;
+        }
+    }
+
     /**
      * Exception in WebSub protocol.
      */
@@ -96,6 +136,15 @@ public class WebSubSubscriber {
         }
     }
 
+    /**
+     * The hub denied a subscription, either in answer to a request or later on.
+     */
+    public static class DeniedException extends WebSubException {
+        DeniedException(String msg) {
+            super(msg);
+        }
+    }
+
     /**
      * Represents an ongoing subscription operation.
      */
@@ -104,11 +153,16 @@ public class WebSubSubscriber {
         String hubUrl;
         String topicUrl;
         String callbackId;
-        // TODO: secret
+        // Sent as hub.secret, null if notifications will not be signed.
+        String secret;
         int leaseSeconds;
-        // TODO: Sent-time, so they can be cleaned up if not responded in enough time.
-        WebSubSubscription toSubscription(final Instant expiration) {
-            return new WebSubSubscription(callbackId, topicUrl, expiration);
+        // When the request was sent to the hub, unverified requests expire some time after.
+        Instant sentAt;
+        // Resolved when the hub verifies or denies the request, or it fails. Never completed
+        // while holding the lock for the callback id, so dependent stages may call back in.
+        final CompletableFuture<WebSubSubscription> outcome = new CompletableFuture<>();
+        WebSubSubscription toSubscription(final Instant leaseStart, final Instant expiration) {
+            return new WebSubSubscription(callbackId, topicUrl, expiration, hubUrl, leaseStart, secret);
         }
     }
 
@@ -127,14 +181,131 @@ public class WebSubSubscriber {
         // Base retry interval for failed subscriptions.
         Duration baseRetryInterval = Duration.ofMinutes(5);
 
+        /**
+         * Fraction of the lease after which a subscription is renewed.
+         */
+        double renewalFraction = 0.75;
+        /**
+         * Fraction of the lease by which renewals are spread out before the renewal point.
+         */
+        double renewalJitter = 0.1;
+        /**
+         * How often to check for subscriptions due for renewal.
+         */
+        Duration renewalCheckInterval = Duration.ofMinutes(1);
+        /**
+         * Number of hubs renewals are sent to at once.
+         */
+        int renewalThreads = 2;
+
+        /**
+         * Time allowed to establish a connection to a hub or topic host.
+         */
+        Duration connectTimeout = Duration.ofSeconds(10);
+        /**
+         * Time allowed between bytes of a response from a hub or topic host.
+         */
+        Duration readTimeout = Duration.ofSeconds(30);
+        /**
+         * Ask for compressed responses when discovering topics.
+         */
+        boolean requestGzip = true;
+
+        /**
+         * Error rate, as a moving average over recent requests, at which a hub's circuit opens
+         * and requests to it stop for a while. See {@link HubHealth}.
+         */
+        double circuitErrorThreshold = 0.5;
+        /**
+         * Requests to a hub before its error rate is trusted.
+         */
+        int circuitMinSamples = 5;
+        /**
+         * How long a circuit first stays open, doubling each time it reopens.
+         */
+        Duration circuitOpenDuration = Duration.ofSeconds(30);
+        /**
+         * Longest Retry-After from a hub we honor, hubs asking for longer are tried again after this.
+         */
+        Duration maxRetryAfter = Duration.ofHours(1);
+
+        /**
+         * Most redirects followed for a single hub request.
+         */
+        int maxRedirects = 5;
+        /**
+         * Remember where a hub permanently redirected to (308) and send later requests there
+         * directly.
+         */
+        boolean cacheRedirects = true;
+        /**
+         * Also follow and remember 301 redirects from hubs, repeating the POST at the new
+         * location. The spec only asks for 307 and 308, but some hubs that moved answer 301.
+         */
+        boolean followMovedPermanently = false;
+        /**
+         * Most hubs with a remembered redirect.
+         */
+        int maxCachedRedirects = 1000;
+
+        /**
+         * Largest notification body accepted, larger requests get 413.
+         */
+        long maxPayloadBytes = 10 * 1024 * 1024;
+        /**
+         * Notification bodies larger than this are kept in a temporary file instead of memory.
+         */
+        long payloadSpillThreshold = 256 * 1024;
+        /**
+         * Directory for spilled notification bodies, or null for the system temporary directory.
+         */
+        Path payloadSpillDirectory;
+        /**
+         * Buffers used for capturing notification bodies.
+         */
+        @NonNull BufferPool payloadBufferPool = new BufferPool(8 * 1024, 256);
+        /**
+         * Most bytes of an HTML or feed topic to read when looking for links.
+         */
+        long maxDiscoveryBytes = 512 * 1024;
+        /**
+         * How long to wait for the hub to verify a request before treating it as failed.
+         */
+        Duration verificationTimeout = Duration.ofMinutes(10);
+        /**
+         * Generate a secret for each subscription so the hub signs notifications.
+         */
+        boolean useSecrets = true;
+        /**
+         * Also send secrets to hubs over plain HTTP, where they can be read in transit.
+         */
+        boolean allowInsecureSecrets = false;
+        /**
+         * Most requests awaiting verification at once. Further requests fail without being sent.
+         */
+        int maxPendingSubscriptions = 10_000;
+
         // TODO: Limits for Callback URL length, parameter size.
     }
 
     private final WebSubSubscriptionRegistry registry;
-    private final Options options;
+    @Getter private final Options options;
+    @Getter private final HubHealth hubHealth;
+
+    @Nullable private volatile DiscoveryCache discoveryCache;
+    // Hub URL mapped to where it permanently redirects, see Options#cacheRedirects.
+    private final Map<String, String> hubRedirects = new ConcurrentHashMap<>();
+    private final WebSubRenewalScheduler renewals;
 
     // callback id mapped to pending subscriptions
-    private Map<String, PendingSubscription> pendingSubscriptions = new HashMap<>();
+    private final Map<String, PendingSubscription> pendingSubscriptions = new ConcurrentHashMap<>();
+    // Verification deadlines of pending subscriptions.
+    private final TimingWheel<String> pendingExpiry =
+            new TimingWheel<>(EXPIRY_TICK_MILLIS, EXPIRY_SLOTS, System.currentTimeMillis());
+    // Guards transitions of a callback id between pending, active and rejected.
+    private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
+    // Drives renewals and pending expiry, null when stopped.
+    @Nullable private ScheduledExecutorService timer;
 
     /**
      * @param registry the container for subscriptions
@@ -148,25 +319,63 @@ public class WebSubSubscriber {
     public WebSubSubscriber(final WebSubSubscriptionRegistry registry, final Options options) {
         this.registry = registry;
         this.options = options;
+        this.hubHealth = new HubHealth(options, Clock.systemUTC());
+        this.renewals = new WebSubRenewalScheduler(this, registry, Clock.systemUTC());
     }
 
     /**
-     * Override to set headers, client certs, http timeout, etc on outgoing
-     * requests.
+     * Start background work: renewing subscriptions in the registry before their leases expire
+     * and expiring requests the hub has not verified in time.
+     */
+    public synchronized void start() {
+        if (timer != null) return;
+        timer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setDaemon(true).setNameFormat("websub-subscriber-timer").build());
+        timer.scheduleWithFixedDelay(this::expirePending, EXPIRY_TICK_MILLIS, EXPIRY_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        renewals.start(timer);
+    }
+
+    public synchronized void stop() {
+        if (timer == null) return;
+        renewals.stop();
+        timer.shutdownNow();
+        timer = null;
+    }
+
+    /**
+     * Stop renewing subscriptions, e.g. because another subscriber with a different base URL
+     * has taken over the registry, but keep expiring requests awaiting verification.
+     */
+    public synchronized void stopRenewals() {
+        renewals.stop();
+    }
+
+    /**
+     * Override to set headers, client certs, etc on outgoing requests, or to share a pool of
+     * connections between subscribers, see {@link PooledHttpTransport}. The caller keeps
+     * ownership of the transport.
      * TODO: Determine if this interface is enough for dictating retries or
      *  if we need to expose something more.
      * @param transport
      */
     public void setTransport(final HttpTransport transport) {
         this.transport = transport;
+        this.requestFactory = transport.createRequestFactory(this::initializeRequest);
+    }
+
+    private void initializeRequest(final HttpRequest request) {
+        request.setConnectTimeout((int) options.connectTimeout.toMillis());
+        request.setReadTimeout((int) options.readTimeout.toMillis());
+        if (!options.requestGzip)
+            request.getHeaders().setAcceptEncoding(null);
     }
 
-    // TODO: Global options, for HTTP timeout and lease_seconds.
+    // TODO: Global option for lease_seconds.
 
     /**
      * Subscribe to given hub/topic with callback. Call is executed synchronously.
      * Any error in response is given
-     * TODO: Take secret or auto-generate.
+     * A secret is generated if secrets are enabled and may be sent to the hub.
      * TODO: Try HTTPS hub URL first
      * TODO: Easier URL param support.
      * @param hubUrl as retrieved from the call to discover.
@@ -177,13 +386,61 @@ public class WebSubSubscriber {
      */
     public void subscribe(final String hubUrl, final String topicUrl, final String callbackId)
                 throws IOException, WebSubException, CommunicationException {
+        send(newSubscription(hubUrl, topicUrl, callbackId));
+    }
+
+    private PendingSubscription newSubscription(final String hubUrl, final String topicUrl, final String callbackId) {
         val subscription = new PendingSubscription();
         subscription.mode = Modes.SUBSCRIBE;
         subscription.callbackId = callbackId;
         subscription.hubUrl = hubUrl;
         subscription.topicUrl = topicUrl;
         subscription.leaseSeconds = options.leaseSeconds;
-        sendImpl(subscription.hubUrl, subscription, new ArrayList<>());
+        if (useSecret(hubUrl))
+            subscription.secret = HubSignature.generateSecret();
+        return subscription;
+    }
+
+    /**
+     * Discover without blocking the caller.
+     *
+     * @param executor runs the discovery requests
+     * @return future of the discovery result, failing with the exception {@link #discover} would throw
+     */
+    public CompletableFuture<DiscoverResponse> discoverAsync(final String topicUrl, final Executor executor) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return discover(topicUrl);
+            } catch (IOException | CommunicationException | WebSubException e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Subscribe without blocking the caller, with a generated callback id.
+     *
+     * The request is sent from the executor, which is only held for the HTTP exchange. The
+     * future then waits, without a thread, for the hub to verify or deny the subscription.
+     * Dependent stages may run on the thread handling the hub's verification request, so they
+     * should hand off anything slow.
+     *
+     * @param executor runs the subscription request
+     * @return future of the verified subscription. It fails with {@link DeniedException} if
+     *   the hub denies it, or with a {@link WebSubException} if the hub doesn't verify it within
+     *   {@link Options#verificationTimeout}, or with the exception from sending the request.
+     */
+    public CompletableFuture<WebSubSubscription> subscribeAsync(
+            final String hubUrl, final String topicUrl, final Executor executor) {
+        return subscribeAsync(hubUrl, topicUrl, UUID.randomUUID().toString(), executor);
+    }
+
+    /**
+     * As {@link #subscribeAsync(String, String, Executor)}, with a given callback id.
+     */
+    public CompletableFuture<WebSubSubscription> subscribeAsync(
+            final String hubUrl, final String topicUrl, final String callbackId, final Executor executor) {
+        return sendAsync(newSubscription(hubUrl, topicUrl, callbackId), executor);
     }
 
     /**
@@ -203,22 +460,211 @@ public class WebSubSubscriber {
         return callbackId;
     }
 
-    public void unsubscribe(final String hubUrl, final String topicUrl, final String callbackId) {
+    /**
+     * Ask the hub to extend an existing subscription, keeping its callback id and secret.
+     * The registry entry is replaced once the hub verifies the renewal. The secret follows the
+     * current options, so it is dropped if it may no longer be sent and added if missing.
+     */
+    void renew(final WebSubSubscription existing)
+            throws IOException, WebSubException, CommunicationException {
+        val subscription = new PendingSubscription();
+        subscription.mode = Modes.SUBSCRIBE;
+        subscription.callbackId = existing.getId();
+        subscription.hubUrl = existing.getHubUrl();
+        subscription.topicUrl = existing.getTopicUrl();
+        if (!useSecret(existing.getHubUrl())) {
+            if (existing.getSecret() != null)
+                logger.warn("Renewing {} with hub {} without its secret, since it may not be sent",
+                        existing.getId(), existing.getHubUrl());
+        } else if (existing.getSecret() != null) {
+            subscription.secret = existing.getSecret();
+        } else {
+            subscription.secret = HubSignature.generateSecret();
+        }
+        subscription.leaseSeconds = options.leaseSeconds;
+        send(subscription);
+    }
+
+    /**
+     * Renew a subscription now instead of waiting for the renewal scheduler, e.g. one whose
+     * lease ran out while we were not running. The hub treats it as a new subscription with
+     * the same callback id if it no longer knows it.
+     */
+    public void renewNow(final WebSubSubscription subscription)
+            throws IOException, WebSubException, CommunicationException {
+        renewals.renewNow(subscription);
+    }
+
+    /**
+     * @return whether the subscription is past its renewal point and no renewal is in progress
+     */
+    public boolean isRenewalDue(final WebSubSubscription subscription) {
+        return renewals.isDue(subscription);
+    }
+
+    public void unsubscribe(final String hubUrl, final String topicUrl, final String callbackId)
+            throws IOException, WebSubException, CommunicationException {
+        send(newUnsubscription(hubUrl, topicUrl, callbackId));
+    }
+
+    private PendingSubscription newUnsubscription(final String hubUrl, final String topicUrl, final String callbackId) {
+        val subscription = new PendingSubscription();
+        subscription.mode = Modes.UNSUBSCRIBE;
+        subscription.callbackId = callbackId;
+        subscription.hubUrl = hubUrl;
+        subscription.topicUrl = topicUrl;
+        return subscription;
+    }
+
+    /**
+     * Unsubscribe without blocking the caller, as {@link #subscribeAsync}.
+     *
+     * @return future of the removed subscription, completed once the hub verifies the request
+     */
+    public CompletableFuture<WebSubSubscription> unsubscribeAsync(
+            final String hubUrl, final String topicUrl, final String callbackId, final Executor executor) {
+        return sendAsync(newUnsubscription(hubUrl, topicUrl, callbackId), executor);
+    }
+
+    private CompletableFuture<WebSubSubscription> sendAsync(
+            final PendingSubscription subscription, final Executor executor) {
+        try {
+            executor.execute(() -> {
+                try {
+                    send(subscription);
+                } catch (Exception e) {
+                    // Already passed on through the outcome.
+                    logger.debug("Could not send {} for {}: {}", subscription.mode, subscription.callbackId, e.toString());
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            subscription.outcome.completeExceptionally(e);
+        }
+        return subscription.outcome;
+    }
+
+    /**
+     * The spec only allows hub.secret over HTTPS, unless configured otherwise.
+     */
+    private boolean canSendSecret(final String hubUrl) {
+        return options.allowInsecureSecrets || hubUrl.regionMatches(true, 0, "https:", 0, 6);
+    }
+
+    private boolean useSecret(final String hubUrl) {
+        return options.useSecrets && canSendSecret(hubUrl);
+    }
+
+    /**
+     * Register the subscription as pending and send it. It is registered first because a hub
+     * may verify the request before answering it. A failure is also passed on to its outcome.
+     */
+    private void send(final PendingSubscription subscription)
+            throws IOException, WebSubException, CommunicationException {
+        val lock = locks.get(subscription.callbackId);
+        lock.lock();
+        try {
+            if (!pendingSubscriptions.containsKey(subscription.callbackId)
+                    && pendingSubscriptions.size() >= options.maxPendingSubscriptions)
+                throw new WebSubException(
+                        fmt("Too many requests awaiting verification ({})", pendingSubscriptions.size()));
+            subscription.sentAt = Instant.now();
+            addPending(subscription);
+        } catch (WebSubException e) {
+            subscription.outcome.completeExceptionally(e);
+            throw e;
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            sendToHub(subscription);
+        } catch (IOException | WebSubException | CommunicationException | RuntimeException e) {
+            lock.lock();
+            try {
+                if (pendingSubscriptions.remove(subscription.callbackId, subscription))
+                    pendingExpiry.cancel(subscription.callbackId);
+            } finally {
+                lock.unlock();
+            }
+            subscription.outcome.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * Redirects followed for one request.
+     */
+    private static class RedirectChain {
+        // The hub URL the request was meant for.
+        final String origin;
+        // Whether the request started at the remembered location for the origin.
+        final boolean cached;
+        // URLs redirected to so far.
+        final List<String> urls = new ArrayList<>();
+        // Whether every redirect so far was permanent, so the final location can be remembered.
+        boolean permanent = true;
+
+        RedirectChain(final String origin, final boolean cached) {
+            this.origin = origin;
+            this.cached = cached;
+        }
     }
 
     /**
-     * Inner method, separate for redirect loop detection.
+     * The remembered location no longer takes requests.
+     */
+    private static class StaleRedirectException extends CommunicationException {
+        StaleRedirectException(final String msg) {
+            super(msg);
+        }
+    }
+
+    /**
+     * Send to the hub, or straight to where it last permanently redirected to. If that location
+     * is gone the redirect is forgotten and the request sent to the hub itself.
+     */
+    private void sendToHub(final PendingSubscription subscription)
+            throws IOException, WebSubException, CommunicationException {
+        val cached = options.cacheRedirects ? hubRedirects.get(subscription.hubUrl) : null;
+        if (cached != null) {
+            try {
+                val chain = new RedirectChain(subscription.hubUrl, true);
+                chain.urls.add(cached);
+                sendImpl(cached, subscription, chain);
+                return;
+            } catch (StaleRedirectException e) {
+                logger.warn("Hub {} redirected to {} before, but that no longer works ({}), trying the hub again",
+                        subscription.hubUrl, cached, e.getMessage());
+                hubRedirects.remove(subscription.hubUrl, cached);
+            }
+        }
+        sendImpl(subscription.hubUrl, subscription, new RedirectChain(subscription.hubUrl, false));
+    }
+
+    private void rememberRedirect(final RedirectChain chain, final String location) {
+        if (!options.cacheRedirects || !chain.permanent || location.equals(hubRedirects.get(chain.origin)))
+            return;
+        if (hubRedirects.size() >= options.maxCachedRedirects && !hubRedirects.containsKey(chain.origin)) {
+            logger.debug("Not remembering redirect from {}, too many remembered", chain.origin);
+            return;
+        }
+        logger.info("Hub {} has moved to {}, sending requests there from now on", chain.origin, location);
+        hubRedirects.put(chain.origin, location);
+    }
+
+    /**
+     * Inner method, separate for following redirects.
      *
      * @param hubUrl the hub URL to use for the request
      * @param subscription object with subscription details
-     * @param urls URLs redirected through so far
+     * @param chain redirects followed so far
      * @throws IOException
      * @throws WebSubException
      * @throws CommunicationException
      */
     private void sendImpl(
             final String hubUrl, final PendingSubscription subscription,
-            final List<String> urls)
+            final RedirectChain chain)
                 throws IOException, WebSubException, CommunicationException {
         // Create request content.
         final Map<String, String> data = new HashMap<>();
@@ -227,38 +673,113 @@ public class WebSubSubscriber {
         data.put(HubParams.CALLBACK, options.baseUrl + "/" + subscription.callbackId);
         if (subscription.leaseSeconds != 0)
             data.put(HubParams.LEASE_SECONDS, Integer.toString(subscription.leaseSeconds));
+        if (subscription.secret != null && subscription.mode.equals(Modes.SUBSCRIBE)) {
+            if (!canSendSecret(hubUrl))
+                throw new WebSubException(fmt("Not sending secret to non-HTTPS hub {}", hubUrl));
+            data.put(HubParams.SECRET, subscription.secret);
+        }
         val body = new UrlEncodedContent(data);
 
         // Create request.
-        final HttpRequestFactory requestFactory =
-                transport.createRequestFactory();
         final HttpRequest request =
                 requestFactory.buildPostRequest(new GenericUrl(hubUrl), body);
         request.setUnsuccessfulResponseHandler(
                 (HttpRequest request1, HttpResponse response, boolean retrySupported) -> false);
         request.setIOExceptionHandler(
                 (HttpRequest request1, boolean retrySupported) -> false);
+        request.setThrowExceptionOnExecuteError(false);
 
-        // Send request.
-        // TODO: Handle IO Exception.
-        final HttpResponse response = request.execute();
-        if (response.getStatusCode() == 202) {
-            pendingSubscriptions.put(subscription.callbackId, subscription);
-        } else {
-            final int statusCode = response.getStatusCode();
-            // TODO: Handle additional redirect types.
-            if (statusCode == 307 || statusCode == 308) {
-                String location = response.getHeaders().getLocation();
-                if (location == null)
-                    throw new WebSubException("Hub redirect did not have Location header");
-                if (urls.contains(location))
-                    throw new CommunicationException("Detected redirect loop");
-                urls.add(location);
-                sendImpl(location, subscription, urls);
-            } else {
-                throw new CommunicationException(
-                    fmt("Received status code {}", statusCode));
+        // Send request, unless the hub is known to be down.
+        if (!hubHealth.tryAcquire(hubUrl))
+            throw new HubUnavailableException(fmt("Hub {} is unavailable", hubUrl), retryAt(hubUrl));
+        final int statusCode;
+        final HttpResponse response;
+        val start = System.nanoTime();
+        boolean recorded = false;
+        try {
+            response = request.execute();
+            statusCode = response.getStatusCode();
+            // Hub responses are short, read them out so the connection goes back to the pool.
+            response.ignore();
+            val latency = Duration.ofNanos(System.nanoTime() - start);
+            if (statusCode == 429 || statusCode == 503) {
+                hubHealth.recordUnavailable(hubUrl, latency, parseRetryAfter(response.getHeaders()));
+                recorded = true;
+                throw new HubUnavailableException(
+                        fmt("Hub {} is unavailable, status code {}", hubUrl, statusCode), retryAt(hubUrl));
             }
+            if (statusCode >= 500)
+                hubHealth.recordFailure(hubUrl, latency);
+            else
+                hubHealth.recordSuccess(hubUrl, latency);
+            recorded = true;
+        } finally {
+            // Connection failures, and anything else that stopped us reading a status.
+            if (!recorded)
+                hubHealth.recordFailure(hubUrl, Duration.ofNanos(System.nanoTime() - start));
+        }
+        if (statusCode == 202) {
+            if (!chain.urls.isEmpty())
+                rememberRedirect(chain, hubUrl);
+            return;
+        }
+        val permanent = statusCode == 308 || (statusCode == 301 && options.followMovedPermanently);
+        if (statusCode == 307 || permanent) {
+            String location = response.getHeaders().getLocation();
+            if (location == null)
+                throw new WebSubException("Hub redirect did not have Location header");
+            try {
+                location = URI.create(hubUrl).resolve(location).toString();
+            } catch (IllegalArgumentException e) {
+                throw new WebSubException(fmt("Hub redirect to invalid location {}", location));
+            }
+            if (chain.cached && chain.urls.size() == 1) {
+                if (location.equals(chain.origin))
+                    throw new StaleRedirectException("redirects back to the hub");
+                logger.warn("Hub {} redirected to {} before, which now redirects to {}",
+                        chain.origin, hubUrl, location);
+            }
+            if (location.equals(chain.origin) || chain.urls.contains(location))
+                throw new CommunicationException("Detected redirect loop");
+            if (chain.urls.size() >= options.maxRedirects)
+                throw new CommunicationException(fmt("Too many redirects from hub {}", chain.origin));
+            chain.permanent &= permanent;
+            chain.urls.add(location);
+            sendImpl(location, subscription, chain);
+        } else if (chain.cached && chain.urls.size() == 1 && statusCode >= 400 && statusCode < 500) {
+            // Anything else may be a passing problem with the hub, not with where it moved.
+            throw new StaleRedirectException(fmt("status code {}", statusCode));
+        } else {
+            throw new CommunicationException(
+                fmt("Received status code {}", statusCode));
+        }
+    }
+
+    private Instant retryAt(final String hubUrl) {
+        val retryAt = hubHealth.getRetryAt(hubUrl);
+        return retryAt != null ? retryAt : Instant.now();
+    }
+
+    /**
+     * Retry-After is either a number of seconds or an HTTP date.
+     * @return the delay asked for, or null if there is none or it can't be read
+     */
+    @Nullable
+    static Duration parseRetryAfter(final HttpHeaders headers) {
+        val value = headers.getFirstHeaderStringValue("Retry-After");
+        if (value == null) return null;
+        try {
+            return Duration.ofSeconds(Math.max(0, Long.parseLong(value.trim())));
+        } catch (NumberFormatException e) {
+            // Not seconds, try a date.
+        }
+        try {
+            val date = ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+            val delay = Duration.between(Instant.now(), date);
+            return delay.isNegative() ? Duration.ZERO : delay;
+        } catch (DateTimeParseException e) {
+            logger.debug("Ignoring unreadable Retry-After: {}", value);
+            return null;
         }
     }
 
@@ -270,18 +791,34 @@ public class WebSubSubscriber {
      * A user providing requests may implement pre-validation based on e.g.
      * URL prefix.
      */
-    public org.kohsuke.stapler.HttpResponse handleRequest(final StaplerRequest request) {
-        logger.debug("Received request {}", request);
+    public CallbackResponse handleRequest(final CallbackRequest request) {
+        logger.debug("Received request {} for {}", request.getMethod(), request.getCallbackId());
         val req = new IncomingRequest(request);
         String method = request.getMethod();
-        if (method.equals("POST"))
-            return handlePostRequest(req);
-        else if (method.equals("GET"))
-            return handleGetRequest(req);
-        else
-            return HttpResponses.error(
-                    HttpServletResponse.SC_METHOD_NOT_ALLOWED,
-                    "Only GET/POST supported.");
+        try {
+            if (method.equals("POST"))
+                return handlePostRequest(req);
+            else if (method.equals("GET"))
+                return handleGetRequest(req);
+            else
+                return CallbackResponse.error(
+                        HttpURLConnection.HTTP_BAD_METHOD,
+                        "Only GET/POST supported.");
+        } catch (RejectedRequest e) {
+            return e.response;
+        }
+    }
+
+    /**
+     * Ends handling of a request early with an error response.
+     */
+    private static class RejectedRequest extends RuntimeException {
+        final CallbackResponse response;
+
+        RejectedRequest(final int status, final String message) {
+            super(message, null, false, false);
+            this.response = CallbackResponse.error(status, message);
+        }
     }
 
     /**
@@ -289,38 +826,47 @@ public class WebSubSubscriber {
      *
      * @param request incoming HTTP request
      * @return fully-formed response
-     * @throws HttpResponses.HttpResponseException for most HTTP error cases.
+     * @throws RejectedRequest for most HTTP error cases.
      */
-    private org.kohsuke.stapler.HttpResponse handleGetRequest(final IncomingRequest request)
-            throws HttpResponses.HttpResponseException {
+    private CallbackResponse handleGetRequest(final IncomingRequest request) {
         val mode = request.getParam(HubParams.MODE)
-                .orElseThrow(() -> HttpResponses.error(
+                .orElseThrow(() -> new RejectedRequest(
                         400, fmt("Request must have one '{}' parameter.", HubParams.MODE)));
 
-        if (mode.equals(Modes.DENIED))
-            return handleDeniedRequest(request);
+        if (!mode.equals(Modes.DENIED) && !mode.equals(Modes.SUBSCRIBE) && !mode.equals(Modes.UNSUBSCRIBE))
+            return CallbackResponse.error(
+                    400, fmt("'{}' value must be one of denied, subscribe, or unsubscribe.", HubParams.MODE));
 
-        if (mode.equals(Modes.SUBSCRIBE) || mode.equals(Modes.UNSUBSCRIBE))
+        val lock = locks.get(request.id);
+        lock.lock();
+        try {
+            if (mode.equals(Modes.DENIED))
+                return handleDeniedRequest(request);
             return handleSubscribeUnsubscribeRequest(mode, request);
-
-        return HttpResponses.error(
-                400, fmt("'{}' value must be one of denied, subscribe, or unsubscribe.", HubParams.MODE));
+        } finally {
+            lock.unlock();
+            if (request.resolution != null)
+                request.resolution.run();
+        }
     }
 
-    private org.kohsuke.stapler.HttpResponse handleSubscribeUnsubscribeRequest(
+    private CallbackResponse handleSubscribeUnsubscribeRequest(
             final String mode, final IncomingRequest request) {
         PendingSubscription sub = request.getPendingSubscription()
-                .orElseThrow(() -> HttpResponses.error(404, "No subscription found."));
+                .orElseThrow(() -> new RejectedRequest(404, "No subscription found."));
+        // E.g. an unsubscribe we never asked for, for a subscription being renewed.
+        if (!mode.equals(sub.mode))
+            return CallbackResponse.error(404, fmt("No pending request to {}.", mode));
 
         val topic = request.getParam(HubParams.TOPIC)
-                .orElseThrow(() -> HttpResponses.error(
+                .orElseThrow(() -> new RejectedRequest(
                         400, "Request must have one 'hub.topic' parameter."));
 
         if (!topic.equals(sub.topicUrl))
-            return HttpResponses.error(404, "Topic URL does not match expected.");
+            return CallbackResponse.error(404, "Topic URL does not match expected.");
 
         val challenge = request.getParam(HubParams.CHALLENGE)
-                .orElseThrow(() -> HttpResponses.error(
+                .orElseThrow(() -> new RejectedRequest(
                         400, "Request must have one 'hub.challenge' parameter."));
 
         Duration duration;
@@ -328,63 +874,158 @@ public class WebSubSubscriber {
             duration = request.getParam(HubParams.LEASE_SECONDS)
                     .map(Integer::parseInt)
                     .map(Duration::ofSeconds)
-                    .orElseThrow(() -> HttpResponses.error(
+                    .orElseThrow(() -> new RejectedRequest(
                             400, "Subscription requests must have one 'hub.lease_seconds' parameter."));
         } else {
             duration = options.baseRetryInterval;
         }
-        Instant expiration = Instant.now().plus(duration);
-        WebSubSubscription subscription = sub.toSubscription(expiration);
+        Instant now = Instant.now();
+        WebSubSubscription subscription = sub.toSubscription(now, now.plus(duration));
+        removePending(sub.callbackId);
+        request.resolution = () -> sub.outcome.complete(subscription);
 
         if (mode.equals(Modes.SUBSCRIBE)) {
+            // A verified renewal replaces the subscription it extends.
+            val renewed = registry.remove(subscription.getId());
             registry.add(subscription);
-            handleSubscriptionSuccess(subscription);
+            renewals.leaseGranted(subscription);
+            if (renewed)
+                handleSubscriptionRefresh(subscription.getId(), subscription);
+            else
+                handleSubscriptionSuccess(subscription);
         } else {
             registry.remove(subscription.getId());
             handleUnsubscriptionSuccess(subscription);
         }
-        // XXX: Use HttpResponses.text when Jenkins moves to Stapler 1.255.
-        // XXX: We do not handle failure to write response.
-        return (req, rsp, node) -> {
-            rsp.setContentType("text/plain;charset=UTF-8");
-            PrintWriter pw = rsp.getWriter();
-            pw.print(challenge);
-            pw.flush();
-        };
+        return CallbackResponse.text(challenge);
+    }
+
+    private void addPending(final PendingSubscription subscription) {
+        val previous = pendingSubscriptions.put(subscription.callbackId, subscription);
+        pendingExpiry.schedule(
+                subscription.callbackId, subscription.sentAt.plus(options.verificationTimeout).toEpochMilli());
+        // A request sent again for the same id resolves whoever waits on the earlier one.
+        if (previous != null && previous != subscription) {
+            subscription.outcome.whenComplete((s, e) -> {
+                if (e != null)
+                    previous.outcome.completeExceptionally(e);
+                else
+                    previous.outcome.complete(s);
+            });
+        }
+    }
+
+    @Nullable
+    private PendingSubscription removePending(final String callbackId) {
+        pendingExpiry.cancel(callbackId);
+        return pendingSubscriptions.remove(callbackId);
+    }
+
+    /**
+     * Fail pending requests that have not been verified before their deadline.
+     */
+    void expirePending() {
+        try {
+            val now = Instant.now();
+            for (val id : pendingExpiry.advance(now.toEpochMilli())) {
+                val lock = locks.get(id);
+                lock.lock();
+                PendingSubscription pending;
+                try {
+                    // The id may have been sent again since the wheel gave it up.
+                    pending = pendingSubscriptions.get(id);
+                    if (pending == null || now.isBefore(pending.sentAt.plus(options.verificationTimeout)))
+                        continue;
+                    pendingSubscriptions.remove(id);
+                    pendingExpired(pending);
+                } finally {
+                    lock.unlock();
+                }
+                pending.outcome.completeExceptionally(new WebSubException(
+                        fmt("Hub did not verify {} of {} in time", pending.mode, pending.callbackId)));
+            }
+        } catch (RuntimeException e) {
+            // Never let an exception cancel the periodic task.
+            logger.error("Error expiring pending subscriptions", e);
+        }
+    }
+
+    private void pendingExpired(final PendingSubscription pending) {
+        val existing = registry.getById(pending.callbackId);
+        if (pending.mode.equals(Modes.SUBSCRIBE)) {
+            // An unverified renewal leaves the current lease in place, it will be retried.
+            if (existing.isPresent() && existing.get().getState() == WebSubSubscription.State.ACTIVE) {
+                logger.info("Hub did not verify renewal of {} in time", pending.callbackId);
+                return;
+            }
+            val subscription = pending.toSubscription(pending.sentAt, pending.sentAt);
+            subscription.setState(WebSubSubscription.State.FAILED);
+            handleSubscriptionFailed(subscription);
+        } else {
+            handleUnsubscriptionFailed(existing.orElseGet(() -> pending.toSubscription(pending.sentAt, pending.sentAt)));
+        }
+    }
+
+    /**
+     * @return whether a request for the callback id awaits verification by the hub
+     */
+    public boolean isPending(final String callbackId) {
+        return pendingSubscriptions.containsKey(callbackId);
+    }
+
+    /**
+     * @return callback ids with a request awaiting verification by the hub
+     */
+    public Set<String> getPendingIds() {
+        return new HashSet<>(pendingSubscriptions.keySet());
+    }
+
+    /**
+     * @return number of requests awaiting verification by the hub.
+     */
+    public int getPendingCount() {
+        return pendingSubscriptions.size();
     }
 
-    private org.kohsuke.stapler.HttpResponse handleDeniedRequest(final IncomingRequest request)
-            throws HttpResponses.HttpResponseException {
+    private CallbackResponse handleDeniedRequest(final IncomingRequest request) {
         // We can receive a denial at any time, for pending subscriptions or new ones.
         val sub = request.getSubscription()
                 .orElseGet(() ->
                         request.getPendingSubscription()
-                                .map(s -> s.toSubscription(Instant.now().plus(options.baseRetryInterval)))
+                                .map(s -> s.toSubscription(Instant.now(), Instant.now().plus(options.baseRetryInterval)))
                                 .orElseThrow(() ->
-                                        HttpResponses.error(404, "No subscription found.")));
+                                        new RejectedRequest(404, "No subscription found.")));
         val topic = request.getParam(HubParams.TOPIC)
                 .orElseThrow(() ->
-                        HttpResponses.error(400, "Request must have one 'hub.topic' parameter."));
+                        new RejectedRequest(400, "Request must have one 'hub.topic' parameter."));
         if (!topic.equals(sub.getTopicUrl()))
-            return HttpResponses.error(404, "Topic URL does not match expected.");
+            return CallbackResponse.error(404, "Topic URL does not match expected.");
         // If the denial was for a pending subscription then we should only remove it from the pending
         // subscription container after we've verified the topic URL.
-        pendingSubscriptions.remove(sub.getId());
-        sub.setState(WebSubSubscription.State.REJECTED);
+        val pending = removePending(sub.getId());
+        if (pending != null) {
+            val reason = request.getParam(HubParams.REASON).orElse("no reason given");
+            request.resolution = () -> pending.outcome.completeExceptionally(
+                    new DeniedException(fmt("Hub denied {}: {}", sub.getId(), reason)));
+        }
+        // A repeated denial has nothing left to do.
+        if (!sub.compareAndSetState(WebSubSubscription.State.ACTIVE, WebSubSubscription.State.REJECTED))
+            return CallbackResponse.ok();
         // Overwriting is OK.
         registry.add(sub);
         handleSubscriptionRejection(sub);
-        return HttpResponses.ok();
+        return CallbackResponse.ok();
     }
 
     private class IncomingRequest {
-        final StaplerRequest request;
+        final CallbackRequest request;
         final String id;
+        // Resolves the outcome of a pending request, run once the lock is released.
+        @Nullable Runnable resolution;
 
-        IncomingRequest(final StaplerRequest request) {
+        IncomingRequest(final CallbackRequest request) {
             this.request = request;
-            int i = request.getRequestURL().lastIndexOf("/") + 1;
-            id = request.getRequestURL().substring(i);
+            id = request.getCallbackId();
         }
 
         Optional<PendingSubscription> getPendingSubscription() {
@@ -397,21 +1038,110 @@ public class WebSubSubscriber {
 
         Optional<String> getParam(final String name) {
             val params = request.getParameterValues(name);
-            if (params.length != 1)
+            if (params.size() != 1)
                 return Optional.empty();
-            return Optional.of(params[0]);
+            return Optional.of(params.get(0));
         }
     }
 
     /**
      * POST requests contain actual content to be propagated to listener, if it matches an
      * active subscription.
+     *
+     * The body is captured here, subject to {@link #getMaxPayloadBytes}, before being handed
+     * off to {@link #handleNotification}.
      */
-    private org.kohsuke.stapler.HttpResponse handlePostRequest(final IncomingRequest request) {
-        val subscription = request.getSubscription()
-                .orElseThrow(() -> HttpResponses.error(404, "No subscription found."));
-        handleNotification(subscription, request.request);
-        return HttpResponses.ok();
+    private CallbackResponse handlePostRequest(final IncomingRequest request) {
+        // Under the lock so a renewal replacing the subscription is not mistaken for its absence.
+        val lock = locks.get(request.id);
+        lock.lock();
+        Optional<WebSubSubscription> found;
+        try {
+            found = request.getSubscription();
+        } finally {
+            lock.unlock();
+        }
+        val subscription = found
+                .filter(s -> s.getState() == WebSubSubscription.State.ACTIVE)
+                .orElseThrow(() -> new RejectedRequest(404, "No subscription found."));
+        if (request.request.getContentLength() > options.maxPayloadBytes)
+            return payloadTooLarge(options.maxPayloadBytes);
+
+        // Drop unsigned or badly signed messages before reading anything. The spec has us
+        // acknowledge them anyway, so the sender learns nothing.
+        HubSignature signature = null;
+        if (subscription.getSecret() != null) {
+            val header = request.request.getHeader(HubSignature.HEADER);
+            if (header == null) {
+                logger.warn("Ignoring unsigned notification for {}", subscription.getId());
+                return CallbackResponse.ok();
+            }
+            val parsed = HubSignature.parse(header, subscription.getSecret());
+            if (!parsed.isPresent()) {
+                logger.warn("Ignoring notification for {} with unsupported signature", subscription.getId());
+                return CallbackResponse.ok();
+            }
+            signature = parsed.get();
+        }
+
+        // With a secret, the subscription's own limit waits until the sender has shown it holds
+        // the secret, the global one applies until then.
+        long maxBytes = signature == null ? getMaxPayloadBytes(subscription) : options.maxPayloadBytes;
+        if (request.request.getContentLength() > maxBytes)
+            return payloadTooLarge(maxBytes);
+
+        NotificationPayload payload;
+        try {
+            InputStream in = request.request.getInputStream();
+            if (signature != null)
+                in = signature.wrap(in);
+            payload = NotificationPayload.capture(
+                    in, request.request.getContentType(), maxBytes,
+                    options.payloadSpillThreshold, options.payloadBufferPool, options.payloadSpillDirectory);
+        } catch (NotificationPayload.PayloadTooLargeException e) {
+            return payloadTooLarge(maxBytes);
+        } catch (IOException e) {
+            logger.warn("Error reading content from request {}: {}", subscription.getId(), e.toString());
+            return CallbackResponse.error(400, "Could not read request body.");
+        }
+
+        if (signature != null) {
+            if (!signature.matches()) {
+                logger.warn("Ignoring notification for {} with bad signature", subscription.getId());
+                payload.close();
+                return CallbackResponse.ok();
+            }
+            maxBytes = getMaxPayloadBytes(subscription);
+            if (payload.getSize() > maxBytes) {
+                payload.close();
+                return payloadTooLarge(maxBytes);
+            }
+        }
+
+        boolean handedOff = false;
+        try {
+            val response = handleNotification(subscription, request.request, payload);
+            handedOff = true;
+            return response;
+        } finally {
+            if (!handedOff) payload.close();
+        }
+    }
+
+    private static CallbackResponse payloadTooLarge(final long maxBytes) {
+        return CallbackResponse.error(
+                HttpURLConnection.HTTP_ENTITY_TOO_LARGE,
+                fmt("Notification body must not exceed {} bytes.", maxBytes));
+    }
+
+    /**
+     * Override to apply a per-subscription limit on notification size. For subscriptions with
+     * a secret this is only called once the notification's signature has been verified.
+     * @param subscription the subscription a notification was received for
+     * @return the maximum number of bytes to accept in the notification body
+     */
+    protected long getMaxPayloadBytes(final WebSubSubscription subscription) {
+        return options.maxPayloadBytes;
     }
 
     public static class DiscoverResponse {
@@ -419,6 +1149,13 @@ public class WebSubSubscriber {
         public List<String> hubUrls = new ArrayList<>();
     }
 
+    /**
+     * Use a cache for discovery results. Null to always send discovery requests.
+     */
+    public void setDiscoveryCache(@Nullable final DiscoveryCache discoveryCache) {
+        this.discoveryCache = discoveryCache;
+    }
+
     /**
      * @param topicUrl the url to query
      * @return the priority ordered list of hub URLs and
@@ -428,21 +1165,47 @@ public class WebSubSubscriber {
      */
     public DiscoverResponse discover(String topicUrl)
             throws IOException, CommunicationException, WebSubException {
+        val cache = discoveryCache;
+        if (cache == null)
+            return discover(topicUrl, null).getResponse();
+        return cache.get(topicUrl, validators -> discover(topicUrl, validators));
+    }
+
+    /**
+     * Discovery request, conditional on the given validators if any.
+     *
+     * @return the response, or a not-modified result if the topic matched the validators.
+     */
+    private DiscoveryCache.Fetched discover(String topicUrl, @Nullable DiscoveryCache.Validators validators)
+            throws IOException, CommunicationException, WebSubException {
         // TODO: Trace warning if permanent redirect is encountered, so it can be
         //  acted on.
-        HttpRequestFactory requestFactory =
-                transport.createRequestFactory();
         // Issue HEAD request to check for Link headers.
         HttpRequest request =
                 requestFactory.buildHeadRequest(new GenericUrl(topicUrl));
+        request.setThrowExceptionOnExecuteError(false);
+        if (validators != null) {
+            request.getHeaders().setIfNoneMatch(validators.getEtag());
+            request.getHeaders().setIfModifiedSince(validators.getLastModified());
+        }
         HttpResponse response = request.execute();
-        // TODO: If request error (non 2xx), then raise a CommunicationException.
+        val responseValidators = new DiscoveryCache.Validators(
+                response.getHeaders().getETag(), response.getHeaders().getLastModified());
+        if (validators != null && response.getStatusCode() == 304) {
+            response.ignore();
+            return DiscoveryCache.Fetched.notModified(validators);
+        }
+        checkStatus(response);
+        response.ignore();
         DiscoverResponse result = checkHeaders(response);
         if (result.topicUrl != null && result.hubUrls.size() > 0)
-            return result;
+            return new DiscoveryCache.Fetched(result, responseValidators);
 
         // If insufficient Link headers found, issue GET request for resource.
+        request.getHeaders().setIfNoneMatch(null);
+        request.getHeaders().setIfModifiedSince(null);
         response = request.setRequestMethod("GET").execute();
+        checkStatus(response);
         // In case of some race condition, prefer the latter-retrieved headers.
         DiscoverResponse result2 = checkHeaders(response);
         if (result2.topicUrl != null)
@@ -453,37 +1216,71 @@ public class WebSubSubscriber {
         // If we actually found all links then return.
         boolean needTopicUrl = result.topicUrl == null;
         boolean needHubUrls = result.hubUrls.size() == 0;
-        if (!needTopicUrl && !needHubUrls)
-            return result;
+        if (!needTopicUrl && !needHubUrls) {
+            release(response);
+            return new DiscoveryCache.Fetched(result, responseValidators);
+        }
 
         HttpMediaType mediaType = response.getMediaType();
-        if (mediaType == null)
+        if (mediaType == null) {
+            release(response);
             throw new WebSubException("No content-type provided with response.");
+        }
 
-        // If result is HTML, check head for 'link' elements.
-        if ("text".equals(mediaType.getType()) && "html".equals(mediaType.getSubType())) {
-            // TODO: Use incremental parsing and provide configuration to limit max size.
-            String contents = GoogleApiClient.getHttpResponseBody(response);
-            // TODO: Jsoup.parse overload that takes encoding?
-            Document doc = Jsoup.parse(contents, topicUrl);
-            Elements links = doc.select("html > head > link");
-            for (Element link : links) {
-                Attributes attrs = link.attributes();
-                if (!attrs.hasKey("href")) continue;
-                if (!attrs.hasKey("rel")) continue;
-                String rel = attrs.get("rel");
-                if (needTopicUrl && rel.equals("self")) {
-                    result.topicUrl = link.absUrl("href");
-                    needTopicUrl = false;
-                } else if (needHubUrls && rel.equals("hub")) {
-                    result.hubUrls.add(link.absUrl("href"));
-                }
-            }
-            return result;
-        } else {
+        // If result is HTML check head for 'link' elements, if a feed check for 'atom:link'.
+        val type = mediaType.getType();
+        val subType = mediaType.getSubType();
+        val isHtml = "text".equals(type) && "html".equals(subType);
+        if (!isHtml && !FeedLinkExtractor.isFeed(type, subType)) {
+            release(response);
             throw new WebSubException("Response not understood as WebSub contents.");
         }
-        // TODO: XML parsing
+        DiscoverResponse links;
+        try {
+            val documentUrl = response.getRequest().getUrl().build();
+            links = isHtml
+                    ? HtmlLinkExtractor.extract(
+                            response.getContent(), getCharset(mediaType), options.maxDiscoveryBytes, documentUrl)
+                    : FeedLinkExtractor.extract(
+                            response.getContent(), getCharset(mediaType), options.maxDiscoveryBytes, documentUrl);
+        } finally {
+            release(response);
+        }
+        if (needTopicUrl)
+            result.topicUrl = links.topicUrl;
+        if (needHubUrls)
+            result.hubUrls.addAll(links.hubUrls);
+        return new DiscoveryCache.Fetched(result, responseValidators);
+    }
+
+    /**
+     * Done with a response that may have an unread body. A short remainder is read out so the
+     * connection can be reused, a long one is cheaper to drop along with its connection.
+     */
+    private void release(final HttpResponse response) throws IOException {
+        val length = response.getHeaders().getContentLength();
+        if (length != null && length <= options.maxDiscoveryBytes)
+            response.ignore();
+        else
+            response.disconnect();
+    }
+
+    @Nullable
+    private static Charset getCharset(final HttpMediaType mediaType) {
+        try {
+            return mediaType.getCharsetParameter();
+        } catch (IllegalArgumentException e) {
+            logger.debug("Ignoring unsupported charset in {}", mediaType.build());
+            return null;
+        }
+    }
+
+    private static void checkStatus(final HttpResponse response) throws IOException, CommunicationException {
+        if (!response.isSuccessStatusCode()) {
+            response.ignore();
+            throw new CommunicationException(
+                    fmt("Received status code {} from {}", response.getStatusCode(), response.getRequest().getUrl()));
+        }
     }
 
     private DiscoverResponse checkHeaders(HttpResponse response) {
@@ -530,8 +1327,7 @@ public class WebSubSubscriber {
     }
 
     /**
-     * XXX: Not implemented.
-     * Invoked on subscription request timeout.
+     * Invoked when the hub does not verify a subscription request in time.
      * @param subscription the failed subscription
      */
     protected void handleSubscriptionFailed(final WebSubSubscription subscription) {
@@ -548,8 +1344,7 @@ public class WebSubSubscriber {
     }
 
     /**
-     * XXX: Not implemented.
-     * Invoked on unsubscribe request timeout.
+     * Invoked when the hub does not verify an unsubscribe request in time.
      * @param subscription the failed un-subscription.
      */
     protected void handleUnsubscriptionFailed(final WebSubSubscription subscription) {
@@ -559,19 +1354,27 @@ public class WebSubSubscriber {
 
     /**
      * Invoked when a message has been received from the hub for a particular message.
-     * XXX: Once implemented, this will only be invoked AFTER secret validation.
-     * Subclasses may implement restrictions on data read, etc.
+     * If the subscription has a secret this is only invoked once the signature has been checked.
+     * Implementations should return quickly, deferring any expensive work until after the
+     * hub has been answered.
      * @param subscription the subscription corresponding to the notification
-     * @param request the request itself which can be read for contents
+     * @param request the request, for headers and parameters. The body has already been read.
+     * @param payload the captured body. Ownership passes to the implementation, which must
+     *                close it once done.
+     * @return the response to send to the hub, any 2xx acknowledges receipt
      */
-    protected void handleNotification(final WebSubSubscription subscription, final StaplerRequest request) {
-        logger.debug("Received notification for {}. Size: {}", subscription.getId(), request.getContentLength());
+    protected CallbackResponse handleNotification(
+            final WebSubSubscription subscription, final CallbackRequest request,
+            final NotificationPayload payload) {
+        logger.debug("Received notification for {}. Size: {}", subscription.getId(), payload.getSize());
+        payload.close();
+        return CallbackResponse.ok();
     }
 
     /**
-     * XXX: Not implemented.
      * Invoked on automatic refresh of the subscription.
-     * @param id the id of the old subscription (which has already been removed).
+     * The new subscription has already replaced the old one in the registry.
+     * @param id the id of the old subscription.
      * @param subscription the new subscription.
      */
     protected void handleSubscriptionRefresh(final String id, final WebSubSubscription subscription) {
@@ -1,8 +1,12 @@
 package io.jenkins.plugins.websub.subscriber;
 
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
 
 import java.time.Instant;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
 
 /**
  * Object representing interface between Subscriber and implementation.
@@ -12,10 +16,34 @@ public class WebSubSubscription {
     private final String id;
     private final String topicUrl;
     private final Instant expiration;
+    // Hub the subscription was requested from, used for renewal.
+    @Nullable private final String hubUrl;
+    // When the hub granted the current lease.
+    @Nullable private final Instant leaseStart;
 
-    //private final String secret;
+    // Key for notification signatures, null if the hub was not given one.
+    @ToString.Exclude
+    @Nullable private final String secret;
 
-    private State state = State.ACTIVE;
+    // Mutable, so not part of equality: the registry must find the subscription whatever its state.
+    @EqualsAndHashCode.Exclude
+    private final AtomicReference<State> state = new AtomicReference<>(State.ACTIVE);
+
+    public State getState() {
+        return state.get();
+    }
+
+    public void setState(final State state) {
+        this.state.set(state);
+    }
+
+    /**
+     * Change the state only if it is currently the expected one.
+     * @return true if the state was changed
+     */
+    public boolean compareAndSetState(final State expected, final State state) {
+        return this.state.compareAndSet(expected, state);
+    }
 
     enum State {
         ACTIVE,
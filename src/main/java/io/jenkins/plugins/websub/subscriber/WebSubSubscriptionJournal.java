@@ -0,0 +1,291 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import javax.annotation.Nullable;
+import lombok.Getter;
+import lombok.val;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Durable record of the subscription registry.
+ *
+ * Changes are appended to a journal as they happen. Every so often the whole registry is
+ * written to a snapshot and the journal started afresh, so the journal stays short. Both files
+ * hold the same framed records, and restoring is a sequential read of the snapshot followed by
+ * the journal.
+ *
+ * Records are flushed but not synced as they are written, a crash of the machine may lose the
+ * last few. A record cut short by a crash is detected by its checksum and dropped together with
+ * anything after it.
+ */
+public class WebSubSubscriptionJournal implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(WebSubSubscriptionJournal.class);
+    private static final int FORMAT_VERSION = 1;
+    // Length of the version header at the start of each file.
+    private static final int HEADER_BYTES = 4;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    /**
+     * Protects subscription secrets at rest.
+     */
+    public interface SecretCodec {
+        SecretCodec PLAIN = new SecretCodec() {
+            @Override
+            public String encode(final String secret) { return secret; }
+
+            @Override
+            public String decode(final String stored) { return stored; }
+        };
+
+        String encode(String secret);
+
+        /**
+         * @return the secret, or null if it cannot be recovered
+         */
+        @Nullable String decode(String stored);
+    }
+
+    private final Path snapshotFile;
+    private final Path journalFile;
+    private final SecretCodec codec;
+    // Open once loaded, null before that and after close.
+    @Nullable private DataOutputStream out;
+    // Records appended since the last snapshot.
+    @Getter private int recordCount;
+
+    public WebSubSubscriptionJournal(final Path directory, final SecretCodec codec) {
+        this.snapshotFile = directory.resolve("subscriptions.snapshot");
+        this.journalFile = directory.resolve("subscriptions.journal");
+        this.codec = codec;
+    }
+
+    /**
+     * Read back the subscriptions recorded by a previous run and open the journal for appending.
+     * Missing files are treated as empty.
+     *
+     * @return the subscriptions that were active, in the order they were last recorded
+     */
+    public synchronized List<WebSubSubscription> load() throws IOException {
+        Files.createDirectories(journalFile.getParent());
+        final Map<String, WebSubSubscription> subscriptions = new LinkedHashMap<>();
+        read(snapshotFile, subscriptions);
+        val valid = read(journalFile, subscriptions);
+        if (valid < 0) {
+            startJournal();
+        } else {
+            // Drop anything after the last good record before appending to it.
+            try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.WRITE)) {
+                channel.truncate(valid);
+            }
+            out = new DataOutputStream(new BufferedOutputStream(
+                    Files.newOutputStream(journalFile, StandardOpenOption.APPEND)));
+        }
+
+        final List<WebSubSubscription> active = new ArrayList<>();
+        for (val subscription : subscriptions.values()) {
+            if (subscription.getState() == WebSubSubscription.State.ACTIVE)
+                active.add(subscription);
+        }
+        logger.info("Loaded {} subscriptions from {}", active.size(), journalFile.getParent());
+        return active;
+    }
+
+    /**
+     * Apply the records in a file.
+     * @return the length of the file up to the end of its last good record, -1 if it is
+     *   missing or unreadable
+     */
+    private long read(final Path file, final Map<String, WebSubSubscription> subscriptions) throws IOException {
+        if (!Files.exists(file)) return -1;
+        val size = Files.size(file);
+        long valid = HEADER_BYTES;
+        int records = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            try {
+                if (in.readInt() != FORMAT_VERSION) {
+                    logger.warn("Ignoring subscription file {} with unknown format", file);
+                    return -1;
+                }
+            } catch (EOFException e) {
+                return -1;
+            }
+            val crc = new CRC32();
+            while (true) {
+                byte[] record;
+                try {
+                    val length = in.readInt();
+                    // A torn or corrupt length is treated like a bad checksum, the record and
+                    // its checksum have to fit in what is left of the file.
+                    if (length <= 0 || length > size - valid - 8) break;
+                    record = new byte[length];
+                    in.readFully(record);
+                    crc.reset();
+                    crc.update(record, 0, length);
+                    if (in.readInt() != (int) crc.getValue()) break;
+                } catch (EOFException e) {
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(record)), subscriptions);
+                valid += 4 + record.length + 4;
+                records++;
+            }
+        }
+        if (valid < size)
+            logger.warn("Ignoring {} bytes after record {} of {}", size - valid, records, file);
+        return valid;
+    }
+
+    private void apply(final DataInputStream in, final Map<String, WebSubSubscription> subscriptions)
+            throws IOException {
+        val type = in.readByte();
+        val id = in.readUTF();
+        if (type == REMOVE) {
+            subscriptions.remove(id);
+            return;
+        }
+        val topicUrl = in.readUTF();
+        val expiration = Instant.ofEpochMilli(in.readLong());
+        val hubUrl = readNullable(in);
+        val leaseStart = in.readBoolean() ? Instant.ofEpochMilli(in.readLong()) : null;
+        val storedSecret = readNullable(in);
+        val state = WebSubSubscription.State.valueOf(in.readUTF());
+        String secret = null;
+        if (storedSecret != null) {
+            secret = codec.decode(storedSecret);
+            if (secret == null) {
+                // Without its secret no notification could be verified, it has to be made again.
+                logger.warn("Could not recover the secret of subscription {}, dropping it", id);
+                subscriptions.remove(id);
+                return;
+            }
+        }
+        val subscription = new WebSubSubscription(id, topicUrl, expiration, hubUrl, leaseStart, secret);
+        subscription.setState(state);
+        subscriptions.put(id, subscription);
+    }
+
+    /**
+     * Record a subscription being added or replaced.
+     */
+    public synchronized void put(final WebSubSubscription subscription) throws IOException {
+        append(encodePut(subscription));
+    }
+
+    /**
+     * Record a subscription being removed.
+     */
+    public synchronized void remove(final String id) throws IOException {
+        val bytes = new ByteArrayOutputStream();
+        val record = new DataOutputStream(bytes);
+        record.writeByte(REMOVE);
+        record.writeUTF(id);
+        append(bytes.toByteArray());
+    }
+
+    /**
+     * Replace the snapshot with the given subscriptions and empty the journal.
+     *
+     * Callers must make their changes to the registry before recording them, then a change
+     * racing with a snapshot is either in it or recorded after it.
+     */
+    public synchronized void snapshot(final Iterable<WebSubSubscription> subscriptions) throws IOException {
+        val tmp = snapshotFile.resolveSibling(snapshotFile.getFileName() + ".tmp");
+        int count = 0;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            val snapshot = new DataOutputStream(new BufferedOutputStream(
+                    Channels.newOutputStream(channel)));
+            snapshot.writeInt(FORMAT_VERSION);
+            for (val subscription : subscriptions) {
+                writeRecord(snapshot, encodePut(subscription));
+                count++;
+            }
+            snapshot.flush();
+            channel.force(false);
+        }
+        Files.move(tmp, snapshotFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        // Replaying the old journal over the new snapshot would be harmless, so a crash here is safe.
+        startJournal();
+        logger.debug("Wrote snapshot of {} subscriptions", count);
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (out == null) return;
+        out.close();
+        out = null;
+    }
+
+    private void startJournal() throws IOException {
+        if (out != null)
+            out.close();
+        out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(journalFile)));
+        out.writeInt(FORMAT_VERSION);
+        out.flush();
+        recordCount = 0;
+    }
+
+    private void append(final byte[] record) throws IOException {
+        if (out == null)
+            throw new IOException("Subscription journal is not open");
+        writeRecord(out, record);
+        out.flush();
+        recordCount++;
+    }
+
+    private byte[] encodePut(final WebSubSubscription subscription) throws IOException {
+        val bytes = new ByteArrayOutputStream();
+        val record = new DataOutputStream(bytes);
+        record.writeByte(PUT);
+        record.writeUTF(subscription.getId());
+        record.writeUTF(subscription.getTopicUrl());
+        record.writeLong(subscription.getExpiration().toEpochMilli());
+        writeNullable(record, subscription.getHubUrl());
+        record.writeBoolean(subscription.getLeaseStart() != null);
+        if (subscription.getLeaseStart() != null)
+            record.writeLong(subscription.getLeaseStart().toEpochMilli());
+        writeNullable(record, subscription.getSecret() == null ? null : codec.encode(subscription.getSecret()));
+        record.writeUTF(subscription.getState().name());
+        return bytes.toByteArray();
+    }
+
+    private static void writeRecord(final DataOutputStream out, final byte[] record) throws IOException {
+        val crc = new CRC32();
+        crc.update(record, 0, record.length);
+        out.writeInt(record.length);
+        out.write(record);
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static void writeNullable(final DataOutputStream out, @Nullable final String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) out.writeUTF(s);
+    }
+
+    @Nullable
+    private static String readNullable(final DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
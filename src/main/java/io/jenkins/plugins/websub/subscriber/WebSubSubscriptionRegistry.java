@@ -7,17 +7,31 @@ import com.googlecode.cqengine.index.navigable.NavigableIndex;
 import com.googlecode.cqengine.index.unique.UniqueIndex;
 import lombok.val;
 
+import java.io.IOException;
+import java.time.Duration;
 import java.time.Instant;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
+import javax.annotation.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import static com.googlecode.cqengine.query.QueryFactory.*;
 
 /**
  * Container for persisted subscriptions.
+ *
+ * Once {@link #restore restored} from a {@link WebSubSubscriptionJournal}, every change is
+ * recorded in the journal after it is made, and the journal is compacted into a snapshot when
+ * it grows past the size of the registry.
  */
 public class WebSubSubscriptionRegistry {
+    private static final Logger logger = LoggerFactory.getLogger(WebSubSubscriptionRegistry.class);
+    // Journals shorter than this are never compacted.
+    private static final int MIN_COMPACT_RECORDS = 1000;
+
     // Namespace for attributes.
     static private class SubscriptionAttributes {
         public static final Attribute<WebSubSubscription, String> ID =
@@ -27,6 +41,9 @@ public class WebSubSubscriptionRegistry {
     }
 
     final private IndexedCollection<WebSubSubscription> subscriptions = new ConcurrentIndexedCollection<>();
+    // Longest lease seen, bounds how far ahead of expiration renewals need to look.
+    final private AtomicLong maxLeaseMillis = new AtomicLong();
+    @Nullable private volatile WebSubSubscriptionJournal journal;
 
     final private static int wowwhatalonglinethisisreallyalonglinethatIamwritingrightnowIwonderifthecheckstylepluginwilldoanythingaboutthisbecauseofhowlongitisandbecauseitsgoingoverthemaxlengthp = 1;
     public WebSubSubscriptionRegistry() {
@@ -48,12 +65,92 @@ public class WebSubSubscriptionRegistry {
         return results.stream().collect(Collectors.toList());
     }
 
+    public List<WebSubSubscription> getAll() {
+        return subscriptions.stream().collect(Collectors.toList());
+    }
+
+    public int size() {
+        return subscriptions.size();
+    }
+
+    /**
+     * @return the longest lease of any subscription added so far
+     */
+    Duration getMaxLease() {
+        return Duration.ofMillis(maxLeaseMillis.get());
+    }
+
     void add(WebSubSubscription subscription) {
         subscriptions.add(subscription);
+        if (subscription.getLeaseStart() != null) {
+            val lease = Duration.between(subscription.getLeaseStart(), subscription.getExpiration()).toMillis();
+            maxLeaseMillis.accumulateAndGet(lease, Math::max);
+        }
+        record(j -> j.put(subscription));
     }
 
     boolean remove(String callbackId) {
         val subscription = getById(callbackId);
-        return subscription.map(subscriptions::remove).orElse(false);
+        val removed = subscription.map(subscriptions::remove).orElse(false);
+        if (removed)
+            record(j -> j.remove(callbackId));
+        return removed;
+    }
+
+    /**
+     * Add the subscriptions recorded in the journal, then record changes to it from now on.
+     * The journal is compacted straight away so a restart begins with a short one.
+     *
+     * @return the number of subscriptions restored
+     */
+    public int restore(final WebSubSubscriptionJournal journal) throws IOException {
+        val restored = journal.load();
+        for (val subscription : restored) {
+            remove(subscription.getId());
+            add(subscription);
+        }
+        journal.snapshot(subscriptions);
+        this.journal = journal;
+        return restored.size();
+    }
+
+    /**
+     * Compact the journal, if one is attached and anything was recorded since the last snapshot.
+     */
+    public void snapshot() throws IOException {
+        val journal = this.journal;
+        if (journal == null || journal.getRecordCount() == 0) return;
+        journal.snapshot(subscriptions);
+    }
+
+    /**
+     * Snapshot and stop recording changes.
+     */
+    public void close() throws IOException {
+        val journal = this.journal;
+        if (journal == null) return;
+        this.journal = null;
+        try {
+            journal.snapshot(subscriptions);
+        } finally {
+            journal.close();
+        }
+    }
+
+    private interface JournalOperation {
+        void apply(WebSubSubscriptionJournal journal) throws IOException;
+    }
+
+    private void record(final JournalOperation operation) {
+        val journal = this.journal;
+        if (journal == null) return;
+        try {
+            operation.apply(journal);
+            if (journal.getRecordCount() > Math.max(MIN_COMPACT_RECORDS, subscriptions.size()))
+                journal.snapshot(subscriptions);
+        } catch (IOException e) {
+            // The subscription still works for this run, at worst it is made again after a restart.
+            logger.warn("Could not record subscription change: {}", e.toString());
+        }
     }
 }
@@ -6,14 +6,23 @@ import com.google.common.io.CharStreams;
 
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.Charset;
 
 final public class GoogleApiClient {
     private GoogleApiClient() {}
 
     public static String getHttpResponseBody(final HttpResponse response) throws IOException {
-        String charset = response.getContentEncoding();
+        // Content-Encoding is a transfer coding like gzip, the charset comes from Content-Type.
+        Charset charset = null;
+        if (response.getMediaType() != null) {
+            try {
+                charset = response.getMediaType().getCharsetParameter();
+            } catch (IllegalArgumentException e) {
+                // Unsupported charset, use the default.
+            }
+        }
         if (charset == null) {
-            charset = Charsets.UTF_8.name();
+            charset = Charsets.UTF_8;
         }
         return CharStreams.toString(new InputStreamReader(response.getContent(), charset));
     }
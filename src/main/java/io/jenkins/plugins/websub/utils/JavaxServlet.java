@@ -2,14 +2,11 @@ package io.jenkins.plugins.websub.utils;
 
 import com.google.api.client.http.UrlEncodedParser;
 import com.google.common.collect.ImmutableMultimap;
-import java.io.BufferedReader;
-import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import javax.servlet.http.HttpServletRequest;
-import org.apache.commons.io.IOUtils;
 
 import static io.jenkins.plugins.websub.utils.Collections.toStream;
 
@@ -31,10 +28,4 @@ final public class JavaxServlet {
         data.forEach(builder::putAll);
         return builder.build();
     }
-
-    public static String getRequestBody(final HttpServletRequest request) throws IOException {
-        // TODO: Enforce limits on payload size.
-        BufferedReader reader = request.getReader();
-        return IOUtils.toString(reader);
-    }
 }
@@ -0,0 +1,172 @@
+package io.jenkins.plugins.websub;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.common.util.concurrent.Uninterruptibles;
+import io.jenkins.plugins.websub.subscriber.CallbackRequest;
+import io.jenkins.plugins.websub.subscriber.CallbackResponse;
+import io.jenkins.plugins.websub.subscriber.NotificationPayload;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscriber;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscription;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscriptionRegistry;
+import io.jenkins.plugins.websub.utils.GoogleApiClient;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import lombok.val;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static io.jenkins.plugins.websub.utils.Generic.fmt;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs the listener on localhost in front of a subscriber, as hubs would reach it.
+ */
+class TestWebSubCallbackListener {
+    private static final String PREFIX = "websub-trigger/receive";
+    private static final String HUB = "http://example.com/hub";
+    private static final String TOPIC = "http://example.com/topic";
+    private static final String ID = "subscription-1";
+
+    private final HttpRequestFactory requestFactory = new NetHttpTransport().createRequestFactory();
+    private final List<String> notifications = Collections.synchronizedList(new ArrayList<>());
+    // Holds notifications until counted down, when set.
+    private volatile CountDownLatch release;
+    private final WebSubSubscriber client = new WebSubSubscriber(new WebSubSubscriptionRegistry(), "http://listener/callback") {
+        @Override
+        protected CallbackResponse handleNotification(
+                final WebSubSubscription subscription, final CallbackRequest request,
+                final NotificationPayload payload) {
+            if (release != null)
+                Uninterruptibles.awaitUninterruptibly(release);
+            notifications.add(payload.asCharSequence().toString());
+            payload.close();
+            return CallbackResponse.status(202);
+        }
+    };
+    private final WebSubCallbackListener listener = new WebSubCallbackListener(PREFIX, id -> client);
+    private final int port;
+
+    TestWebSubCallbackListener() throws IOException {
+        client.setTransport(new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(final String method, final String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() {
+                        return new MockLowLevelHttpResponse().setStatusCode(202);
+                    }
+                };
+            }
+        });
+        try (val socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+    }
+
+    @AfterEach
+    void tearDown() {
+        listener.stop();
+    }
+
+    private String url(final String path) {
+        return fmt("http://localhost:{}/{}/{}", port, PREFIX, path);
+    }
+
+    private com.google.api.client.http.HttpResponse get(final GenericUrl url) throws IOException {
+        val request = requestFactory.buildGetRequest(url);
+        request.setThrowExceptionOnExecuteError(false);
+        return request.execute();
+    }
+
+    private int sendNotification(final String content) throws IOException {
+        val request = requestFactory.buildPostRequest(new GenericUrl(url(ID)),
+                new ByteArrayContent("text/plain", content.getBytes(StandardCharsets.UTF_8)));
+        request.setThrowExceptionOnExecuteError(false);
+        val response = request.execute();
+        response.disconnect();
+        return response.getStatusCode();
+    }
+
+    private void subscribe() throws Exception {
+        val subscribed = client.subscribeAsync(HUB, TOPIC, ID, Runnable::run);
+        val url = new GenericUrl(url(ID));
+        url.put("hub.mode", "subscribe");
+        url.put("hub.topic", TOPIC);
+        url.put("hub.challenge", "challenge-1");
+        url.put("hub.lease_seconds", "3600");
+        val response = get(url);
+        assertEquals(200, response.getStatusCode());
+        assertEquals("challenge-1", GoogleApiClient.getHttpResponseBody(response));
+        assertEquals(ID, subscribed.get(5, TimeUnit.SECONDS).getId());
+    }
+
+    @Test
+    void testVerificationEchoed() throws Exception {
+        listener.listen(port);
+        assertTrue(listener.isListening());
+        subscribe();
+    }
+
+    @Test
+    void testNotificationReachesSubscriber() throws Exception {
+        listener.listen(port);
+        subscribe();
+        assertEquals(202, sendNotification("update"));
+        assertEquals(Collections.singletonList("update"), notifications);
+    }
+
+    @Test
+    void testOnlyCallbackPathsAccepted() throws Exception {
+        listener.listen(port);
+        assertEquals(404, get(new GenericUrl(url(""))).getStatusCode());
+        assertEquals(404, get(new GenericUrl(url("a/b"))).getStatusCode());
+        assertEquals(404, get(new GenericUrl(fmt("http://localhost:{}/other/{}", port, ID))).getStatusCode());
+    }
+
+    @Test
+    void testListenOnZeroStops() throws Exception {
+        listener.listen(port);
+        listener.listen(0);
+        assertFalse(listener.isListening());
+        assertThrows(IOException.class, () -> get(new GenericUrl(url(ID))));
+    }
+
+    @Test
+    void testListenOnSamePortKeepsServer() throws Exception {
+        listener.listen(port);
+        subscribe();
+        release = new CountDownLatch(1);
+        val sent = CompletableFuture.supplyAsync(() -> {
+            try {
+                return sendNotification("in flight");
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        Thread.sleep(500);
+        // Restarting the server would drop the request being handled.
+        listener.listen(port);
+        assertTrue(listener.isListening());
+        release.countDown();
+        assertEquals(202, (int) sent.get(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("in flight"), notifications);
+    }
+}
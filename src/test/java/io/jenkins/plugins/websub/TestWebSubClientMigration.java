@@ -0,0 +1,121 @@
+package io.jenkins.plugins.websub;
+
+import hudson.model.FreeStyleProject;
+import hudson.model.listeners.ItemListener;
+import io.jenkins.plugins.websub.TestWebSubTrigger.Hub;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscriber;
+import io.jenkins.plugins.websub.test.JenkinsRule;
+import io.jenkins.plugins.websub.test.StaplerServer;
+import java.util.Collections;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import jenkins.model.JenkinsLocationConfiguration;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import static io.jenkins.plugins.websub.utils.Generic.fmt;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Changes the Jenkins URL while a job has a live subscription with the test hub.
+ */
+@ExtendWith(JenkinsRule.Resolver.class)
+@ExtendWith(StaplerServer.Resolver.class)
+class TestWebSubClientMigration {
+    private static final String TOPIC = "http://example.com/feed";
+
+    private final BlockingQueue<Hub.SubscribeRequest> requests = new LinkedBlockingQueue<>();
+
+    private Hub.SubscribeRequest next(final String mode) throws InterruptedException {
+        val request = requests.poll(10, TimeUnit.SECONDS);
+        assertNotNull(request, "no " + mode + " request");
+        assertEquals(mode, request.getMode());
+        return request;
+    }
+
+    private static String id(final Hub.SubscribeRequest request) {
+        val callbackUrl = request.getCallbackUrl();
+        return callbackUrl.substring(callbackUrl.lastIndexOf('/') + 1);
+    }
+
+    private static void setJenkinsUrl(final String url) {
+        val config = JenkinsLocationConfiguration.get();
+        assert config != null;
+        config.setUrl(url);
+        config.save();
+    }
+
+    private static boolean isMigrating(final WebSubSharedResources resources, final WebSubSubscriber from) {
+        return resources.getMigrations().stream().anyMatch(migration -> migration.getFrom() == from);
+    }
+
+    private static void publishAndWaitForBuild(final JenkinsRule j, final Hub hub, final FreeStyleProject project)
+            throws Exception {
+        val builds = project.getBuilds().size();
+        hub.publish(TOPIC, "update");
+        await().atMost(10, TimeUnit.SECONDS).until(() -> project.getBuilds().size() == builds + 1);
+        j.waitUntilNoActivity();
+    }
+
+    @Test
+    void testSubscriptionsMoveToNewUrl(JenkinsRule j, StaplerServer server) throws Exception {
+        val oldUrl = j.getURL().toString();
+        setJenkinsUrl(oldUrl);
+        val hub = new Hub(requests::add);
+        hub.setHubUrl(fmt("{}/subscribe", server.getBaseUrl()));
+        hub.setTopicUrl(TOPIC);
+        // No renewals while the test runs.
+        hub.setLeaseSeconds(3600);
+        server.setCallback(hub);
+
+        val project = j.createFreeStyleProject("migrated");
+        project.setQuietPeriod(0);
+        val subscription = new WebSubTriggerSubscription(fmt("{}/gettopic", server.getBaseUrl()));
+        val trigger = new WebSubTrigger(Collections.singletonList(subscription));
+        project.addTrigger(trigger);
+        trigger.start(project, true);
+        ItemListener.fireOnUpdated(project);
+
+        val subscribed = next("subscribe");
+        assertTrue(subscribed.getCallbackUrl().startsWith(oldUrl));
+        assertEquals(200, hub.sendVerification(subscribed).getStatusCode());
+        val oldId = id(subscribed);
+        await().atMost(5, TimeUnit.SECONDS).until(() -> oldId.equals(subscription.getId()));
+        publishAndWaitForBuild(j, hub, project);
+
+        val resources = WebSubSharedResources.getInstance();
+        val from = resources.getClient();
+        // Same Jenkins, reached under another URL.
+        val newUrl = oldUrl.replace("://localhost:", "://127.0.0.1:");
+        setJenkinsUrl(newUrl);
+        assertNotSame(from, resources.getClient());
+        assertTrue(isMigrating(resources, from));
+
+        val moved = next("subscribe");
+        assertTrue(moved.getCallbackUrl().startsWith(newUrl));
+        val newId = id(moved);
+        // The hub only knows the old callback so far, which still triggers the job.
+        publishAndWaitForBuild(j, hub, project);
+        assertEquals(oldId, subscription.getId());
+
+        assertEquals(200, hub.sendVerification(moved).getStatusCode());
+        val unsubscribed = next("unsubscribe");
+        assertEquals(subscribed.getCallbackUrl(), unsubscribed.getCallbackUrl());
+        assertEquals(newId, subscription.getId());
+        assertTrue(project.getConfigFile().asString().contains(newId));
+        assertTrue(resources.getRouter().get(oldId).isEmpty());
+        assertEquals(200, hub.sendVerification(unsubscribed).getStatusCode());
+
+        // Only the new callback is left with the hub.
+        publishAndWaitForBuild(j, hub, project);
+        // The old client is retired once it has nothing pending.
+        await().atMost(30, TimeUnit.SECONDS).until(() -> !isMigrating(resources, from));
+        assertTrue(requests.isEmpty());
+    }
+}
@@ -0,0 +1,92 @@
+package io.jenkins.plugins.websub;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TestWebSubJobRouter {
+    private static final String TOPIC = "http://example.com/topic";
+
+    private static WebSubTriggerSubscription subscription(final String id) {
+        val subscription = new WebSubTriggerSubscription(TOPIC);
+        subscription.setId(id);
+        return subscription;
+    }
+
+    @Test
+    void testSharedIdRoutesToEveryJobUntilLastRemoved() {
+        val router = new WebSubJobRouter();
+        router.put("a", null, subscription("shared"));
+        router.put("b", null, subscription("shared"));
+        // The same topic twice in one job still routes once.
+        router.put("b", null, subscription("shared"));
+        router.put("b", null, subscription("own"));
+        assertEquals(2, router.get("shared").size());
+
+        assertTrue(router.removeJob("a").isEmpty());
+        assertEquals(1, router.get("shared").size());
+        router.rename("b", "c");
+        assertEquals("c", router.get("shared").iterator().next().getJobFullName());
+        val unused = router.removeJob("c");
+        assertEquals(2, unused.size());
+        assertTrue(unused.contains("shared") && unused.contains("own"));
+        assertTrue(router.get("shared").isEmpty());
+    }
+
+    @Test
+    void testTopicIdsOfJob() {
+        val router = new WebSubJobRouter();
+        val other = new WebSubTriggerSubscription("http://example.com/other");
+        other.setId("other");
+        router.put("a", null, subscription("shared"));
+        router.put("a", null, other);
+        router.put("b", null, subscription("shared"));
+        val topicIds = router.getTopicIds("a");
+        assertEquals(2, topicIds.size());
+        assertEquals("shared", topicIds.get(TOPIC));
+        assertEquals("other", topicIds.get("http://example.com/other"));
+        assertTrue(router.getTopicIds("c").isEmpty());
+    }
+
+    @Test
+    void testReplacedIdMovesEveryRoute() {
+        val router = new WebSubJobRouter();
+        val a = subscription("old");
+        router.put("a", null, a);
+        router.put("b", null, subscription("old"));
+        router.put("b", null, subscription("kept"));
+
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), router.replaceId("old", "new"));
+        assertTrue(router.get("old").isEmpty());
+        assertEquals(2, router.get("new").size());
+        assertEquals("new", a.getId());
+        assertEquals(new HashSet<>(Arrays.asList("new", "kept")), router.getIds("b"));
+        // Nothing left to move.
+        assertTrue(router.replaceId("old", "other").isEmpty());
+    }
+
+    @Test
+    void testFolderRoutesMovedAndRemovedTogether() {
+        val router = new WebSubJobRouter();
+        router.put("folder/a", null, subscription("a"));
+        router.put("folder/sub/b", null, subscription("b"));
+        router.put("folder-other/c", null, subscription("c"));
+        router.put("other", null, subscription("a"));
+
+        router.renameFolder("folder", "moved");
+        assertEquals("moved/sub/b", router.get("b").iterator().next().getJobFullName());
+        assertEquals("folder-other/c", router.get("c").iterator().next().getJobFullName());
+        // Jenkins then reports each job moved, which is a no-op.
+        router.rename("folder/a", "moved/a");
+        assertEquals(2, router.get("a").size());
+
+        assertEquals(Collections.singleton("b"), router.removeFolder("moved"));
+        assertEquals(1, router.get("a").size());
+        assertEquals(1, router.get("c").size());
+    }
+}
@@ -0,0 +1,53 @@
+package io.jenkins.plugins.websub;
+
+import com.google.common.collect.ImmutableMultimap;
+import io.jenkins.plugins.websub.WebSubNotificationQueue.Notification;
+import io.jenkins.plugins.websub.subscriber.NotificationPayload;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TestWebSubNotificationQueue {
+    private static Notification notification(final String id) {
+        return new Notification(id, ImmutableMultimap.of(), ImmutableMultimap.of(),
+                NotificationPayload.of(id.getBytes(StandardCharsets.UTF_8), "text/plain"), Instant.now());
+    }
+
+    @Test
+    void testRefusesBeyondCapacityThenDrains() throws Exception {
+        final List<String> delivered = new CopyOnWriteArrayList<>();
+        val release = new CountDownLatch(1);
+        val queue = new WebSubNotificationQueue(1, 3, notification -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            delivered.add(notification.getCallbackId());
+        });
+        for (int i = 0; i < 3; i++)
+            assertTrue(queue.offer(notification("id" + i)));
+        // Accepted before any was delivered, and nothing more fits.
+        assertFalse(queue.offer(notification("refused")));
+        assertEquals(3, queue.getDepth());
+        assertTrue(delivered.isEmpty());
+
+        release.countDown();
+        await().atMost(5, TimeUnit.SECONDS).until(() -> queue.getDepth() == 0);
+        assertEquals(Arrays.asList("id0", "id1", "id2"), delivered);
+        // Room again.
+        assertTrue(queue.offer(notification("later")));
+        await().atMost(5, TimeUnit.SECONDS).until(() -> delivered.contains("later"));
+    }
+}
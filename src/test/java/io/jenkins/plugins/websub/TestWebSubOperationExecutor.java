@@ -0,0 +1,87 @@
+package io.jenkins.plugins.websub;
+
+import io.jenkins.plugins.websub.utils.Generic.ClosureVal;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TestWebSubOperationExecutor {
+    @Test
+    void testLimitsHostAndInterruptsOnDeadline() throws Exception {
+        val executor = new WebSubOperationExecutor(4, 1, 1, Duration.ofMillis(500));
+        val interrupted = new CountDownLatch(1);
+        val stuck = executor.submit(WebSubOperationExecutor.Target.HOST, "http://slow/a", () -> {
+            try {
+                new CountDownLatch(1).await();
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw e;
+            }
+            return "stuck";
+        });
+        // Only the first operation has the short deadline.
+        executor.reconfigure(4, 1, 1, Duration.ofSeconds(10));
+        val started = new AtomicInteger();
+        val waiting = executor.submit(WebSubOperationExecutor.Target.HOST, "http://SLOW/b", () -> {
+            started.incrementAndGet();
+            return "waiting";
+        });
+        val other = executor.submit(WebSubOperationExecutor.Target.HOST, "http://fast/c", () -> "other");
+
+        // Another host is not held up by the slow one.
+        assertEquals("other", other.get(5, TimeUnit.SECONDS));
+        assertEquals(0, started.get());
+        await().atMost(5, TimeUnit.SECONDS).until(() -> executor.getInFlight() == 1);
+        assertEquals(1, executor.getQueued());
+
+        // The deadline fails the future and interrupts the thread, freeing the host.
+        val failure = ClosureVal.of(Throwable.class);
+        try {
+            stuck.get(5, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            failure.value = e.getCause();
+        }
+        assertTrue(failure.value instanceof TimeoutException);
+        assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+        assertEquals("waiting", waiting.get(5, TimeUnit.SECONDS));
+        assertEquals(1, started.get());
+        await().atMost(5, TimeUnit.SECONDS).until(() -> executor.getInFlight() == 0);
+        assertEquals(0, executor.getQueued());
+    }
+
+    @Test
+    void testBlockedReadHoldsSlotUntilSocketTimeout() throws Exception {
+        val executor = new WebSubOperationExecutor(4, 1, 1, Duration.ofMillis(200));
+        // Connections are accepted by the OS, but nothing is ever sent.
+        try (val server = new ServerSocket(0)) {
+            val stuck = executor.submit(WebSubOperationExecutor.Target.HOST, "http://silent/a", () -> {
+                try (val socket = new Socket("localhost", server.getLocalPort())) {
+                    // Stands in for the read timeout of the transport.
+                    socket.setSoTimeout(1500);
+                    return socket.getInputStream().read();
+                }
+            });
+            val failure = ClosureVal.of(Throwable.class);
+            try {
+                stuck.get(1, TimeUnit.SECONDS);
+            } catch (ExecutionException e) {
+                failure.value = e.getCause();
+            }
+            assertTrue(failure.value instanceof TimeoutException);
+            // The interrupt does not reach the blocked read, the slot is held until it times out.
+            assertEquals(1, executor.getInFlight());
+            await().atMost(5, TimeUnit.SECONDS).until(() -> executor.getInFlight() == 0);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package io.jenkins.plugins.websub;
+
+import io.jenkins.plugins.websub.test.JenkinsRule;
+import io.jenkins.plugins.websub.utils.Generic.ClosureVal;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(JenkinsRule.Resolver.class)
+class TestWebSubReconciler {
+    private static class MutableClock extends Clock {
+        Instant now = Instant.parse("2018-01-01T00:00:00Z");
+
+        @Override
+        public ZoneId getZone() { return ZoneOffset.UTC; }
+
+        @Override
+        public Clock withZone(final ZoneId zone) { return this; }
+
+        @Override
+        public Instant instant() { return now; }
+
+        void advance(final long millis) {
+            now = now.plusMillis(millis);
+        }
+    }
+
+    /**
+     * Timer that only runs what was scheduled when told to, by the given clock.
+     */
+    private static class ManualTimer {
+        final ScheduledExecutorService executor = mock(ScheduledExecutorService.class);
+        final List<Map.Entry<Long, Runnable>> tasks = new ArrayList<>();
+        private final Clock clock;
+
+        ManualTimer(final Clock clock) {
+            this.clock = clock;
+            when(executor.schedule(any(Runnable.class), anyLong(), any(TimeUnit.class))).thenAnswer(invocation -> {
+                final long delay = invocation.<TimeUnit>getArgument(2).toMillis(invocation.<Long>getArgument(1));
+                tasks.add(new AbstractMap.SimpleEntry<>(clock.millis() + delay, invocation.<Runnable>getArgument(0)));
+                return null;
+            });
+        }
+
+        // Run everything due by now, including what those tasks schedule.
+        void runDue() {
+            while (true) {
+                val due = tasks.stream().filter(t -> t.getKey() <= clock.millis()).findFirst();
+                if (!due.isPresent()) return;
+                tasks.remove(due.get());
+                due.get().getValue().run();
+            }
+        }
+    }
+
+    @Test
+    void testBurstHandledInOnePass() {
+        val clock = new MutableClock();
+        val timer = new ManualTimer(clock);
+        final List<List<String>> passes = new ArrayList<>();
+        val reconciler = new WebSubReconciler(timer.executor, clock, passes::add);
+        for (int i = 0; i < 50; i++) {
+            reconciler.markDirty("job" + i % 10);
+            clock.advance(10);
+            timer.runDue();
+        }
+        assertEquals(1, timer.tasks.size());
+        assertEquals(10, reconciler.getDirtyCount());
+
+        // A second after the first event, but the last one was more recent than that.
+        clock.advance(500);
+        timer.runDue();
+        assertTrue(passes.isEmpty());
+        clock.advance(490);
+        timer.runDue();
+        assertEquals(1, passes.size());
+        assertEquals(10, passes.get(0).size());
+        assertEquals("job0", passes.get(0).get(0));
+        assertEquals(0, reconciler.getDirtyCount());
+        assertTrue(timer.tasks.isEmpty());
+    }
+
+    @Test
+    void testPassNotDelayedPastMaxWait() {
+        val clock = new MutableClock();
+        val start = clock.millis();
+        val timer = new ManualTimer(clock);
+        final List<Long> passes = new ArrayList<>();
+        val reconciler = new WebSubReconciler(timer.executor, clock, jobs -> passes.add(clock.millis() - start));
+        // Never quiet for a second.
+        for (int i = 0; i < 30; i++) {
+            reconciler.markDirty("job");
+            clock.advance(500);
+            timer.runDue();
+        }
+        assertEquals(Collections.singletonList(10_000L), passes);
+    }
+
+    @Test
+    void testTopicsBeyondBatchDeferred() {
+        final Map<String, List<String>> missing = new LinkedHashMap<>();
+        missing.put("t1", Arrays.asList("a", "b"));
+        missing.put("t2", Collections.singletonList("b"));
+        missing.put("t3", Arrays.asList("c", "a"));
+        missing.put("t4", Collections.singletonList("d"));
+        val later = WebSubReconciler.takeBatch(missing, 2);
+        assertEquals(Arrays.asList("t1", "t2"), new ArrayList<>(missing.keySet()));
+        assertEquals(Arrays.asList("c", "a", "d"), new ArrayList<>(later));
+        assertTrue(WebSubReconciler.takeBatch(missing, 2).isEmpty());
+
+        // Deferred jobs get a pass of their own.
+        val clock = new MutableClock();
+        val timer = new ManualTimer(clock);
+        final List<List<String>> passes = new ArrayList<>();
+        val reconciler = ClosureVal.of(WebSubReconciler.class);
+        reconciler.value = new WebSubReconciler(timer.executor, clock, jobs -> {
+            passes.add(jobs);
+            if (passes.size() == 1)
+                reconciler.value.markDirty(later);
+        });
+        reconciler.value.markDirty(Arrays.asList("a", "b", "c", "d"));
+        clock.advance(1000);
+        timer.runDue();
+        assertEquals(1, passes.size());
+        assertEquals(3, reconciler.value.getDirtyCount());
+        clock.advance(1000);
+        timer.runDue();
+        assertEquals(Arrays.asList("c", "a", "d"), passes.get(1));
+    }
+
+    @Test
+    void testResyncMarksJobsWithTriggerOrRoutes(JenkinsRule j) throws Exception {
+        val withTrigger = j.createFreeStyleProject("with-trigger");
+        withTrigger.addTrigger(new WebSubTrigger(
+                Collections.singletonList(new WebSubTriggerSubscription("http://127.0.0.1:1/feed"))));
+        j.createFreeStyleProject("without-trigger");
+        val router = WebSubSharedResources.getInstance().getRouter();
+        val removed = new WebSubTriggerSubscription("http://127.0.0.1:1/feed");
+        removed.setId("removed-job-subscription");
+        router.put("removed", null, removed);
+
+        final List<List<String>> passes = new CopyOnWriteArrayList<>();
+        val timer = Executors.newSingleThreadScheduledExecutor();
+        try {
+            new WebSubReconciler(timer, Clock.systemUTC(), passes::add).resync();
+            await().atMost(5, TimeUnit.SECONDS).until(() -> !passes.isEmpty());
+            val jobs = passes.get(0);
+            assertTrue(jobs.contains("with-trigger"));
+            assertTrue(jobs.contains("removed"));
+            assertFalse(jobs.contains("without-trigger"));
+        } finally {
+            timer.shutdownNow();
+            router.removeJob("removed");
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package io.jenkins.plugins.websub;
+
+import io.jenkins.plugins.websub.subscriber.WebSubSubscription;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class TestWebSubSharedSubscriptions {
+    private static final String TOPIC = "http://example.com/topic";
+    private static final List<String> HUBS = Arrays.asList("http://hub", "http://other-hub");
+
+    @Test
+    void testRequestedOnce() {
+        val shared = new WebSubSharedSubscriptions();
+        val requests = new AtomicInteger();
+        val pending = new CompletableFuture<String>();
+        val first = shared.acquire(HUBS, TOPIC, () -> {
+            requests.incrementAndGet();
+            return pending;
+        });
+        val second = shared.acquire(HUBS, TOPIC, () -> {
+            requests.incrementAndGet();
+            return CompletableFuture.completedFuture("other");
+        });
+        pending.complete("id");
+        assertEquals("id", first.join());
+        assertEquals("id", second.join());
+        assertEquals(1, requests.get());
+
+        // Once forgotten, the next job subscribes again.
+        shared.forget("id");
+        assertEquals("other", shared.acquire(HUBS, TOPIC,
+                () -> CompletableFuture.completedFuture("other")).join());
+    }
+
+    @Test
+    void testRestoredSubscriptionsShared() {
+        val shared = new WebSubSharedSubscriptions();
+        // Made through the second hub, after failing over.
+        shared.addAll(Collections.singleton(new WebSubSubscription(
+                "restored", TOPIC, Instant.now(), "http://other-hub", Instant.now(), null)));
+        assertEquals("restored", shared.acquire(HUBS, TOPIC, () -> {
+            throw new AssertionError("Should not subscribe");
+        }).join());
+    }
+}
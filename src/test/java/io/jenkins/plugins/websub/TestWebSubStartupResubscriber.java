@@ -0,0 +1,160 @@
+package io.jenkins.plugins.websub;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscriber;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscription;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscriptionJournal;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscriptionRegistry;
+import io.jenkins.plugins.websub.test.JenkinsRule;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+@ExtendWith(JenkinsRule.Resolver.class)
+class TestWebSubStartupResubscriber {
+    private static final String HUB = "http://example.com/hub";
+
+    // Topics of renewals the hub received, in order.
+    private final List<String> arrived = new CopyOnWriteArrayList<>();
+    // Lets one held renewal be answered per permit.
+    private final Semaphore release = new Semaphore(0);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private final WebSubSubscriber client = new WebSubSubscriber(new WebSubSubscriptionRegistry(), "http://jenkins/callback");
+
+    TestWebSubStartupResubscriber() {
+        client.setTransport(new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(final String method, final String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() throws IOException {
+                        val topic = getParameter(getContentAsString(), "hub.topic");
+                        arrived.add(topic);
+                        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                        release.acquireUninterruptibly();
+                        inFlight.decrementAndGet();
+                        return new MockLowLevelHttpResponse().setStatusCode(topic.equals(topic("failing")) ? 500 : 202);
+                    }
+                };
+            }
+        });
+    }
+
+    private static String getParameter(final String form, final String name) throws UnsupportedEncodingException {
+        for (val pair : form.split("&")) {
+            val parts = pair.split("=", 2);
+            if (URLDecoder.decode(parts[0], "UTF-8").equals(name))
+                return URLDecoder.decode(parts[1], "UTF-8");
+        }
+        return null;
+    }
+
+    private static String topic(final String id) {
+        return "http://example.com/" + id;
+    }
+
+    private static WebSubSubscription lease(final String id, final long startedMinutesAgo, final long expiresInMinutes) {
+        val now = Instant.now();
+        return new WebSubSubscription(id, topic(id), now.plus(Duration.ofMinutes(expiresInMinutes)), HUB,
+                now.minus(Duration.ofMinutes(startedMinutesAgo)), null);
+    }
+
+    /**
+     * A registry restored from a journal holding the subscriptions, as after a restart.
+     */
+    private static WebSubSubscriptionRegistry restore(final WebSubSubscription... subscriptions) throws IOException {
+        val dir = Files.createTempDirectory("websub-test");
+        try (val journal = new WebSubSubscriptionJournal(dir, WebSubSubscriptionJournal.SecretCodec.PLAIN)) {
+            journal.load();
+            for (val subscription : subscriptions)
+                journal.put(subscription);
+        }
+        val registry = new WebSubSubscriptionRegistry();
+        registry.restore(new WebSubSubscriptionJournal(dir, WebSubSubscriptionJournal.SecretCodec.PLAIN));
+        return registry;
+    }
+
+    @Test
+    void testDueLeasesRenewedClosestToExpiryFirst() throws Exception {
+        val registry = restore(
+                lease("due", 50, 10),
+                lease("fresh", 0, 60),
+                lease("expired-recently", 70, -10),
+                lease("failing", 80, 20),
+                lease("expired-long-ago", 120, -60));
+        val ids = new HashSet<>(Arrays.asList(
+                "due", "fresh", "expired-recently", "failing", "expired-long-ago", "not-restored"));
+        val startup = new WebSubStartupResubscriber();
+        startup.renew(ids, registry, client, new WebSubOperationExecutor(4, 4, 4, Duration.ofSeconds(30)), 2);
+
+        // The two that have lapsed go first, and nothing more while they are in progress.
+        await().atMost(5, TimeUnit.SECONDS).until(() -> arrived.size() == 2);
+        Thread.sleep(300);
+        assertEquals(2, arrived.size());
+        assertEquals(new HashSet<>(Arrays.asList(topic("expired-long-ago"), topic("expired-recently"))),
+                new HashSet<>(arrived));
+        assertEquals(4, startup.getTotal());
+        assertEquals(0, startup.getRenewed());
+        assertFalse(startup.isFinished());
+
+        release.release();
+        await().atMost(5, TimeUnit.SECONDS).until(() -> arrived.size() == 3);
+        assertEquals(topic("due"), arrived.get(2));
+        assertEquals(1, startup.getRenewed());
+        release.release();
+        await().atMost(5, TimeUnit.SECONDS).until(() -> arrived.size() == 4);
+        assertEquals(topic("failing"), arrived.get(3));
+        release.release(2);
+
+        await().atMost(5, TimeUnit.SECONDS).until(startup::isFinished);
+        assertEquals(3, startup.getRenewed());
+        assertEquals(1, startup.getFailed());
+        assertEquals(2, maxInFlight.get());
+        assertFalse(arrived.contains(topic("fresh")));
+    }
+
+    @Test
+    void testJobsWithoutIdsHandedToReconciler(JenkinsRule j) throws Exception {
+        val forgotten = j.createFreeStyleProject("forgotten");
+        val restored = j.createFreeStyleProject("restored");
+        val reconciler = WebSubSharedResources.getInstance().getReconciler();
+        // Let the pass for the new jobs go by first.
+        await().atMost(15, TimeUnit.SECONDS).until(() -> reconciler.getDirtyCount() == 0);
+        // Its id was cleared because the registry did not have it.
+        forgotten.addTrigger(new WebSubTrigger(Collections.singletonList(
+                new WebSubTriggerSubscription("http://127.0.0.1:1/feed"))));
+        val kept = new WebSubTriggerSubscription("http://127.0.0.1:1/feed");
+        kept.setId("kept");
+        restored.addTrigger(new WebSubTrigger(Collections.singletonList(kept)));
+
+        val startup = new WebSubStartupResubscriber();
+        startup.start();
+        assertEquals(1, startup.getJobsToSubscribe());
+        assertTrue(reconciler.isDirty("forgotten"));
+        assertFalse(reconciler.isDirty("restored"));
+    }
+}
@@ -11,13 +11,17 @@ import com.google.api.client.http.HttpRequestFactory;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.Multimap;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
+import hudson.model.Run;
 import hudson.tasks.Shell;
+import io.jenkins.plugins.websub.subscriber.NotificationPayload;
 import io.jenkins.plugins.websub.test.StaplerServer;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -44,6 +48,7 @@ import org.slf4j.LoggerFactory;
 
 import static io.jenkins.plugins.websub.utils.Generic.fmt;
 import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 
 /**
  * Integration test with Jenkins instance.
@@ -64,6 +69,47 @@ public class TestWebSubTrigger {
         System.out.println(s);
     }
 
+    private static void sendNotification(final WebSubTrigger trigger, final WebSubTriggerSubscription subscription) {
+        val none = ImmutableMultimap.<String, String>of();
+        try (val payload = NotificationPayload.of("update".getBytes(StandardCharsets.UTF_8), "text/plain")) {
+            trigger.trigger(subscription, none, none, payload);
+        }
+    }
+
+    @Test
+    void testNotificationsWithinWindowMergedIntoOneBuild(JenkinsRule j) throws Exception {
+        FreeStyleProject project = j.createFreeStyleProject();
+        val trigger = new WebSubTrigger(Collections.emptyList());
+        trigger.setCoalesceSeconds(2);
+        trigger.start(project, true);
+        val subscription = new WebSubTriggerSubscription("http://example.com/feed");
+        subscription.setId("subscription-1");
+
+        for (int i = 0; i < 5; i++)
+            sendNotification(trigger, subscription);
+        j.waitUntilNoActivity();
+        assertEquals(1, project.getBuilds().size());
+        assertEquals(5, project.getLastBuild().getCause(WebSubTrigger.WebSubCause.class).getCount());
+
+        // The first build has left the queue, so this one starts a new window.
+        sendNotification(trigger, subscription);
+        j.waitUntilNoActivity();
+        assertEquals(2, project.getBuilds().size());
+        assertEquals(1, project.getLastBuild().getCause(WebSubTrigger.WebSubCause.class).getCount());
+    }
+
+    @Test
+    void testCauseFromOlderBuildRecord(JenkinsRule j) {
+        val xml = String.join("",
+                "<io.jenkins.plugins.websub.WebSubTrigger_-WebSubCause>",
+                "<subscription><topicUrl>http://example.com/feed</topicUrl><id>subscription-1</id></subscription>",
+                "</io.jenkins.plugins.websub.WebSubTrigger_-WebSubCause>");
+        val cause = (WebSubTrigger.WebSubCause) Run.XSTREAM2.fromXML(xml);
+        assertEquals(1, cause.getCount());
+        assertEquals("Triggered by notification from http://example.com/feed (id: subscription-1)",
+                cause.getShortDescription());
+    }
+
     /**
      * Example hub for testing.
      */
@@ -75,6 +121,7 @@ public class TestWebSubTrigger {
         private HttpTransport transport = new NetHttpTransport();
         @Getter @Setter String hubUrl;
         @Getter @Setter String topicUrl;
+        @Getter @Setter int leaseSeconds = 45;
 
         @SuppressWarnings("unused") // Used by Stapler.
         public HttpResponse doGettopic(final StaplerRequest request) {
@@ -112,10 +159,11 @@ public class TestWebSubTrigger {
                     transport.createRequestFactory();
             logger.info("Sending verification to {}", req.callbackUrl);
             val url = new GenericUrl(req.callbackUrl);
-            url.put("hub.mode", "subscribe");
+            url.put("hub.mode", req.mode);
             url.put("hub.topic", req.topicUrl);
             url.put("hub.challenge", "hello world");
-            url.put("hub.lease_seconds", "45");
+            if (req.mode.equals("subscribe"))
+                url.put("hub.lease_seconds", String.valueOf(leaseSeconds));
             final HttpRequest request =
                     requestFactory.buildGetRequest(url);
             request.setUnsuccessfulResponseHandler(
@@ -124,7 +172,10 @@ public class TestWebSubTrigger {
                     (HttpRequest request1, boolean retrySupported) -> false);
             val response = request.execute();
             // Assume everything went OK, if not then the caller should be doing the actual validation.
-            subscribers.put(req.topicUrl, req.callbackUrl);
+            if (req.mode.equals("subscribe"))
+                subscribers.put(req.topicUrl, req.callbackUrl);
+            else
+                subscribers.remove(req.topicUrl, req.callbackUrl);
             return response;
         }
 
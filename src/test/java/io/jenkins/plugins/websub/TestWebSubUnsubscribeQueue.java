@@ -0,0 +1,39 @@
+package io.jenkins.plugins.websub;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TestWebSubUnsubscribeQueue {
+    @Test
+    void testBatchedAndRateLimited() {
+        final List<String> unsubscribed = new CopyOnWriteArrayList<>();
+        val timer = Executors.newSingleThreadScheduledExecutor();
+        try {
+            val queue = new WebSubUnsubscribeQueue(
+                    timer, id -> !id.equals("reused"), unsubscribed::add, Duration.ofMillis(500), 2);
+            for (int i = 0; i < 4; i++)
+                queue.addAll(Collections.singleton("id" + i));
+            queue.addAll(Collections.singleton("reused"));
+            assertTrue(unsubscribed.isEmpty());
+
+            // Not all at once, the rest wait for the rate limit.
+            await().atMost(2, TimeUnit.SECONDS).until(() -> !unsubscribed.isEmpty());
+            assertTrue(unsubscribed.size() < 4);
+            await().atMost(5, TimeUnit.SECONDS).until(() -> queue.size() == 0 && unsubscribed.size() == 4);
+            assertEquals(Arrays.asList("id0", "id1", "id2", "id3"), unsubscribed);
+        } finally {
+            timer.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package io.jenkins.plugins.websub.relay;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.common.io.ByteStreams;
+import io.jenkins.plugins.websub.subscriber.CallbackRequest;
+import io.jenkins.plugins.websub.subscriber.CallbackResponse;
+import io.jenkins.plugins.websub.subscriber.NotificationPayload;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscriber;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscription;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscriptionRegistry;
+import io.jenkins.plugins.websub.test.StaplerServer;
+import io.jenkins.plugins.websub.utils.GoogleApiClient;
+import lombok.val;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static io.jenkins.plugins.websub.utils.Generic.fmt;
+import static java.util.stream.Collectors.toList;
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Runs a relay on localhost in front of a stand-in for Jenkins that hands relayed requests to
+ * a subscriber, like {@code WebSubRequestReceiver#doRelay}.
+ */
+@ExtendWith(StaplerServer.Resolver.class)
+class TestWebSubRelay {
+    private static final String SECRET = "relay-secret";
+    private static final String HUB = "http://example.com/hub";
+    private static final String TOPIC = "http://example.com/topic";
+    private static final String ID = "subscription-1";
+
+    private final HttpRequestFactory requestFactory = new NetHttpTransport().createRequestFactory();
+    private final List<String> notifications = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger batches = new AtomicInteger();
+    private final RelayBatch.Accepted accepted = new RelayBatch.Accepted();
+    // Last batch Jenkins took, with its signature.
+    private volatile byte[] lastBatch;
+    private volatile String lastSignature;
+    private final List<WebSubRelay> relays = new ArrayList<>();
+    private final Path queueDirectory = Files.createTempDirectory("websub-relay");
+    private volatile boolean jenkinsUp = true;
+    private final WebSubSubscriber client = new WebSubSubscriber(new WebSubSubscriptionRegistry(), "http://relay/callback") {
+        @Override
+        protected CallbackResponse handleNotification(
+                final WebSubSubscription subscription, final CallbackRequest request,
+                final NotificationPayload payload) {
+            notifications.add(payload.asCharSequence().toString());
+            payload.close();
+            return CallbackResponse.status(202);
+        }
+    };
+
+    TestWebSubRelay() throws IOException {
+        client.setTransport(new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(final String method, final String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() {
+                        return new MockLowLevelHttpResponse().setStatusCode(202);
+                    }
+                };
+            }
+        });
+    }
+
+    @AfterEach
+    void tearDown() throws IOException {
+        relays.forEach(WebSubRelay::close);
+        try (Stream<Path> files = Files.walk(queueDirectory)) {
+            for (val file : files.sorted(Comparator.reverseOrder()).collect(toList()))
+                Files.delete(file);
+        }
+    }
+
+    /**
+     * Stands in for Jenkins, at "websub-trigger/relay".
+     */
+    public class JenkinsStub {
+        @SuppressWarnings("unused") // Used by Stapler.
+        public Object getDynamic(final String token, final StaplerRequest request, final StaplerResponse response) {
+            return token.equals("websub-trigger") ? this : null;
+        }
+
+        @SuppressWarnings("unused") // Used by Stapler.
+        public HttpResponse doRelay(final StaplerRequest request) throws IOException {
+            if (!jenkinsUp)
+                return HttpResponses.status(503);
+            val body = ByteStreams.toByteArray(request.getInputStream());
+            val signature = request.getHeader(RelayBatch.SIGNATURE_HEADER);
+            if (!RelayBatch.verify(body, signature, SECRET))
+                return HttpResponses.forbidden();
+            val batch = RelayBatch.decode(body);
+            if (!accepted.add(batch))
+                return HttpResponses.status(409);
+            batches.incrementAndGet();
+            lastBatch = body;
+            lastSignature = signature;
+            final List<CallbackResponse> responses = new ArrayList<>();
+            for (val callback : batch.getRequests())
+                responses.add(client.handleRequest(callback));
+            val encoded = RelayBatch.encodeResponses(responses);
+            return (req, rsp, node) -> {
+                rsp.setContentType(RelayBatch.CONTENT_TYPE);
+                rsp.getOutputStream().write(encoded);
+            };
+        }
+    }
+
+    private WebSubRelay startRelay(final StaplerServer server, final String secret) throws IOException {
+        server.setCallback(new JenkinsStub());
+        val options = new WebSubRelay.Options(server.getBaseUrl() + "/", secret, queueDirectory);
+        options.setPort(0);
+        options.setBatchDelay(Duration.ofMillis(500));
+        options.setBaseRetryInterval(Duration.ofMillis(100));
+        options.setMaxRetryInterval(Duration.ofMillis(500));
+        val relay = new WebSubRelay(options);
+        relays.add(relay);
+        relay.start();
+        return relay;
+    }
+
+    private String callbackUrl(final WebSubRelay relay) {
+        return fmt("http://localhost:{}/callback/{}", relay.getPort(), ID);
+    }
+
+    private com.google.api.client.http.HttpResponse verify(final WebSubRelay relay) throws IOException {
+        val url = new GenericUrl(callbackUrl(relay));
+        url.put("hub.mode", "subscribe");
+        url.put("hub.topic", TOPIC);
+        url.put("hub.challenge", "challenge-1");
+        url.put("hub.lease_seconds", "3600");
+        val request = requestFactory.buildGetRequest(url);
+        request.setThrowExceptionOnExecuteError(false);
+        return request.execute();
+    }
+
+    private int sendNotification(final WebSubRelay relay, final String content) throws IOException {
+        val request = requestFactory.buildPostRequest(new GenericUrl(callbackUrl(relay)),
+                new ByteArrayContent("text/plain", content.getBytes(StandardCharsets.UTF_8)));
+        request.setThrowExceptionOnExecuteError(false);
+        val response = request.execute();
+        response.disconnect();
+        return response.getStatusCode();
+    }
+
+    private CompletableFuture<WebSubSubscription> subscribe(final WebSubRelay relay) throws Exception {
+        val subscribed = client.subscribeAsync(HUB, TOPIC, ID, Runnable::run);
+        val response = verify(relay);
+        assertEquals(200, response.getStatusCode());
+        assertEquals("challenge-1", GoogleApiClient.getHttpResponseBody(response));
+        return subscribed;
+    }
+
+    @Test
+    void testVerificationAnsweredByJenkins(final StaplerServer server) throws Exception {
+        val relay = startRelay(server, SECRET);
+        val subscribed = subscribe(relay);
+        assertEquals(ID, subscribed.get(5, TimeUnit.SECONDS).getId());
+        assertEquals(1, batches.get());
+    }
+
+    @Test
+    void testNotificationsForwardedInBatches(final StaplerServer server) throws Exception {
+        val relay = startRelay(server, SECRET);
+        subscribe(relay).get(5, TimeUnit.SECONDS);
+        final List<String> sent = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            sent.add("update " + i);
+            assertEquals(202, sendNotification(relay, "update " + i));
+        }
+        await().atMost(10, TimeUnit.SECONDS).until(() -> notifications.size() == sent.size());
+        assertEquals(sent, new ArrayList<>(notifications));
+        // One for the verification, far fewer than one per notification for the rest.
+        assertTrue(batches.get() < 1 + sent.size() / 2, "batches: " + batches.get());
+        assertEquals(0, relay.getQueuedCount());
+    }
+
+    @Test
+    void testQueuedNotificationsSurviveRestart(final StaplerServer server) throws Exception {
+        val relay = startRelay(server, SECRET);
+        subscribe(relay).get(5, TimeUnit.SECONDS);
+        jenkinsUp = false;
+        for (int i = 0; i < 5; i++)
+            assertEquals(202, sendNotification(relay, "update " + i));
+        Thread.sleep(1000);
+        relay.close();
+        assertTrue(notifications.isEmpty());
+        assertEquals(5, relay.getQueuedCount());
+
+        jenkinsUp = true;
+        val restarted = startRelay(server, SECRET);
+        await().atMost(10, TimeUnit.SECONDS).until(() -> notifications.size() == 5);
+        assertEquals(0, restarted.getQueuedCount());
+    }
+
+    @Test
+    void testReplayedBatchRefused(final StaplerServer server) throws Exception {
+        val relay = startRelay(server, SECRET);
+        subscribe(relay).get(5, TimeUnit.SECONDS);
+        assertEquals(1, batches.get());
+
+        // Signed and recent, but already handled.
+        val request = requestFactory.buildPostRequest(
+                new GenericUrl(server.getBaseUrl() + "/" + WebSubRelay.JENKINS_PATH),
+                new ByteArrayContent(RelayBatch.CONTENT_TYPE, lastBatch));
+        request.getHeaders().set(RelayBatch.SIGNATURE_HEADER, lastSignature);
+        request.setThrowExceptionOnExecuteError(false);
+        val response = request.execute();
+        response.disconnect();
+        assertEquals(409, response.getStatusCode());
+        assertEquals(1, batches.get());
+    }
+
+    @Test
+    void testBatchWithWrongSecretRefused(final StaplerServer server) throws Exception {
+        val relay = startRelay(server, "not the secret");
+        client.subscribeAsync(HUB, TOPIC, ID, Runnable::run);
+        val response = verify(relay);
+        assertEquals(503, response.getStatusCode());
+        assertEquals(0, batches.get());
+        assertFalse(client.getPendingIds().isEmpty());
+    }
+}
@@ -0,0 +1,127 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import io.jenkins.plugins.websub.subscriber.DiscoveryCache.Fetched;
+import io.jenkins.plugins.websub.subscriber.DiscoveryCache.Validators;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscriber.CommunicationException;
+import io.jenkins.plugins.websub.subscriber.WebSubSubscriber.DiscoverResponse;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TestDiscoveryCache {
+    private static class MutableClock extends Clock {
+        Instant now = Instant.parse("2018-01-01T00:00:00Z");
+
+        @Override
+        public ZoneId getZone() { return ZoneOffset.UTC; }
+
+        @Override
+        public Clock withZone(final ZoneId zone) { return this; }
+
+        @Override
+        public Instant instant() { return now; }
+    }
+
+    private static DiscoverResponse response(final String topicUrl, final String hubUrl) {
+        val response = new DiscoverResponse();
+        response.topicUrl = topicUrl;
+        response.hubUrls.add(hubUrl);
+        return response;
+    }
+
+    @Test
+    void testResultReusedUntilExpiredThenRevalidated() throws Exception {
+        val clock = new MutableClock();
+        val cache = new DiscoveryCache(Duration.ofMinutes(10), Duration.ofMinutes(1), clock);
+        val calls = new AtomicInteger();
+        final List<Validators> seen = new ArrayList<>();
+        DiscoveryCache.Loader loader = validators -> {
+            calls.incrementAndGet();
+            seen.add(validators);
+            if (validators != null)
+                return Fetched.notModified(validators);
+            return new Fetched(response("http://example.com/feed", "http://hub"), new Validators("\"abc\"", null));
+        };
+
+        assertEquals("http://hub", cache.get("http://example.com/feed", loader).hubUrls.get(0));
+        // Normalized to the same key.
+        cache.get("HTTP://Example.com:80/feed#x", loader);
+        assertEquals(1, calls.get());
+        assertNull(seen.get(0));
+
+        clock.now = clock.now.plus(Duration.ofMinutes(11));
+        assertEquals("http://hub", cache.get("http://example.com/feed", loader).hubUrls.get(0));
+        assertEquals(2, calls.get());
+        assertEquals("\"abc\"", seen.get(1).getEtag());
+    }
+
+    @Test
+    void testFailureIsCached() {
+        val clock = new MutableClock();
+        val cache = new DiscoveryCache(Duration.ofMinutes(10), Duration.ofMinutes(1), clock);
+        val calls = new AtomicInteger();
+        DiscoveryCache.Loader loader = validators -> {
+            calls.incrementAndGet();
+            throw new CommunicationException("Received status code 500");
+        };
+        assertThrows(CommunicationException.class, () -> cache.get("http://example.com/feed", loader));
+        assertThrows(CommunicationException.class, () -> cache.get("http://example.com/feed", loader));
+        assertEquals(1, calls.get());
+        clock.now = clock.now.plus(Duration.ofMinutes(2));
+        assertThrows(CommunicationException.class, () -> cache.get("http://example.com/feed", loader));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void testInterruptedFailureNotCached() throws Exception {
+        val clock = new MutableClock();
+        val cache = new DiscoveryCache(Duration.ofMinutes(10), Duration.ofMinutes(1), clock);
+        val calls = new AtomicInteger();
+        DiscoveryCache.Loader loader = validators -> {
+            if (calls.incrementAndGet() == 1)
+                throw new InterruptedIOException("Interrupted");
+            return new Fetched(response("http://example.com/feed", "http://hub"), new Validators(null, null));
+        };
+        try {
+            assertThrows(InterruptedIOException.class, () -> cache.get("http://example.com/feed", loader));
+            // The interrupt is passed on to the caller.
+            assertTrue(Thread.interrupted());
+            assertEquals("http://hub", cache.get("http://example.com/feed", loader).hubUrls.get(0));
+            assertEquals(2, calls.get());
+        } finally {
+            Thread.interrupted();
+        }
+    }
+
+    @Test
+    void testSaveAndLoad() throws Exception {
+        val clock = new MutableClock();
+        val cache = new DiscoveryCache(Duration.ofMinutes(10), Duration.ofMinutes(1), clock);
+        cache.get("http://example.com/feed", v -> new Fetched(
+                response("http://example.com/feed", "http://hub"), new Validators(null, null)));
+        val dir = Files.createTempDirectory("websub-test");
+        val file = dir.resolve("cache.bin");
+        cache.save(file);
+
+        val restored = new DiscoveryCache(Duration.ofMinutes(10), Duration.ofMinutes(1), clock);
+        restored.load(file);
+        val result = restored.get("http://example.com/feed", v -> {
+            throw new AssertionError("Should not be called");
+        });
+        assertEquals("http://hub", result.hubUrls.get(0));
+    }
+}
@@ -0,0 +1,82 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TestHtmlLinkExtractor {
+    private static WebSubSubscriber.DiscoverResponse extract(final String html, final long maxBytes)
+            throws IOException {
+        return HtmlLinkExtractor.extract(
+                new ByteArrayInputStream(html.getBytes(StandardCharsets.UTF_8)), StandardCharsets.UTF_8,
+                maxBytes, "http://example.com/feed/index.html");
+    }
+
+    @Test
+    void testLinksInHead() throws IOException {
+        val result = extract("<!DOCTYPE html><html><head>"
+                + "<title>a <link rel=hub href=/ignored></title>"
+                + "<!-- <link rel=\"hub\" href=\"/commented\"> -->"
+                + "<link rel=\"hub\" href=\"https://hub1.example.com/\">"
+                + "<LINK REL='alternate hub' HREF='/hub2?a=1&amp;b=2'>"
+                + "<link rel=self href=\"topic\">"
+                + "</head><body><link rel=hub href=/body></body></html>", 1024);
+        assertEquals("http://example.com/feed/topic", result.topicUrl);
+        assertEquals(Arrays.asList("https://hub1.example.com/", "http://example.com/hub2?a=1&b=2"), result.hubUrls);
+    }
+
+    @Test
+    void testBaseHref() throws IOException {
+        val result = extract("<head><base href=\"https://other.example.com/x/\">"
+                + "<link rel=hub href=hub><link rel=self href=/t></head>", 1024);
+        assertEquals("https://other.example.com/t", result.topicUrl);
+        assertEquals(Collections.singletonList("https://other.example.com/x/hub"), result.hubUrls);
+    }
+
+    @Test
+    void testStopsAtBody() throws IOException {
+        val consumed = new int[1];
+        val body = new StringBuilder("<html><head><link rel=hub href=/hub></head><body>");
+        for (int i = 0; i < 100_000; i++)
+            body.append("<p>filler</p>");
+        val bytes = body.toString().getBytes(StandardCharsets.UTF_8);
+        InputStream in = new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(final byte[] b, final int off, final int len) {
+                int n = super.read(b, off, len);
+                if (n > 0) consumed[0] += n;
+                return n;
+            }
+        };
+        val result = HtmlLinkExtractor.extract(in, StandardCharsets.UTF_8, Long.MAX_VALUE, "http://example.com/");
+        assertEquals(Collections.singletonList("http://example.com/hub"), result.hubUrls);
+        assertTrue(consumed[0] < 64 * 1024, "read " + consumed[0] + " bytes");
+    }
+
+    @Test
+    void testByteCap() throws IOException {
+        val padding = new String(new char[2000]).replace('\0', ' ');
+        val result = extract("<head>" + padding + "<link rel=self href=/t></head>", 1000);
+        assertNull(result.topicUrl);
+        assertTrue(result.hubUrls.isEmpty());
+    }
+
+    @Test
+    void testMetaCharset() throws IOException {
+        val latin1 = Charset.forName("ISO-8859-1");
+        val html = "<head><meta charset=\"iso-8859-1\"><link rel=self href=\"/café\"></head>";
+        val result = HtmlLinkExtractor.extract(
+                new ByteArrayInputStream(html.getBytes(latin1)), null, 1024, "http://example.com/");
+        assertEquals("http://example.com/café", result.topicUrl);
+    }
+}
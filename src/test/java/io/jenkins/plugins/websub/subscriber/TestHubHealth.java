@@ -0,0 +1,94 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TestHubHealth {
+    private static final Duration LATENCY = Duration.ofMillis(100);
+
+    private static class TestClock extends Clock {
+        Instant now = Instant.parse("2020-01-01T00:00:00Z");
+
+        @Override
+        public ZoneId getZone() { return ZoneOffset.UTC; }
+
+        @Override
+        public Clock withZone(final ZoneId zone) { return this; }
+
+        @Override
+        public Instant instant() { return now; }
+    }
+
+    private final TestClock clock = new TestClock();
+    private final WebSubSubscriber.Options options = new WebSubSubscriber.Options("");
+    private final HubHealth health = new HubHealth(options, clock);
+
+    private void fail(final String hubUrl, final int times) {
+        for (int i = 0; i < times; i++) {
+            assertTrue(health.tryAcquire(hubUrl));
+            health.recordFailure(hubUrl, LATENCY);
+        }
+    }
+
+    @Test
+    void testCircuitOpensAndProbes() {
+        // Occasional errors don't open the circuit.
+        fail("http://hub", 1);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(health.tryAcquire("http://hub"));
+            health.recordSuccess("http://hub", LATENCY);
+        }
+        assertEquals(HubHealth.State.CLOSED, health.getState("http://hub"));
+
+        fail("http://hub", 4);
+        assertEquals(HubHealth.State.OPEN, health.getState("http://hub"));
+        assertFalse(health.tryAcquire("http://hub"));
+
+        // Once open time has passed, one probe goes through at a time.
+        clock.now = clock.now.plus(options.circuitOpenDuration);
+        assertTrue(health.tryAcquire("http://hub"));
+        assertFalse(health.tryAcquire("http://hub"));
+        // A failed probe reopens for twice as long.
+        health.recordFailure("http://hub", LATENCY);
+        clock.now = clock.now.plus(options.circuitOpenDuration);
+        assertFalse(health.tryAcquire("http://hub"));
+        clock.now = clock.now.plus(options.circuitOpenDuration);
+        assertTrue(health.tryAcquire("http://hub"));
+        health.recordSuccess("http://hub", LATENCY);
+        assertEquals(HubHealth.State.CLOSED, health.getState("http://hub"));
+        assertTrue(health.tryAcquire("http://hub"));
+        assertTrue(health.tryAcquire("http://hub"));
+    }
+
+    @Test
+    void testRetryAfterHonoredUpToLimit() {
+        assertTrue(health.tryAcquire("http://hub"));
+        health.recordUnavailable("http://hub", LATENCY, Duration.ofMinutes(5));
+        assertEquals(clock.now.plus(Duration.ofMinutes(5)), health.getRetryAt("http://hub"));
+
+        assertTrue(health.tryAcquire("http://slow-down"));
+        health.recordUnavailable("http://slow-down", LATENCY, Duration.ofDays(1));
+        assertEquals(clock.now.plus(options.maxRetryAfter), health.getRetryAt("http://slow-down"));
+    }
+
+    @Test
+    void testRankPrefersAvailableThenFaster() {
+        assertTrue(health.tryAcquire("http://slow"));
+        health.recordSuccess("http://slow", Duration.ofSeconds(2));
+        assertTrue(health.tryAcquire("http://fast"));
+        health.recordSuccess("http://fast", LATENCY);
+        fail("http://down", options.circuitMinSamples);
+        assertEquals(Arrays.asList("http://new", "http://fast", "http://slow", "http://down"),
+                health.rank(Arrays.asList("http://down", "http://slow", "http://fast", "http://new")));
+    }
+}
@@ -0,0 +1,58 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import lombok.val;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TestHubSignature {
+    private static final String SECRET = "key";
+    private static final byte[] BODY = "The quick brown fox jumps over the lazy dog".getBytes(StandardCharsets.UTF_8);
+
+    private static boolean verify(final String header, final byte[] body) throws IOException {
+        val signature = HubSignature.parse(header, SECRET);
+        assertTrue(signature.isPresent());
+        IOUtils.toByteArray(signature.get().wrap(new ByteArrayInputStream(body)));
+        return signature.get().matches();
+    }
+
+    @Test
+    void testKnownDigests() throws IOException {
+        assertTrue(verify("sha1=de7c9b85b8b78aa6bc8a7a36f70a90701c9db4d9", BODY));
+        assertTrue(verify("sha256=f7bc83f430538424b13298e6aa6fb143ef4d59a14946175997479dbc2d1a3cd8", BODY));
+        assertTrue(verify("SHA256=F7BC83F430538424B13298E6AA6FB143EF4D59A14946175997479DBC2D1A3CD8", BODY));
+    }
+
+    @Test
+    void testMismatch() throws IOException {
+        val tampered = BODY.clone();
+        tampered[0] = 't';
+        assertFalse(verify("sha1=de7c9b85b8b78aa6bc8a7a36f70a90701c9db4d9", tampered));
+        assertFalse(verify("sha256=00", BODY));
+    }
+
+    @Test
+    void testMacReusedAcrossRequests() throws IOException {
+        // A failed check must not leave state behind for the next request on this thread.
+        assertFalse(verify("sha1=00", BODY));
+        assertTrue(verify("sha1=de7c9b85b8b78aa6bc8a7a36f70a90701c9db4d9", BODY));
+    }
+
+    @Test
+    void testUnsupportedHeaders() {
+        assertFalse(HubSignature.parse("md5=abcd", SECRET).isPresent());
+        assertFalse(HubSignature.parse("sha1", SECRET).isPresent());
+        assertFalse(HubSignature.parse("sha1=not-hex", SECRET).isPresent());
+    }
+
+    @Test
+    void testGeneratedSecretsDiffer() {
+        assertNotEquals(HubSignature.generateSecret(), HubSignature.generateSecret());
+    }
+}
@@ -0,0 +1,73 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import lombok.val;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TestNotificationPayload {
+    private final BufferPool pool = new BufferPool(16, 4);
+
+    private static byte[] bytes(final int n) {
+        val data = new byte[n];
+        for (int i = 0; i < n; i++)
+            data[i] = (byte) i;
+        return data;
+    }
+
+    @Test
+    void testSmallPayloadStaysInMemory() throws IOException {
+        val data = bytes(40);
+        try (val payload = NotificationPayload.capture(
+                new ByteArrayInputStream(data), null, 1000, 100, pool, null)) {
+            assertFalse(payload.isSpilled());
+            assertEquals(40, payload.getSize());
+            assertArrayEquals(data, IOUtils.toByteArray(payload.openStream()));
+        }
+    }
+
+    @Test
+    void testLargePayloadSpillsToDisk() throws IOException {
+        val data = bytes(500);
+        try (val payload = NotificationPayload.capture(
+                new ByteArrayInputStream(data), null, 1000, 100, pool, null)) {
+            assertTrue(payload.isSpilled());
+            assertEquals(500, payload.getSize());
+            assertArrayEquals(data, IOUtils.toByteArray(payload.openStream()));
+        }
+    }
+
+    @Test
+    void testPayloadOverLimitIsRejected() {
+        val data = bytes(500);
+        assertThrows(NotificationPayload.PayloadTooLargeException.class, () ->
+                NotificationPayload.capture(new ByteArrayInputStream(data), null, 499, 100, pool, null));
+        assertThrows(NotificationPayload.PayloadTooLargeException.class, () ->
+                NotificationPayload.capture(new ByteArrayInputStream(data), null, 20, 100, pool, null));
+    }
+
+    @Test
+    void testCharactersDecodedWithDeclaredCharset() throws IOException {
+        val text = "héllo";
+        val data = text.getBytes(StandardCharsets.ISO_8859_1);
+        try (val payload = NotificationPayload.capture(
+                new ByteArrayInputStream(data), "text/plain; charset=ISO-8859-1", 1000, 100, pool, null)) {
+            assertEquals(text, payload.asCharSequence().toString());
+        }
+        // Exact multiple of the buffer size.
+        val exact = Arrays.copyOf(bytes(32), 32);
+        try (val payload = NotificationPayload.capture(
+                new ByteArrayInputStream(exact), null, 1000, 100, pool, null)) {
+            assertArrayEquals(exact, IOUtils.toByteArray(payload.openStream()));
+        }
+    }
+}
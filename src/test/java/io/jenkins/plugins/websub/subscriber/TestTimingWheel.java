@@ -0,0 +1,56 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import java.util.Arrays;
+import java.util.Collections;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TestTimingWheel {
+    @Test
+    void testExpiresInDeadlineOrder() {
+        val wheel = new TimingWheel<String>(1000, 8, 0);
+        wheel.schedule("a", 1500);
+        wheel.schedule("b", 3000);
+        wheel.schedule("c", 20_500);
+        assertTrue(wheel.advance(1000).isEmpty());
+        assertEquals(Collections.singletonList("a"), wheel.advance(2000));
+        assertEquals(Collections.singletonList("b"), wheel.advance(3999));
+        // "c" shares a slot with earlier ticks but waits for its own deadline.
+        assertTrue(wheel.advance(12_000).isEmpty());
+        assertEquals(1, wheel.size());
+        assertEquals(Collections.singletonList("c"), wheel.advance(21_000));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void testCancelAndReschedule() {
+        val wheel = new TimingWheel<String>(1000, 8, 0);
+        wheel.schedule("a", 1500);
+        wheel.schedule("b", 1500);
+        assertTrue(wheel.cancel("a"));
+        wheel.schedule("b", 5500);
+        assertTrue(wheel.advance(2000).isEmpty());
+        assertEquals(Collections.singletonList("b"), wheel.advance(6000));
+    }
+
+    @Test
+    void testLongPauseVisitsEverySlot() {
+        val wheel = new TimingWheel<String>(1000, 4, 0);
+        wheel.schedule("a", 1000);
+        wheel.schedule("b", 2000);
+        wheel.schedule("c", 3000);
+        val expired = wheel.advance(100_000);
+        Collections.sort(expired);
+        assertEquals(Arrays.asList("a", "b", "c"), expired);
+    }
+
+    @Test
+    void testPastDeadlineExpiresOnNextTick() {
+        val wheel = new TimingWheel<String>(1000, 8, 5000);
+        wheel.schedule("a", 100);
+        assertEquals(Collections.singletonList("a"), wheel.advance(6000));
+    }
+}
@@ -0,0 +1,137 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.val;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TestWebSubRenewalScheduler {
+    private static final Instant START = Instant.parse("2020-01-01T00:00:00Z");
+    private static final Duration LEASE = Duration.ofDays(1);
+
+    private final WebSubSubscriptionRegistry registry = new WebSubSubscriptionRegistry();
+    private final List<String> renewed = new CopyOnWriteArrayList<>();
+    private final AtomicInteger attempts = new AtomicInteger();
+    private volatile boolean fail;
+    private final WebSubSubscriber subscriber = new WebSubSubscriber(registry, "http://example.com") {
+        @Override
+        void renew(final WebSubSubscription existing) throws CommunicationException {
+            attempts.incrementAndGet();
+            if (fail)
+                throw new CommunicationException("hub down");
+            renewed.add(existing.getId());
+        }
+    };
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private WebSubRenewalScheduler scheduler;
+
+    private WebSubRenewalScheduler start(final Instant now) {
+        subscriber.getOptions().setRenewalCheckInterval(Duration.ofHours(1));
+        scheduler = new WebSubRenewalScheduler(subscriber, registry, Clock.fixed(now, ZoneOffset.UTC));
+        scheduler.start(timer);
+        return scheduler;
+    }
+
+    private WebSubSubscription add(final String id, final String hubUrl) {
+        val subscription = new WebSubSubscription(id, "http://example.com/topic", START.plus(LEASE), hubUrl, START, null);
+        registry.add(subscription);
+        return subscription;
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (scheduler != null)
+            scheduler.stop();
+        timer.shutdownNow();
+    }
+
+    @Test
+    void testRenewalTimeWithinJitterWindow() {
+        val options = subscriber.getOptions();
+        for (int i = 0; i < 100; i++) {
+            val time = WebSubRenewalScheduler.getRenewalTime(add("id" + i, "http://hub"), options);
+            assertFalse(time.isAfter(START.plus(LEASE.multipliedBy(75).dividedBy(100))));
+            assertFalse(time.isBefore(START.plus(LEASE.multipliedBy(65).dividedBy(100))));
+        }
+    }
+
+    @Test
+    void testOnlyDueSubscriptionsRenewed() throws InterruptedException {
+        val s1 = add("a", "http://hub1");
+        val s2 = add("b", "http://hub2");
+        val s3 = add("c", "http://hub1");
+        val later = new WebSubSubscription("d", "http://example.com/topic", START.plus(LEASE.multipliedBy(10)),
+                "http://hub1", START, null);
+        registry.add(later);
+        val now = START.plus(LEASE.multipliedBy(80).dividedBy(100));
+        val scheduler = start(now);
+        for (val s : new WebSubSubscription[] {s1, s2, s3, later})
+            scheduler.leaseGranted(s);
+        scheduler.tick();
+        await().atMost(5, TimeUnit.SECONDS).until(() -> renewed.size() == 3);
+        assertTrue(renewed.containsAll(Arrays.asList("a", "b", "c")));
+
+        // Sent renewals wait for verification rather than being sent again.
+        scheduler.tick();
+        Thread.sleep(200);
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    void testClosestToExpiryRenewedFirst() {
+        val s1 = add("a", "http://hub1");
+        // Ran out while we were not running.
+        val s2 = new WebSubSubscription("b", "http://example.com/topic", START.plus(LEASE.dividedBy(2)),
+                "http://hub1", START, null);
+        registry.add(s2);
+        val scheduler = start(START.plus(LEASE.multipliedBy(80).dividedBy(100)));
+        scheduler.leaseGranted(s1);
+        scheduler.leaseGranted(s2);
+        scheduler.tick();
+        await().atMost(5, TimeUnit.SECONDS).until(() -> renewed.size() == 2);
+        assertEquals(Arrays.asList("b", "a"), renewed);
+    }
+
+    @Test
+    void testRenewNowNotRepeatedByBatch() throws Exception {
+        val subscription = add("a", "http://hub1");
+        val scheduler = start(START.plus(LEASE.multipliedBy(80).dividedBy(100)));
+        assertTrue(scheduler.isDue(subscription));
+        scheduler.renewNow(subscription);
+        assertFalse(scheduler.isDue(subscription));
+        scheduler.tick();
+        Thread.sleep(200);
+        assertEquals(1, attempts.get());
+    }
+
+    @Test
+    void testFailedRenewalBacksOff() throws InterruptedException {
+        val subscription = add("a", "http://hub1");
+        fail = true;
+        val scheduler = start(START.plus(LEASE.multipliedBy(80).dividedBy(100)));
+        scheduler.leaseGranted(subscription);
+        scheduler.tick();
+        await().atMost(5, TimeUnit.SECONDS).until(() -> attempts.get() == 1);
+        fail = false;
+        // Still within the backoff period.
+        scheduler.tick();
+        Thread.sleep(200);
+        assertEquals(1, attempts.get());
+        assertTrue(renewed.isEmpty());
+    }
+}
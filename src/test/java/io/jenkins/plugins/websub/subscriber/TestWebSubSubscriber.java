@@ -1,6 +1,7 @@
 package io.jenkins.plugins.websub.subscriber;
 
 import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.HttpRequest;
 import com.google.api.client.http.HttpRequestFactory;
 import com.google.api.client.http.HttpTransport;
@@ -10,6 +11,8 @@ import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.testing.http.MockHttpTransport;
 import com.google.api.client.testing.http.MockLowLevelHttpRequest;
 import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import io.jenkins.plugins.websub.ServletCallbackRequest;
+import io.jenkins.plugins.websub.ServletCallbackResponse;
 import io.jenkins.plugins.websub.test.StaplerServer;
 import io.jenkins.plugins.websub.utils.Generic.ClosureVal;
 import io.jenkins.plugins.websub.utils.GoogleApiClient;
@@ -23,15 +26,23 @@ import org.kohsuke.stapler.StaplerRequest;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 
 import static io.jenkins.plugins.websub.utils.Generic.fmt;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @ExtendWith(StaplerServer.Resolver.class)
@@ -201,18 +212,70 @@ class TestWebSubSubscriber {
     }
 
 
-    @Disabled
     @Test
     @DisplayName("102: Atom feed discovery")
-    void testAtomFeedDiscovery() {
-        // Topic URL that returns an Atom feed (shows as HTML in browser?)
+    void testAtomFeedDiscovery() throws Exception {
+        val expectedHubUrl = "https://websub.rocks/blog/102/hub";
+        val expectedTopicUrl = "https://websub.rocks/blog/102/feed";
+        val topicUrl = "https://websub.rocks/blog/102/topic";
+        WebSubSubscriber client = ClientBuilder.from((req, rsp) ->
+            rsp.setStatusCode(200)
+               .setContentType("application/atom+xml")
+               .setContent(String.join("\n",
+                    "<?xml version=\"1.0\" encoding=\"utf-8\"?>",
+                    "<feed xmlns=\"http://www.w3.org/2005/Atom\">",
+                    "<title>Feed</title>",
+                    "<link rel=\"alternate\" href=\"/blog/102\"/>",
+                    fmt("<link rel=\"hub\" href=\"{}\"/>", expectedHubUrl),
+                    "<link rel=\"self\" href=\"/blog/102/feed\"/>",
+                    "<entry><link rel=\"hub\" href=\"https://example.com/ignored\"/></entry>",
+                    "</feed>")));
+        WebSubSubscriber.DiscoverResponse result = client.discover(topicUrl);
+        assertEquals(expectedTopicUrl, result.topicUrl);
+        assertEquals(1, result.hubUrls.size());
+        assertEquals(expectedHubUrl, result.hubUrls.get(0));
     }
 
-    @Disabled
     @Test
     @DisplayName("103: RSS feed discovery")
-    void testRSSFeedDiscovery() {
-        // Topic URL that returns an RSS feed (shows as HTML in browser?)
+    void testRSSFeedDiscovery() throws Exception {
+        val expectedHubUrl = "https://websub.rocks/blog/103/hub";
+        val expectedTopicUrl = "https://websub.rocks/blog/103/feed";
+        val topicUrl = "https://websub.rocks/blog/103/topic";
+        WebSubSubscriber client = ClientBuilder.from((req, rsp) ->
+            rsp.setStatusCode(200)
+               .setContentType("application/rss+xml")
+               .setContent(String.join("\n",
+                    "<?xml version=\"1.0\"?>",
+                    "<rss version=\"2.0\" xmlns:atom=\"http://www.w3.org/2005/Atom\">",
+                    "<channel>",
+                    "<title>Feed</title>",
+                    "<link>https://websub.rocks/blog/103</link>",
+                    fmt("<atom:link rel=\"hub\" href=\"{}\"/>", expectedHubUrl),
+                    fmt("<atom:link rel=\"self\" href=\"{}\"/>", expectedTopicUrl),
+                    "<item><title>Post</title></item>",
+                    "</channel>",
+                    "</rss>")));
+        WebSubSubscriber.DiscoverResponse result = client.discover(topicUrl);
+        assertEquals(expectedTopicUrl, result.topicUrl);
+        assertEquals(1, result.hubUrls.size());
+        assertEquals(expectedHubUrl, result.hubUrls.get(0));
+    }
+
+    @Test
+    @DisplayName("102.1: External entities are not resolved")
+    void testFeedExternalEntity() throws Exception {
+        WebSubSubscriber client = ClientBuilder.from((req, rsp) ->
+            rsp.setStatusCode(200)
+               .setContentType("application/xml")
+               .setContent(String.join("\n",
+                    "<?xml version=\"1.0\"?>",
+                    "<!DOCTYPE feed [<!ENTITY hub SYSTEM \"file:///etc/hostname\">]>",
+                    "<feed xmlns=\"http://www.w3.org/2005/Atom\">",
+                    "<link rel=\"hub\" href=\"&hub;\"/>",
+                    "</feed>")));
+        assertThrows(WebSubSubscriber.WebSubException.class,
+                () -> client.discover("https://websub.rocks/blog/102/topic"));
     }
 
     @Disabled
@@ -222,7 +285,22 @@ class TestWebSubSubscriber {
         // Topic URL that returns an RSS feed (shows as HTML in browser?)
     }
 
-    // TODO: CommunicationException on non 2xx status code.
+    @Test
+    void testCommunicationExceptionOnErrorStatus() {
+        for (val status : Arrays.asList(400, 500)) {
+            val client = new ClientBuilder().handleUrl("http://example.com/hub",
+                    (req, rsp) -> rsp.setStatusCode(status)).create();
+            val e = assertThrows(WebSubSubscriber.CommunicationException.class,
+                    () -> client.subscribe("http://example.com/hub", "http://example.com/topic"));
+            assertEquals(fmt("Received status code {}", status), e.getMessage());
+        }
+
+        val client = new ClientBuilder().handleUrl("http://example.com/topic",
+                (req, rsp) -> rsp.setStatusCode(404)).create();
+        val e = assertThrows(WebSubSubscriber.CommunicationException.class,
+                () -> client.discover("http://example.com/topic"));
+        assertEquals("Received status code 404 from http://example.com/topic", e.getMessage());
+    }
 
     public class ServerHandlerProvider {
         WebSubSubscriber subscriber;
@@ -234,10 +312,138 @@ class TestWebSubSubscriber {
         public HttpResponse doCallback(final StaplerRequest request) {
             logger.debug("ServerHandlerProvider.doCallback()");
 
-            return this.subscriber.handleRequest(request);
+            return ServletCallbackResponse.toStapler(
+                    this.subscriber.handleRequest(new ServletCallbackRequest(request)));
         }
     }
 
+    @Test
+    void testRequestTimeoutsAndCompression() throws Exception {
+        final List<String> seen = new ArrayList<>();
+        val client = new WebSubSubscriber(new WebSubSubscriptionRegistry(), "");
+        client.getOptions().setConnectTimeout(Duration.ofSeconds(3));
+        client.getOptions().setReadTimeout(Duration.ofSeconds(4));
+        client.getOptions().setRequestGzip(false);
+        client.setTransport(new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(final String method, final String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public void setTimeout(final int connectTimeout, final int readTimeout) {
+                        seen.add(connectTimeout + "/" + readTimeout);
+                    }
+
+                    @Override
+                    public LowLevelHttpResponse execute() {
+                        seen.add(String.valueOf(getFirstHeaderValue("Accept-Encoding")));
+                        return new MockLowLevelHttpResponse()
+                                .addHeader("Link", "<http://example.com/hub>; rel=\"hub\"")
+                                .addHeader("Link", "<http://example.com/topic>; rel=\"self\"");
+                    }
+                };
+            }
+        });
+        client.discover("http://example.com/topic");
+        assertEquals(Arrays.asList("3000/4000", "null"), seen);
+    }
+
+    @Test
+    void testRetryAfterStopsRequestsToHub() {
+        val requests = new AtomicInteger();
+        val client = new ClientBuilder().handleUrl("http://example.com/hub", (req, rsp) -> {
+            requests.incrementAndGet();
+            rsp.setStatusCode(503);
+            rsp.addHeader("Retry-After", "120");
+        }).create();
+        val before = Instant.now();
+        val e = assertThrows(WebSubSubscriber.HubUnavailableException.class,
+                () -> client.subscribe("http://example.com/hub", "http://example.com/topic"));
+        assertFalse(e.getRetryAt().isBefore(before.plusSeconds(120)));
+        // Known to be down, so the next request isn't sent.
+        assertThrows(WebSubSubscriber.HubUnavailableException.class,
+                () -> client.subscribe("http://example.com/hub", "http://example.com/topic"));
+        assertEquals(1, requests.get());
+        assertEquals(HubHealth.State.OPEN, client.getHubHealth().getState("http://example.com/hub"));
+    }
+
+    @Test
+    void testPermanentHubRedirectRemembered() throws Exception {
+        final List<String> seen = new ArrayList<>();
+        val moved = ClosureVal.of(true);
+        val client = new ClientBuilder()
+                .handleUrl("http://example.com/hub", (req, rsp) -> {
+                    seen.add(req.getUrl());
+                    if (moved.value) {
+                        rsp.setStatusCode(308);
+                        rsp.addHeader("Location", "/new-hub");
+                    } else {
+                        rsp.setStatusCode(202);
+                    }
+                })
+                .handleUrl("http://example.com/new-hub", (req, rsp) -> {
+                    seen.add(req.getUrl());
+                    rsp.setStatusCode(moved.value ? 202 : 410);
+                })
+                .create();
+        client.subscribe("http://example.com/hub", "http://example.com/topic");
+        client.subscribe("http://example.com/hub", "http://example.com/topic");
+        assertEquals(Arrays.asList("http://example.com/hub", "http://example.com/new-hub",
+                "http://example.com/new-hub"), seen);
+
+        // The hub moved back, so the remembered location is dropped.
+        moved.value = false;
+        seen.clear();
+        client.subscribe("http://example.com/hub", "http://example.com/topic");
+        client.subscribe("http://example.com/hub", "http://example.com/topic");
+        assertEquals(Arrays.asList("http://example.com/new-hub", "http://example.com/hub",
+                "http://example.com/hub"), seen);
+    }
+
+    @Test
+    void testRedirectDepthLimited() {
+        val requests = new AtomicInteger();
+        val client = new ClientBuilder().handleHttp((req, rsp) -> {
+            rsp.setStatusCode(307);
+            rsp.addHeader("Location", "http://example.com/hub" + requests.incrementAndGet());
+            return true;
+        }).create();
+        client.getOptions().setMaxRedirects(3);
+        val e = assertThrows(WebSubSubscriber.CommunicationException.class,
+                () -> client.subscribe("http://example.com/hub", "http://example.com/topic"));
+        assertTrue(e.getMessage().contains("Too many redirects"));
+        assertEquals(4, requests.get());
+    }
+
+    @Test
+    void testRenewalOnlySendsSecretOverHttps() throws Exception {
+        final Map<String, String> bodies = new HashMap<>();
+        val client = new ClientBuilder().handleHttp((req, rsp) -> {
+            try {
+                bodies.put(req.getUrl(), req.getContentAsString());
+            } catch (IOException e) {
+                throw new AssertionError(e);
+            }
+            rsp.setStatusCode(202);
+            return true;
+        }).create();
+        val expiration = Instant.now().plusSeconds(60);
+        client.renew(new WebSubSubscription(
+                "insecure", "http://example.com/topic", expiration, "http://example.com/hub", null, "s3cret"));
+        client.renew(new WebSubSubscription(
+                "secure", "http://example.com/topic", expiration, "https://example.com/hub", null, "s3cret"));
+        assertFalse(bodies.get("http://example.com/hub").contains("hub.secret"));
+        assertTrue(bodies.get("https://example.com/hub").contains("hub.secret=s3cret"));
+    }
+
+    @Test
+    void testParseRetryAfterDate() {
+        val headers = new HttpHeaders();
+        headers.set("Retry-After", "Wed, 21 Oct 2015 07:28:00 GMT");
+        assertEquals(Duration.ZERO, WebSubSubscriber.parseRetryAfter(headers));
+        headers.set("Retry-After", "soon");
+        assertNull(WebSubSubscriber.parseRetryAfter(headers));
+    }
+
     @Test
     @DisplayName("200: Subscribing to a URL that reports a different rel=self")
     void testSubscribeAcceptsWithDifferentRelSelf(final StaplerServer server) throws Exception {
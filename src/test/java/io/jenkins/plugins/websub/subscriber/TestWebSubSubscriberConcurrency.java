@@ -0,0 +1,256 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import io.jenkins.plugins.websub.ServletCallbackRequest;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.servlet.ServletInputStream;
+import lombok.val;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.kohsuke.stapler.StaplerRequest;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.AdditionalAnswers.delegatesTo;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Drives one subscriber from many threads at once and checks no transition is lost or repeated.
+ */
+class TestWebSubSubscriberConcurrency {
+    private static final int SUBSCRIPTIONS = 200;
+    private static final int THREADS = 16;
+    private static final String TOPIC = "http://example.com/topic";
+
+    private final ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+    private final WebSubSubscriptionRegistry registry = new WebSubSubscriptionRegistry();
+    private final AtomicInteger successes = new AtomicInteger();
+    private final AtomicInteger rejections = new AtomicInteger();
+    private final AtomicInteger notifications = new AtomicInteger();
+    private final WebSubSubscriber client = new WebSubSubscriber(registry, "http://jenkins/websub") {
+        @Override
+        protected void handleSubscriptionSuccess(final WebSubSubscription subscription) {
+            successes.incrementAndGet();
+        }
+
+        @Override
+        protected void handleSubscriptionRejection(final WebSubSubscription subscription) {
+            rejections.incrementAndGet();
+            super.handleSubscriptionRejection(subscription);
+        }
+
+        @Override
+        protected CallbackResponse handleNotification(
+                final WebSubSubscription subscription, final CallbackRequest request,
+                final NotificationPayload payload) {
+            notifications.incrementAndGet();
+            payload.close();
+            return CallbackResponse.ok();
+        }
+    };
+
+    TestWebSubSubscriberConcurrency() {
+        client.setTransport(new MockHttpTransport() {
+            @Override
+            public LowLevelHttpRequest buildRequest(final String method, final String url) {
+                return new MockLowLevelHttpRequest(url) {
+                    @Override
+                    public LowLevelHttpResponse execute() {
+                        return new MockLowLevelHttpResponse().setStatusCode(202);
+                    }
+                };
+            }
+        });
+    }
+
+    @AfterEach
+    void tearDown() {
+        pool.shutdownNow();
+    }
+
+    private static CallbackRequest request(
+            final String method, final String id, final Map<String, String> params, final byte[] body)
+            throws IOException {
+        val request = mock(StaplerRequest.class);
+        when(request.getMethod()).thenReturn(method);
+        when(request.getRequestURL()).thenAnswer(i -> new StringBuffer("http://jenkins/websub/" + id));
+        when(request.getParameterValues(anyString())).thenAnswer(i -> {
+            String value = params.get(i.<String>getArgument(0));
+            return value == null ? new String[0] : new String[] {value};
+        });
+        when(request.getContentLength()).thenReturn(body.length);
+        when(request.getContentType()).thenReturn("text/plain");
+        when(request.getInputStream()).thenReturn(
+                mock(ServletInputStream.class, delegatesTo(new ByteArrayInputStream(body))));
+        return new ServletCallbackRequest(request);
+    }
+
+    private static CallbackRequest verification(final String id) throws IOException {
+        return verification(id, "subscribe");
+    }
+
+    private static CallbackRequest verification(final String id, final String mode) throws IOException {
+        final Map<String, String> params = new HashMap<>();
+        params.put("hub.mode", mode);
+        params.put("hub.topic", TOPIC);
+        params.put("hub.challenge", "challenge-" + id);
+        params.put("hub.lease_seconds", "3600");
+        return request("GET", id, params, new byte[0]);
+    }
+
+    private static CallbackRequest denial(final String id) throws IOException {
+        final Map<String, String> params = new HashMap<>();
+        params.put("hub.mode", "denied");
+        params.put("hub.topic", TOPIC);
+        return request("GET", id, params, new byte[0]);
+    }
+
+    private static CallbackRequest notification(final String id) throws IOException {
+        return request("POST", id, Collections.emptyMap(), ("update for " + id).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Run all tasks on the pool together.
+     * @return number of tasks answered with an error response
+     */
+    private int runAll(final List<Callable<Object>> tasks) throws Exception {
+        Collections.shuffle(tasks);
+        int errors = 0;
+        for (final Future<Object> future : pool.invokeAll(tasks)) {
+            if (((CallbackResponse) future.get()).getStatus() >= 400)
+                errors++;
+        }
+        return errors;
+    }
+
+    private List<String> subscribeAll() throws Exception {
+        final List<String> ids = Collections.synchronizedList(new ArrayList<>());
+        final List<Callable<Object>> tasks = new ArrayList<>();
+        for (int i = 0; i < SUBSCRIPTIONS; i++)
+            tasks.add(() -> ids.add(client.subscribe("http://hub.example.com/", TOPIC)));
+        runAll(tasks);
+        assertEquals(SUBSCRIPTIONS, client.getPendingCount());
+        return ids;
+    }
+
+    @Test
+    void testConcurrentVerificationAndNotification() throws Exception {
+        val ids = subscribeAll();
+
+        // Hubs may retry verification, each must succeed exactly once.
+        final List<Callable<Object>> verifications = new ArrayList<>();
+        for (val id : ids) {
+            for (int i = 0; i < 2; i++) {
+                val request = verification(id);
+                verifications.add(() -> client.handleRequest(request));
+            }
+        }
+        assertEquals(SUBSCRIPTIONS, runAll(verifications));
+        assertEquals(SUBSCRIPTIONS, successes.get());
+        assertEquals(0, client.getPendingCount());
+        for (val id : ids)
+            assertTrue(registry.getById(id).isPresent(), id);
+
+        final List<Callable<Object>> posts = new ArrayList<>();
+        for (val id : ids) {
+            for (int i = 0; i < 5; i++) {
+                val request = notification(id);
+                posts.add(() -> client.handleRequest(request));
+            }
+        }
+        assertEquals(0, runAll(posts));
+        assertEquals(SUBSCRIPTIONS * 5, notifications.get());
+    }
+
+    @Test
+    void testAsyncSubscribeResolvedByHub() throws Exception {
+        final List<CompletableFuture<WebSubSubscription>> futures = new ArrayList<>();
+        for (int i = 0; i < SUBSCRIPTIONS; i++)
+            futures.add(client.subscribeAsync("http://hub.example.com/", TOPIC, "id" + i, pool));
+        await().atMost(5, TimeUnit.SECONDS).until(() -> client.getPendingCount() == SUBSCRIPTIONS);
+        for (val future : futures)
+            assertFalse(future.isDone());
+
+        // Half are verified and half denied, all from the pool.
+        final List<Callable<Object>> tasks = new ArrayList<>();
+        for (int i = 0; i < SUBSCRIPTIONS; i++) {
+            val request = i % 2 == 0 ? verification("id" + i) : denial("id" + i);
+            tasks.add(() -> client.handleRequest(request));
+        }
+        runAll(tasks);
+        for (int i = 0; i < SUBSCRIPTIONS; i++) {
+            val future = futures.get(i);
+            assertTrue(future.isDone());
+            if (i % 2 == 0) {
+                assertEquals("id" + i, future.get().getId());
+            } else {
+                val e = assertThrows(ExecutionException.class, future::get);
+                assertTrue(e.getCause() instanceof WebSubSubscriber.DeniedException);
+            }
+        }
+    }
+
+    @Test
+    void testVerificationOfOtherModeIgnored() throws Exception {
+        val id = client.subscribe("http://hub.example.com/", TOPIC);
+        client.handleRequest(verification(id, "unsubscribe"));
+        assertEquals(1, client.getPendingCount());
+        assertFalse(registry.getById(id).isPresent());
+
+        client.handleRequest(verification(id));
+        assertEquals(0, client.getPendingCount());
+        assertEquals(1, successes.get());
+        client.unsubscribe("http://hub.example.com/", TOPIC, id);
+        client.handleRequest(verification(id));
+        assertEquals(1, successes.get());
+        client.handleRequest(verification(id, "unsubscribe"));
+        assertFalse(registry.getById(id).isPresent());
+    }
+
+    @Test
+    void testConcurrentVerificationAndDenial() throws Exception {
+        val ids = subscribeAll();
+
+        final List<Callable<Object>> tasks = new ArrayList<>();
+        for (val id : ids) {
+            val verify = verification(id);
+            val deny1 = denial(id);
+            val deny2 = denial(id);
+            tasks.add(() -> client.handleRequest(verify));
+            tasks.add(() -> client.handleRequest(deny1));
+            tasks.add(() -> client.handleRequest(deny2));
+        }
+        runAll(tasks);
+
+        // Whatever the interleaving, every subscription ends up rejected exactly once and
+        // nothing is left pending or active.
+        assertEquals(SUBSCRIPTIONS, rejections.get());
+        assertEquals(0, client.getPendingCount());
+        for (val id : ids)
+            assertFalse(registry.getById(id).isPresent(), id);
+    }
+}
@@ -0,0 +1,121 @@
+package io.jenkins.plugins.websub.subscriber;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import lombok.val;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TestWebSubSubscriptionJournal {
+    private static final Instant START = Instant.parse("2018-01-01T00:00:00Z");
+
+    private static WebSubSubscription subscription(final String id, final String secret) {
+        return new WebSubSubscription(id, "http://example.com/" + id, START.plus(Duration.ofDays(1)),
+                "http://hub", START, secret);
+    }
+
+    private static WebSubSubscriptionRegistry restore(final Path dir) throws IOException {
+        val registry = new WebSubSubscriptionRegistry();
+        registry.restore(new WebSubSubscriptionJournal(dir, WebSubSubscriptionJournal.SecretCodec.PLAIN));
+        return registry;
+    }
+
+    @Test
+    void testChangesSurviveRestart() throws IOException {
+        val dir = Files.createTempDirectory("websub-test");
+        val registry = restore(dir);
+        registry.add(subscription("a", "secret-a"));
+        registry.add(subscription("b", null));
+        registry.add(subscription("c", null));
+        registry.remove("b");
+        // A rejected subscription is recorded with its state and not restored.
+        val c = registry.getById("c").get();
+        c.setState(WebSubSubscription.State.REJECTED);
+        registry.add(c);
+
+        val restored = restore(dir);
+        assertEquals(1, restored.size());
+        val a = restored.getById("a").get();
+        assertEquals(subscription("a", "secret-a"), a);
+        assertEquals("secret-a", a.getSecret());
+        assertEquals(Duration.ofDays(1), restored.getMaxLease());
+    }
+
+    @Test
+    void testTornRecordIgnored() throws IOException {
+        val dir = Files.createTempDirectory("websub-test");
+        val registry = restore(dir);
+        registry.add(subscription("a", null));
+        registry.add(subscription("b", null));
+        val journal = dir.resolve("subscriptions.journal");
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        val restored = restore(dir);
+        assertTrue(restored.getById("a").isPresent());
+        assertFalse(restored.getById("b").isPresent());
+        // Appending continues from the last good record.
+        restored.add(subscription("c", null));
+        assertTrue(restore(dir).getById("c").isPresent());
+    }
+
+    @Test
+    void testCorruptLengthIgnored() throws IOException {
+        val dir = Files.createTempDirectory("websub-test");
+        val registry = restore(dir);
+        registry.add(subscription("a", null));
+        val journal = dir.resolve("subscriptions.journal");
+        // A length far beyond the file, as left by a torn write, then some record bytes.
+        Files.write(journal, ByteBuffer.allocate(12).putInt(0x7fffffff).putLong(42).array(),
+                StandardOpenOption.APPEND);
+
+        val restored = restore(dir);
+        assertEquals(1, restored.size());
+        assertTrue(restored.getById("a").isPresent());
+        restored.add(subscription("b", null));
+        assertTrue(restore(dir).getById("b").isPresent());
+    }
+
+    @Test
+    void testSnapshotEmptiesJournal() throws IOException {
+        val dir = Files.createTempDirectory("websub-test");
+        val registry = restore(dir);
+        for (int i = 0; i < 10; i++)
+            registry.add(subscription("id" + i, null));
+        registry.snapshot();
+        assertEquals(4, Files.size(dir.resolve("subscriptions.journal")));
+        registry.remove("id0");
+        registry.close();
+
+        val restored = restore(dir);
+        assertEquals(9, restored.size());
+        assertNull(restored.getById("id1").get().getSecret());
+    }
+
+    @Test
+    void testUnrecoverableSecretDropsSubscription() throws IOException {
+        val dir = Files.createTempDirectory("websub-test");
+        restore(dir).add(subscription("a", "secret-a"));
+
+        val registry = new WebSubSubscriptionRegistry();
+        registry.restore(new WebSubSubscriptionJournal(dir, new WebSubSubscriptionJournal.SecretCodec() {
+            @Override
+            public String encode(final String secret) { return secret; }
+
+            @Override
+            public String decode(final String stored) { return null; }
+        }));
+        assertEquals(0, registry.size());
+    }
+}